@@ -14,7 +14,7 @@ import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
-public class AutoLastService {
+public class AutoLastService implements SyncFilter.Contributor {
 
     private final Set<String> enabledUsers = ConcurrentHashMap.newKeySet();
     private final Map<String, Long> lastTriggerTime = new ConcurrentHashMap<>();
@@ -22,16 +22,18 @@ public class AutoLastService {
     
     private final MatrixClient matrixClient;
     private final LastMessageService lastMessageService;
+    private final CommandExecutor commandExecutor;
     private final HttpClient httpClient; // Added HttpClient
     private final ObjectMapper mapper;
     private final String homeserver;
     private final String accessToken;
     private final Path persistenceFile;
 
-    public AutoLastService(MatrixClient matrixClient, LastMessageService lastMessageService, 
+    public AutoLastService(MatrixClient matrixClient, LastMessageService lastMessageService, CommandExecutor commandExecutor,
                            HttpClient httpClient, ObjectMapper mapper, String homeserver, String accessToken) {
         this.matrixClient = matrixClient;
         this.lastMessageService = lastMessageService;
+        this.commandExecutor = commandExecutor;
         this.httpClient = httpClient; // Store HttpClient
         this.mapper = mapper;
         this.homeserver = homeserver;
@@ -48,82 +50,73 @@ public class AutoLastService {
     public void toggleAutoLast(String userId, String roomId) {
         if (enabledUsers.contains(userId)) {
             enabledUsers.remove(userId);
-            matrixClient.sendText(roomId, "Auto-!last disabled.");
+            matrixClient.sendTextAsync(roomId, "Auto-!last disabled.");
         } else {
             enabledUsers.add(userId);
-            matrixClient.sendText(roomId, "Auto-!last enabled. I will DM you a summary when you read the export room after being away.");
+            matrixClient.sendTextAsync(roomId, "Auto-!last enabled. I will DM you a summary when you read the export room after being away.");
         }
         saveEnabledUsers();
     }
 
     /**
-     * Processes ephemeral events (read receipts) from the sync loop.
+     * Only read receipts are consumed from /sync
      */
-    public void processEphemeralEvents(String roomId, JsonNode ephemeralEvents, String exportRoomId) {
+    @Override
+    public void contributeSyncFilter(SyncFilter filter) {
+        filter.includeEphemeralType("m.receipt");
+    }
+
+    /**
+     * Processes read receipts from the sync loop.
+     */
+    public void processReceipts(String roomId, List<SyncBatch.Receipt> receipts, String exportRoomId) {
         // Only run logic if this is the export room
         if (!roomId.equals(exportRoomId)) return;
         
-        if (ephemeralEvents == null || !ephemeralEvents.isArray()) return;
-
-        for (JsonNode event : ephemeralEvents) {
-            if ("m.receipt".equals(event.path("type").asText())) {
-                processReceiptEvent(roomId, event.path("content"));
-            }
+        for (SyncBatch.Receipt receipt : receipts) {
+            processReceipt(roomId, receipt.eventId, receipt.userId);
         }
     }
 
-    private void processReceiptEvent(String roomId, JsonNode content) {
-        // Content structure: { "$event_id": { "m.read": { "@user_id": { "ts": 1234 } } } }
-        Iterator<String> eventIds = content.fieldNames();
-        
-        while (eventIds.hasNext()) {
-            String eventId = eventIds.next();
-            JsonNode readNode = content.path(eventId).path("m.read");
-            
-            Iterator<String> userIds = readNode.fieldNames();
-            while (userIds.hasNext()) {
-                String userId = userIds.next();
-                
-                // 1. Check if user is enabled
-                if (!enabledUsers.contains(userId)) continue;
+    private void processReceipt(String roomId, String eventId, String userId) {
+        // 1. Check if user is enabled
+        if (!enabledUsers.contains(userId)) return;
 
-                long now = System.currentTimeMillis();
-                long lastTrigger = lastTriggerTime.getOrDefault(userId, 0L);
+        long now = System.currentTimeMillis();
+        long lastTrigger = lastTriggerTime.getOrDefault(userId, 0L);
 
-                // 2. Check debounce (30 minutes) - "last read was more than half an hour ago"
-                // We use the trigger time to ensure we don't spam if they read messages in a row.
-                if (now - lastTrigger < 1800000) {
-                    // Update the last known read event, but don't trigger
-                    lastReadEventId.put(userId, eventId);
-                    continue;
-                }
-
-                // 3. Check for at least 30 unread messages
-                String previousEventId = lastReadEventId.get(userId);
-                
-                // If we have a previous read state, check the gap
-                if (previousEventId != null && !previousEventId.equals(eventId)) {
-                    if (hasAtLeast30Messages(roomId, previousEventId, eventId)) {
-                        triggerLastMessage(roomId, userId);
-                        lastTriggerTime.put(userId, now);
-                    }
-                }
+        // 2. Check debounce (30 minutes) - "last read was more than half an hour ago"
+        // We use the trigger time to ensure we don't spam if they read messages in a row.
+        if (now - lastTrigger < 1800000) {
+            // Update the last known read event, but don't trigger
+            lastReadEventId.put(userId, eventId);
+            return;
+        }
 
-                // Update state for next time
-                lastReadEventId.put(userId, eventId);
+        // 3. Check for at least 30 unread messages
+        String previousEventId = lastReadEventId.get(userId);
+        
+        // If we have a previous read state, check the gap
+        if (previousEventId != null && !previousEventId.equals(eventId)) {
+            if (hasAtLeast30Messages(roomId, previousEventId, eventId)) {
+                triggerLastMessage(roomId, userId);
+                lastTriggerTime.put(userId, now);
             }
         }
+
+        // Update state for next time
+        lastReadEventId.put(userId, eventId);
     }
 
     private void triggerLastMessage(String exportRoomId, String userId) {
         // Find a DM room with the user
-        String dmRoomId = findDirectMessageRoom(userId);
+        String dmRoomId = matrixClient.findDirectMessageRoom(userId);
         if (dmRoomId != null) {
             System.out.println("Triggering Auto-Last for " + userId);
             // Get the cached previous read event ID before updating it
             String previousReadEventId = lastReadEventId.get(userId);
-            // We run this in a separate thread to not block the sync loop
-            new Thread(() -> lastMessageService.sendLastMessageAndReadReceipt(exportRoomId, userId, dmRoomId, previousReadEventId)).start();
+            // We run this on the command executor to not block the sync loop
+            commandExecutor.submit("autolast", userId, null, () -> lastMessageService.sendLastMessageAndReadReceipt(exportRoomId, userId, dmRoomId, previousReadEventId));
         } else {
             System.out.println("Could not find DM room for auto-last user: " + userId);
         }
@@ -180,58 +173,6 @@ public class AutoLastService {
         }
     }
 
-    /**
-     * Helper to find a Room ID that is a DM with the specific user.
-     */
-    private String findDirectMessageRoom(String targetUserId) {
-        try {
-            String url = homeserver + "/_matrix/client/v3/joined_rooms";
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .GET()
-                    .build();
-            // FIX: Use local httpClient instead of matrixClient.getClient()
-            HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
-            JsonNode joined = mapper.readTree(resp.body()).path("joined_rooms");
-            
-            if (joined.isArray()) {
-                for (JsonNode roomNode : joined) {
-                    String rId = roomNode.asText();
-                    if (isDmWithUser(rId, targetUserId)) {
-                        return rId;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-
-    private boolean isDmWithUser(String roomId, String targetUserId) {
-        try {
-            // Check members
-            String url = homeserver + "/_matrix/client/v3/rooms/" + roomId + "/joined_members";
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .GET()
-                    .build();
-            // FIX: Use local httpClient instead of matrixClient.getClient()
-            HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
-            JsonNode members = mapper.readTree(resp.body()).path("joined");
-            
-            // A DM usually has exactly 2 members: the bot and the target user
-            if (members.size() == 2 && members.has(targetUserId)) {
-                return true;
-            }
-        } catch (Exception e) { 
-            // ignore
-        }
-        return false;
-    }
-
     /**
      * Load enabled users from persistence file.
      */
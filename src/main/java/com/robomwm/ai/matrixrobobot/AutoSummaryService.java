@@ -20,39 +20,48 @@ import java.util.concurrent.ConcurrentHashMap;
  * Handles the !autosummary command: summarizes unread messages using Arli AI
  * Requires >100 unread messages that are >6 hours old
  */
-public class AutoSummaryService {
+public class AutoSummaryService implements SyncFilter.Contributor {
+    /** Upper bound on how far back an unread scan walks */
+    private static final int MAX_UNREAD_MESSAGES = 1000;
 
     private final Map<String, Long> lastTriggerTime = new ConcurrentHashMap<>();
     private final Map<String, String> lastReadEventId = new ConcurrentHashMap<>();
 
     private final Set<String> enabledUsers = ConcurrentHashMap.newKeySet();
     private final MatrixClient matrixClient;
+    private final CommandExecutor commandExecutor;
     private final HttpClient httpClient;
     private final ObjectMapper mapper;
     private final String homeserver;
     private final String accessToken;
     private final String arliApiKey;
     private final Path persistenceFile;
+    private final RoomHistoryManager historyManager;
 
     public static class UnreadMessagesResult {
-        public List<String> logs;
+        public HistoryColumns messages;
         public long oldestTimestampMs;
+        /** History ended early, so there may be more unread messages than these */
+        public boolean truncated;
 
-        public UnreadMessagesResult(List<String> logs, long oldestTimestampMs) {
-            this.logs = logs;
+        public UnreadMessagesResult(HistoryColumns messages, long oldestTimestampMs, boolean truncated) {
+            this.messages = messages;
             this.oldestTimestampMs = oldestTimestampMs;
+            this.truncated = truncated;
         }
     }
 
-    public AutoSummaryService(MatrixClient matrixClient, HttpClient httpClient, ObjectMapper mapper,
-                              String homeserver, String accessToken, String arliApiKey) {
+    public AutoSummaryService(MatrixClient matrixClient, CommandExecutor commandExecutor, HttpClient httpClient, ObjectMapper mapper,
+                              String homeserver, String accessToken, String arliApiKey, RoomHistoryManager historyManager) {
         this.matrixClient = matrixClient;
+        this.commandExecutor = commandExecutor;
         this.httpClient = httpClient;
         this.mapper = mapper;
         this.homeserver = homeserver;
         this.accessToken = accessToken;
         this.arliApiKey = arliApiKey;
         this.persistenceFile = Paths.get("autosummary_enabled_users.json");
+        this.historyManager = historyManager;
 
         // Load persisted enabled users
         loadEnabledUsers();
@@ -64,10 +73,10 @@ public class AutoSummaryService {
     public void toggleAutoSummary(String userId, String roomId) {
         if (enabledUsers.contains(userId)) {
             enabledUsers.remove(userId);
-            matrixClient.sendText(roomId, "Auto-summary disabled.");
+            matrixClient.sendTextAsync(roomId, "Auto-summary disabled.");
         } else {
             enabledUsers.add(userId);
-            matrixClient.sendText(roomId, "Auto-summary enabled. I will DM you with a summary when you have >100 unread messages >6 hours old.");
+            matrixClient.sendTextAsync(roomId, "Auto-summary enabled. I will DM you with a summary when you have >100 unread messages >6 hours old.");
         }
         saveEnabledUsers();
     }
@@ -88,14 +97,15 @@ public class AutoSummaryService {
             // Fetch unread messages after the last read event
             UnreadMessagesResult unreadMessages = fetchUnreadMessages(exportRoomId, lastReadEventId);
 
-            if (unreadMessages.logs.isEmpty()) {
-                matrixClient.sendText(responseRoomId, "No unread messages found.");
+            if (unreadMessages.messages.isEmpty()) {
+                matrixClient.sendText(responseRoomId, unreadMessages.truncated ? "Couldn't fetch your unread messages." : "No unread messages found.");
                 return;
             }
 
             // Check thresholds: > 100 messages and > 6 hours old
-            if (unreadMessages.logs.size() <= 100) {
-                matrixClient.sendText(responseRoomId, "Not enough unread messages (" + unreadMessages.logs.size() + "/100+) for summary.");
+            if (unreadMessages.messages.size() <= 100) {
+                matrixClient.sendText(responseRoomId, "Not enough unread messages (" + unreadMessages.messages.size() + "/100+) for summary."
+                        + (unreadMessages.truncated ? " Part of the history couldn't be fetched, so there may be more." : ""));
                 return;
             }
 
@@ -109,7 +119,10 @@ public class AutoSummaryService {
             }
 
             // All thresholds met, query Arli AI with the unread messages
-            queryArliAISummary(unreadMessages.logs, responseRoomId);
+            if (unreadMessages.truncated) {
+                matrixClient.sendText(responseRoomId, "Part of the history couldn't be fetched, summarizing the " + unreadMessages.messages.size() + " unread messages that could.");
+            }
+            queryArliAISummary(unreadMessages.messages, responseRoomId);
 
         } catch (Exception e) {
             System.out.println("Auto-summary failed: " + e.getMessage());
@@ -162,67 +175,40 @@ public class AutoSummaryService {
     }
 
     /**
-     * Fetch unread messages after the last read event
+     * Fetch unread messages after the last read event, walking history backwards only until it is reached
      */
     private UnreadMessagesResult fetchUnreadMessages(String roomId, String lastReadEventId) {
-        List<String> unreadMessages = new ArrayList<>();
+        HistoryColumns.Builder unreadMessages = new HistoryColumns.Builder();
         long oldestTimestamp = System.currentTimeMillis();
+        boolean truncated = false;
 
         try {
-            String messagesUrl = homeserver + "/_matrix/client/v3/rooms/" +
-                URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/messages?dir=b&limit=1000";
-
-            HttpRequest msgReq = HttpRequest.newBuilder()
-                    .uri(URI.create(messagesUrl))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .GET()
-                    .build();
-            HttpResponse<String> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofString());
-
-            if (msgResp.statusCode() != 200) {
-                return new UnreadMessagesResult(unreadMessages, oldestTimestamp);
-            }
-
-            JsonNode root = mapper.readTree(msgResp.body());
-            JsonNode chunk = root.path("chunk");
-
-            for (JsonNode event : chunk) {
-                String eventId = event.path("event_id").asText(null);
-                String type = event.path("type").asText(null);
-                long ts = event.path("origin_server_ts").asLong(System.currentTimeMillis());
-
-                if (eventId != null && eventId.equals(lastReadEventId)) {
+            HistoryStream.Cursor events = historyManager.iterate(roomId, null, HistoryStream.Direction.BACKWARD, 0, Long.MAX_VALUE);
+            while (events.hasNext() && unreadMessages.size() < MAX_UNREAD_MESSAGES) {
+                EventStore.StoredEvent event = events.next();
+                if (event.eventId.equals(lastReadEventId)) {
                     break;
                 }
-
-                if (!"m.room.message".equals(type)) continue;
-
-                String body = event.path("content").path("body").asText(null);
-                String sender = event.path("sender").asText(null);
-
-                if (body != null && sender != null) {
-                    unreadMessages.add("<" + sender + "> " + body);
-                    oldestTimestamp = Math.min(oldestTimestamp, ts);
-                }
+                unreadMessages.add(event);
+                oldestTimestamp = Math.min(oldestTimestamp, event.ts);
             }
-
+            truncated = events.isTruncated();
         } catch (Exception e) {
             System.out.println("Error fetching unread messages: " + e.getMessage());
+            truncated = true;
         }
 
-        return new UnreadMessagesResult(unreadMessages, oldestTimestamp);
+        return new UnreadMessagesResult(unreadMessages.buildReversed(), oldestTimestamp, truncated);
     }
 
     /**
      * Query Arli AI to summarize the messages
      */
-    private void queryArliAISummary(List<String> messages, String responseRoomId) {
+    private void queryArliAISummary(HistoryColumns messages, String responseRoomId) {
         try {
             // Build context for Arli AI
             StringBuilder context = new StringBuilder();
-            for (String msg : messages) {
-                context.append(msg).append("\n");
-            }
+            messages.appendTranscript(context, null);
 
             // Call Arli AI API with summarization prompt
             if (arliApiKey == null || arliApiKey.isEmpty()) {
@@ -302,78 +288,69 @@ public class AutoSummaryService {
     }
 
     /**
-     * Processes ephemeral events (read receipts) from the sync loop.
+     * Only read receipts are consumed from /sync
+     */
+    @Override
+    public void contributeSyncFilter(SyncFilter filter) {
+        filter.includeEphemeralType("m.receipt");
+    }
+
+    /**
+     * Processes read receipts from the sync loop.
      */
-    public void processEphemeralEvents(String roomId, JsonNode ephemeralEvents, String exportRoomId) {
+    public void processReceipts(String roomId, List<SyncBatch.Receipt> receipts, String exportRoomId) {
         // Only run logic if this is the export room
         if (!roomId.equals(exportRoomId)) return;
         
-        if (ephemeralEvents == null || !ephemeralEvents.isArray()) return;
-
-        for (JsonNode event : ephemeralEvents) {
-            if ("m.receipt".equals(event.path("type").asText())) {
-                processReceiptEvent(roomId, event.path("content"));
-            }
+        for (SyncBatch.Receipt receipt : receipts) {
+            processReceipt(roomId, receipt.eventId, receipt.userId);
         }
     }
 
-    private void processReceiptEvent(String roomId, JsonNode content) {
-        // Content structure: { "$event_id": { "m.read": { "@user_id": { "ts": 1234 } } } }
-        Iterator<String> eventIds = content.fieldNames();
+    private void processReceipt(String roomId, String eventId, String userId) {
+        // 1. Check if user has automatic summarization enabled
+        if (!enabledUsers.contains(userId)) return;
+
+        long now = System.currentTimeMillis();
+        long lastTrigger = lastTriggerTime.getOrDefault(userId, 0L);
+
+        // 2. Check debounce (6 hours) - prevents spamming the user
+        // We use the trigger time to ensure we don't spam if they read messages in a row.
+        if (now - lastTrigger < 21600000) { // 6 hours in milliseconds
+            // Update the last known read event, but don't trigger
+            lastReadEventId.put(userId, eventId);
+            return;
+        }
+
+        // 3. Check for at least 100 unread messages that are at least 6 hours old
+        String previousEventId = lastReadEventId.get(userId);
         
-        while (eventIds.hasNext()) {
-            String eventId = eventIds.next();
-            JsonNode readNode = content.path(eventId).path("m.read");
+        // If we have a previous read state, check the gap
+        if (previousEventId != null && !previousEventId.equals(eventId)) {
+            UnreadMessagesResult unreadMessages = fetchUnreadMessages(roomId, previousEventId);
             
-            Iterator<String> userIds = readNode.fieldNames();
-            while (userIds.hasNext()) {
-                String userId = userIds.next();
+            if (unreadMessages.messages.size() > 100) {
+                long oldestMessageTime = unreadMessages.oldestTimestampMs;
+                long ageHours = (now - oldestMessageTime) / (1000 * 60 * 60);
                 
-                // 1. Check if user has automatic summarization enabled
-                if (!enabledUsers.contains(userId)) continue;
-
-                long now = System.currentTimeMillis();
-                long lastTrigger = lastTriggerTime.getOrDefault(userId, 0L);
-
-                // 2. Check debounce (6 hours) - prevents spamming the user
-                // We use the trigger time to ensure we don't spam if they read messages in a row.
-                if (now - lastTrigger < 21600000) { // 6 hours in milliseconds
-                    // Update the last known read event, but don't trigger
-                    lastReadEventId.put(userId, eventId);
-                    continue;
+                if (ageHours >= 6) {
+                    triggerSummary(roomId, userId, unreadMessages.messages);
+                    lastTriggerTime.put(userId, now);
                 }
-
-                // 3. Check for at least 100 unread messages that are at least 6 hours old
-                String previousEventId = lastReadEventId.get(userId);
-                
-                // If we have a previous read state, check the gap
-                if (previousEventId != null && !previousEventId.equals(eventId)) {
-                    UnreadMessagesResult unreadMessages = fetchUnreadMessages(roomId, previousEventId);
-                    
-                    if (unreadMessages.logs.size() > 100) {
-                        long oldestMessageTime = unreadMessages.oldestTimestampMs;
-                        long ageHours = (now - oldestMessageTime) / (1000 * 60 * 60);
-                        
-                        if (ageHours >= 6) {
-                            triggerSummary(roomId, userId, unreadMessages.logs);
-                            lastTriggerTime.put(userId, now);
-                        }
-                    }
-                }
-
-                // Update state for next time
-                lastReadEventId.put(userId, eventId);
             }
         }
+
+        // Update state for next time
+        lastReadEventId.put(userId, eventId);
     }
 
-    private void triggerSummary(String exportRoomId, String userId, List<String> messages) {
+    private void triggerSummary(String exportRoomId, String userId, HistoryColumns messages) {
         // Find a DM room with the user
-        String dmRoomId = findDirectMessageRoom(userId);
+        String dmRoomId = matrixClient.findDirectMessageRoom(userId);
         if (dmRoomId != null) {
             System.out.println("Triggering Auto-Summary for " + userId);
-            // We run this in a separate thread to not block the sync loop
-            new Thread(() -> {
+            // We run this on the command executor to not block the sync loop
+            commandExecutor.submit("autosummary", userId, null, () -> {
                 try {
                     // Call Arli AI to generate summary
                     if (arliApiKey == null || arliApiKey.isEmpty()) {
@@ -382,9 +359,7 @@ public class AutoSummaryService {
                     }
                     
                     StringBuilder context = new StringBuilder();
-                    for (String msg : messages) {
-                        context.append(msg).append("\n");
-                    }
+                    messages.appendTranscript(context, null);
                     
                     String prompt = "Please provide a concise summary of the following chat messages in 2-3 paragraphs:\n\n" + context.toString();
                     
@@ -425,64 +400,12 @@ public class AutoSummaryService {
                     System.out.println("Arli AI query failed: " + e.getMessage());
                     matrixClient.sendText(dmRoomId, "Arli AI query failed: " + e.getMessage());
                 }
-            }).start();
+            });
         } else {
             System.out.println("Could not find DM room for auto-summary user: " + userId);
         }
     }
 
-    /**
-     * Helper to find a Room ID that is a DM with the specific user.
-     */
-    private String findDirectMessageRoom(String targetUserId) {
-        try {
-            String url = homeserver + "/_matrix/client/v3/joined_rooms";
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .GET()
-                    .build();
-            // FIX: Use local httpClient instead of matrixClient.getClient()
-            HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
-            JsonNode joined = mapper.readTree(resp.body()).path("joined_rooms");
-            
-            if (joined.isArray()) {
-                for (JsonNode roomNode : joined) {
-                    String rId = roomNode.asText();
-                    if (isDmWithUser(rId, targetUserId)) {
-                        return rId;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-
-    private boolean isDmWithUser(String roomId, String targetUserId) {
-        try {
-            // Check members
-            String url = homeserver + "/_matrix/client/v3/rooms/" + roomId + "/joined_members";
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .GET()
-                    .build();
-            // FIX: Use local httpClient instead of matrixClient.getClient()
-            HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
-            JsonNode members = mapper.readTree(resp.body()).path("joined");
-            
-            // A DM usually has exactly 2 members: the bot and the target user
-            if (members.size() == 2 && members.has(targetUserId)) {
-                return true;
-            }
-        } catch (Exception e) {
-            // ignore
-        }
-        return false;
-    }
-
     /**
      * Save enabled users to persistence file
      */
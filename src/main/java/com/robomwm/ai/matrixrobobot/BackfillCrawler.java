@@ -0,0 +1,188 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches a long stretch of room history with several /messages walks at once. The range is cut
+ * into time slices; each slice is entered at its upper edge with a timestamp seek and paged
+ * backwards until past its lower edge. At most {@code concurrency} slices are in flight. The
+ * pages of neighbouring slices overlap at the seams, so the stitched result drops repeated
+ * event IDs.
+ */
+public class BackfillCrawler {
+    /** Slices shorter than this aren't worth the two seek requests */
+    private static final long MIN_SLICE_MS = 6 * 3600L * 1000L;
+    /** More slices than workers, so a dense slice doesn't leave the others idle */
+    private static final int SLICES_PER_WORKER = 4;
+
+    /**
+     * Pagination token for paging backwards from the last event at or before ts
+     */
+    interface Seeker {
+        /**
+         * @return null if the room has no event at or before ts
+         * @throws Exception if the homeserver can't seek, so the caller falls back to a sequential walk
+         */
+        String seek(long ts) throws Exception;
+    }
+
+    /**
+     * Receives progress of a running crawl, from any of its threads
+     */
+    public interface ProgressListener {
+        void onProgress(long coveredMs, long totalMs);
+    }
+
+    public static class Result {
+        /** Deduplicated messages, oldest first */
+        public final List<EventStore.StoredEvent> events;
+        /** Everything from here up to the top of the range was fetched; 0 if history ran out */
+        public final long coveredFrom;
+        /** Token continuing backwards from coveredFrom, null if history ran out */
+        public final String lowerToken;
+        public final int pages;
+
+        Result(List<EventStore.StoredEvent> events, long coveredFrom, String lowerToken, int pages) {
+            this.events = events;
+            this.coveredFrom = coveredFrom;
+            this.lowerToken = lowerToken;
+            this.pages = pages;
+        }
+    }
+
+    private static class Slice {
+        final long from;
+        final long to;
+        final List<EventStore.StoredEvent> events = new ArrayList<>();
+        long lowest = Long.MAX_VALUE;
+        String token;
+        int pages;
+
+        Slice(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final HistoryStream.PageSource pageSource;
+    private final Seeker seeker;
+    private final int concurrency;
+
+    BackfillCrawler(HistoryStream.PageSource pageSource, Seeker seeker, int concurrency) {
+        this.pageSource = pageSource;
+        this.seeker = seeker;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Fetch every message with from <= ts <= to
+     * @param listener Progress receiver, may be null
+     */
+    Result crawl(long from, long to, ProgressListener listener) throws Exception {
+        long total = Math.max(1, to - from);
+        int sliceCount = (int) Math.max(1, Math.min((long) concurrency * SLICES_PER_WORKER, total / MIN_SLICE_MS));
+        List<Slice> slices = new ArrayList<>(sliceCount);
+        for (int i = 0; i < sliceCount; i++) {
+            // Newest first, so the slices queued first are the ones the caller reads first
+            long top = to - total * i / sliceCount;
+            long bottom = i == sliceCount - 1 ? from : to - total * (i + 1) / sliceCount;
+            slices.add(new Slice(bottom, top));
+        }
+
+        AtomicLong covered = new AtomicLong();
+        Semaphore permits = new Semaphore(concurrency);
+        List<Future<?>> futures = new ArrayList<>(sliceCount);
+        try (ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("backfill-", 0).factory())) {
+            for (Slice slice : slices) {
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        crawlSlice(slice, covered, total, listener);
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    futures.forEach(f -> f.cancel(true));
+                    throw e.getCause() instanceof Exception cause ? cause : e;
+                }
+            }
+        }
+
+        // Pages of neighbouring slices overlap at the seams; keep the first copy of each event
+        Set<String> seen = new HashSet<>();
+        List<EventStore.StoredEvent> events = new ArrayList<>();
+        int pages = 0;
+        for (Slice slice : slices) {
+            pages += slice.pages;
+            for (EventStore.StoredEvent event : slice.events) {
+                if (seen.add(event.eventId)) {
+                    events.add(event);
+                }
+            }
+        }
+        events.sort((a, b) -> Long.compare(a.ts, b.ts));
+
+        Slice bottom = slices.get(sliceCount - 1);
+        long coveredFrom = bottom.token == null ? 0 : bottom.lowest;
+        return new Result(events, coveredFrom, bottom.token, pages);
+    }
+
+    /**
+     * Page backwards from the top of the slice until an event below its bottom shows up or history runs out
+     */
+    private void crawlSlice(Slice slice, AtomicLong covered, long total, ProgressListener listener) throws Exception {
+        slice.token = seeker.seek(slice.to);
+        long reported = 0;
+        while (slice.token != null && slice.lowest >= slice.from) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("Backfill cancelled");
+            }
+            JsonNode root = pageSource.fetch(slice.token, HistoryStream.Direction.BACKWARD);
+            if (root == null) {
+                throw new IllegalStateException("Homeserver refused a backfill page");
+            }
+            slice.pages++;
+            JsonNode chunk = root.path("chunk");
+            if (!chunk.isArray() || chunk.size() == 0) {
+                slice.token = null;
+                break;
+            }
+            slice.lowest = Math.min(slice.lowest, HistoryStream.collect(chunk, slice.events));
+            slice.token = root.path("end").asText(null);
+
+            long done = Math.min(slice.to - slice.from, Math.max(0, slice.to - slice.lowest));
+            if (done > reported) {
+                report(covered, done - reported, total, listener);
+                reported = done;
+            }
+        }
+        report(covered, (slice.to - slice.from) - reported, total, listener);
+    }
+
+    private static void report(AtomicLong covered, long delta, long total, ProgressListener listener) {
+        if (delta <= 0) {
+            return;
+        }
+        long now = covered.addAndGet(delta);
+        if (listener != null) {
+            listener.onProgress(Math.min(now, total), total);
+        }
+    }
+}
@@ -1,26 +1,79 @@
 package com.robomwm.ai.matrixrobobot;
 
 import java.time.ZoneId;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Stream;
 
 /**
  * Routes and executes commands (export, arliai, cerebras, semantic, grep, search, etc.)
  * Keeps only non-!last commands here. !last is handled in the main bot.
  */
-public class CommandDispatcher {
+public class CommandDispatcher implements SyncFilter.Contributor {
+    private static final String HELP_TEXT = "**Matrix Bot Commands (Primary Use Case: !last)**\n\n" +
+        "**!last** - Show your last message and read receipt status in export room (PRIMARY)\n\n" +
+        "**Additional Commands:**\n\n" +
+        "**!unreadarliai** - Summarize unread messages (>100 messages, >6 hours old) using Arli AI\n\n" +
+        "**!ping** - Measure and report ping latency\n\n" +
+        "**!testcommand** - Test if the bot is responding\n\n" +
+        "**!export<duration>h** - Export chat history (e.g., `!export24h`)\n\n" +
+        "**!arliai, !cerebras** - Query AI with chat logs\n\n" +
+        "**!semantic <TZ> <N>h <query>** - AI-free semantic search using local embeddings\n\n" +
+        "**!grep, !grep-slow <TZ> <N>[dh] <text>** - Case-insensitive text searches; wrap the text in /slashes/ for a regex\n\n" +
+        "**!search <TZ> <N>[dh] <query>** - Word search with \"quoted phrases\" and NEAR/k proximity\n\n" +
+        "**!abort** - Abort currently running operations\n\n" +
+        "**!stats** - Show command queue and sync pipeline statistics";
+
+    private static final int GREP_MAX_RESULTS = 50;
+    /** Limits on /regex/ greps, since the pattern comes straight from chat */
+    private static final int GREP_MAX_REGEX_LENGTH = 100;
+    private static final long GREP_MATCH_BUDGET_MS = 50;
+    private static final int SEARCH_MAX_RESULTS = 50;
+    private static final int SEMANTIC_MAX_RESULTS = 10;
+    private static final double SEMANTIC_MIN_SIMILARITY = 0.2;
+    /** Shorter windows are scanned exactly; longer ones go through the semantic index when it covers them */
+    private static final long SEMANTIC_INDEX_MIN_WINDOW_MS = 7 * 24 * 3600L * 1000L;
+
     private final MatrixClient matrixClient;
     private final RoomHistoryManager historyManager;
     private final Map<String, AtomicBoolean> runningOperations;
     private final AutoSummaryService autoSummaryService;
+    private final CommandExecutor commandExecutor;
+    private final List<Supplier<String>> statsSources = new CopyOnWriteArrayList<>();
+    private final MessageEncoder.Template helpTemplate;
+    private final HnswIndex semanticIndex;
+    private final PositionalIndex searchIndex;
 
-    public CommandDispatcher(MatrixClient matrixClient, RoomHistoryManager historyManager, Map<String, AtomicBoolean> runningOperations, AutoSummaryService autoSummaryService) {
+    public CommandDispatcher(MatrixClient matrixClient, RoomHistoryManager historyManager, Map<String, AtomicBoolean> runningOperations, AutoSummaryService autoSummaryService, CommandExecutor commandExecutor, HnswIndex semanticIndex, PositionalIndex searchIndex) {
         this.matrixClient = matrixClient;
         this.historyManager = historyManager;
         this.runningOperations = runningOperations;
         this.autoSummaryService = autoSummaryService;
+        this.commandExecutor = commandExecutor;
+        this.helpTemplate = matrixClient.getEncoder().template(HELP_TEXT);
+        this.semanticIndex = semanticIndex;
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * Register an extra section for the !stats report
+     */
+    public void addStatsSource(Supplier<String> source) {
+        statsSources.add(source);
+    }
+
+    /**
+     * Commands arrive as m.room.message timeline events
+     */
+    @Override
+    public void contributeSyncFilter(SyncFilter filter) {
+        filter.includeTimelineType("m.room.message");
     }
 
     /**
@@ -28,7 +81,7 @@ public class CommandDispatcher {
      */
     public boolean dispatchCommand(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId, String exportRoomId) {
         if ("!testcommand".equals(trimmed)) {
-            matrixClient.sendText(responseRoomId, "Hello, world!");
+            matrixClient.sendTextAsync(responseRoomId, "Hello, world!");
             return true;
         } else if (trimmed.matches("!export\\d+h")) {
             handleExport(trimmed, roomId, sender, prevBatch, responseRoomId, exportRoomId);
@@ -66,6 +119,9 @@ public class CommandDispatcher {
         } else if ("!help".equals(trimmed)) {
             handleHelp(responseRoomId);
             return true;
+        } else if ("!stats".equals(trimmed)) {
+            handleStats(responseRoomId);
+            return true;
         }
         return false;
     }
@@ -73,32 +129,61 @@ public class CommandDispatcher {
     private void handleExport(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId, String exportRoomId) {
         int hours = Integer.parseInt(trimmed.replaceAll("\\D+", ""));
         System.out.println("Received export command in " + roomId + " from " + sender + " (" + hours + "h)");
-        new Thread(() -> {
+        commandExecutor.submit("!export", sender, responseRoomId, () -> {
             try {
                 long now = System.currentTimeMillis();
                 String safeRoom = exportRoomId.replaceAll("[^A-Za-z0-9._-]", "_");
                 String filename = safeRoom + "-last" + hours + "h-" + now + ".txt";
 
-                matrixClient.sendMarkdown(responseRoomId, "Starting export of last " + hours + "h from " + exportRoomId + " to " + filename);
+                String startMessage = "Starting export of last " + hours + "h from " + exportRoomId + " to " + filename;
+                String statusEventId = matrixClient.sendTextWithEventId(responseRoomId, startMessage);
 
-                java.util.List<String> lines = historyManager.fetchRoomHistory(exportRoomId, hours, prevBatch);
+                // Report backfill progress by editing the start message every 10%
+                java.util.concurrent.atomic.AtomicInteger lastPercent = new java.util.concurrent.atomic.AtomicInteger();
+                BackfillCrawler.ProgressListener progress = (covered, total) -> {
+                    if (total <= 0) {
+                        // Nothing left to fetch, e.g. a gap of a few milliseconds
+                        return;
+                    }
+                    int percent = (int) (covered * 100 / total);
+                    int last = lastPercent.get();
+                    if (statusEventId != null && percent >= last + 10 && lastPercent.compareAndSet(last, percent)) {
+                        matrixClient.updateTextMessageAsync(responseRoomId, statusEventId, startMessage + " (fetching history: " + percent + "%)");
+                    }
+                };
 
-                if (lines.isEmpty()) {
-                    matrixClient.sendMarkdown(responseRoomId, "No chat logs found for the last " + hours + "h to export from " + exportRoomId + ".");
-                    return;
+                // Lines are written as history is read, so the window is never held in memory
+                int count = 0;
+                ZoneId zoneId = ZoneId.of("America/Los_Angeles");
+                HistoryStream.Cursor events = historyManager.iterate(exportRoomId, null, HistoryStream.Direction.FORWARD,
+                        now - (long) hours * 3600L * 1000L, now, progress);
+                try (java.io.BufferedWriter w = new java.io.BufferedWriter(new java.io.FileWriter(filename))) {
+                    while (events.hasNext()) {
+                        EventStore.StoredEvent event = events.next();
+                        w.write(RoomHistoryManager.formatLine(event.ts, event.sender, event.body, zoneId) + "\n");
+                        count++;
+                    }
                 }
 
-                try (java.io.BufferedWriter w = new java.io.BufferedWriter(new java.io.FileWriter(filename))) {
-                    for (String l : lines) w.write(l + "\n");
+                if (count == 0) {
+                    java.nio.file.Files.deleteIfExists(java.nio.file.Paths.get(filename));
+                    matrixClient.sendMarkdown(responseRoomId, events.isTruncated()
+                            ? "Export failed: couldn't fetch the history of the last " + hours + "h from " + exportRoomId + "."
+                            : "No chat logs found for the last " + hours + "h to export from " + exportRoomId + ".");
+                    return;
                 }
 
-                matrixClient.sendMarkdown(responseRoomId, "Export complete: " + filename + " (" + lines.size() + " messages)");
-                System.out.println("Exported " + lines.size() + " messages to " + filename);
+                if (events.isTruncated()) {
+                    matrixClient.sendMarkdown(responseRoomId, "Export incomplete: " + filename + " (" + count + " messages). Part of the history couldn't be fetched.");
+                    return;
+                }
+                matrixClient.sendMarkdown(responseRoomId, "Export complete: " + filename + " (" + count + " messages)");
+                System.out.println("Exported " + count + " messages to " + filename);
             } catch (Exception e) {
                 System.out.println("Export failed: " + e.getMessage());
                 try { matrixClient.sendMarkdown(responseRoomId, "Export failed: " + e.getMessage()); } catch (Exception ignore) {}
             }
-        }).start();
+        });
     }
 
     private void handleArliAI(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId, String exportRoomId) {
@@ -108,7 +193,7 @@ public class CommandDispatcher {
             int hours = Integer.parseInt(matcher.group(2));
             String question = matcher.group(3) != null ? matcher.group(3).trim() : null;
             System.out.println("Received arliai command in " + roomId + " from " + sender);
-            new Thread(() -> executeArliQuery(hours, prevBatch, question, responseRoomId, exportRoomId, -1, timezoneAbbr)).start();
+            commandExecutor.submit("!arliai", sender, responseRoomId, () -> executeArliQuery(hours, prevBatch, question, responseRoomId, exportRoomId, -1, timezoneAbbr));
         }
     }
 
@@ -128,7 +213,7 @@ public class CommandDispatcher {
                     .toEpochMilli();
 
             System.out.println("Received arliai-ts command in " + roomId + " from " + sender);
-            new Thread(() -> executeArliQuery(durationHours, prevBatch, question, responseRoomId, exportRoomId, startTimestamp, timezoneAbbr)).start();
+            commandExecutor.submit("!arliai-ts", sender, responseRoomId, () -> executeArliQuery(durationHours, prevBatch, question, responseRoomId, exportRoomId, startTimestamp, timezoneAbbr));
         }
     }
 
@@ -141,50 +226,253 @@ public class CommandDispatcher {
         Matcher matcher = Pattern.compile("!cerebras\\s+([A-Z]{3})\\s+(\\d+)h(?:\\s+(.*))?").matcher(trimmed);
         if (matcher.matches()) {
             System.out.println("Received cerebras command in " + roomId + " from " + sender);
-            new Thread(() -> matrixClient.sendMarkdown(responseRoomId, "[CEREBRAS command queued but implementation moved to separate service]")).start();
+            commandExecutor.submit("!cerebras", sender, responseRoomId, () -> matrixClient.sendMarkdown(responseRoomId, "[CEREBRAS command queued but implementation moved to separate service]"));
         }
     }
 
     private void handleCerebrasWithTimestamp(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId, String exportRoomId) {
         System.out.println("Received cerebras-ts command in " + roomId + " from " + sender);
-        new Thread(() -> matrixClient.sendMarkdown(responseRoomId, "[CEREBRAS-TS command queued but implementation moved to separate service]")).start();
+        commandExecutor.submit("!cerebras-ts", sender, responseRoomId, () -> matrixClient.sendMarkdown(responseRoomId, "[CEREBRAS-TS command queued but implementation moved to separate service]"));
     }
 
     private void handleSemanticSearch(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId, String exportRoomId) {
         Matcher matcher = Pattern.compile("!semantic\\s+([A-Z]{3})\\s+(\\d+)h\\s+(.+)").matcher(trimmed);
         if (matcher.matches()) {
+            ZoneId zoneId = getZoneIdFromAbbr(matcher.group(1));
+            long windowMs = Long.parseLong(matcher.group(2)) * 3600L * 1000L;
+            String query = matcher.group(3).trim();
             System.out.println("Received semantic search command in " + roomId + " from " + sender);
-            new Thread(() -> matrixClient.sendMarkdown(responseRoomId, "[SEMANTIC command queued but implementation moved to separate service]")).start();
+            commandExecutor.submit("!semantic", sender, responseRoomId, () -> {
+                AtomicBoolean abort = new AtomicBoolean();
+                runningOperations.put(sender, abort);
+                try {
+                    long now = System.currentTimeMillis();
+                    if (windowMs >= SEMANTIC_INDEX_MIN_WINDOW_MS && semanticIndex.covers(now - windowMs)) {
+                        List<String> lines = new java.util.ArrayList<>();
+                        for (HnswIndex.Hit hit : semanticIndex.search(HashedEmbedder.embed(query), SEMANTIC_MAX_RESULTS, ts -> ts >= now - windowMs)) {
+                            if (hit.score < SEMANTIC_MIN_SIMILARITY) continue;
+                            // The index keeps only IDs; bodies come from the event store
+                            EventStore.StoredEvent event = historyManager.findStored(exportRoomId, hit.ts, hit.eventId);
+                            if (event != null) {
+                                lines.add(RoomHistoryManager.formatLine(event.ts, event.sender, event.body, zoneId) + String.format(" (%.2f)", hit.score));
+                            }
+                        }
+                        matrixClient.sendMarkdown(responseRoomId, lines.isEmpty() ? "No messages similar to `" + query + "` found."
+                                : "**Top " + lines.size() + " messages for `" + query + "` (indexed):**\n\n" + String.join("\n\n", lines));
+                        return;
+                    }
+                    // Vectors are computed once as messages are read, not per comparison
+                    List<SemanticSearchEngine.MessageEmbedding> messages;
+                    HistoryStream.Cursor history = historyManager.iterate(exportRoomId, prevBatch, HistoryStream.Direction.BACKWARD, now - windowMs, now);
+                    try (Stream<EventStore.StoredEvent> events = HistoryStream.stream(history)) {
+                        messages = events.takeWhile(event -> !abort.get())
+                                .map(event -> SemanticSearchEngine.embed(new SemanticSearchEngine.MessageEmbedding(event.eventId, event.body,
+                                        RoomHistoryManager.formatLine(event.ts, event.sender, event.body, zoneId), event.sender, null)))
+                                .toList();
+                    }
+                    if (abort.get()) {
+                        matrixClient.sendMarkdown(responseRoomId, "Semantic search aborted.");
+                        return;
+                    }
+                    List<SemanticSearchEngine.MessageEmbedding> results = SemanticSearchEngine.searchSemantic(query, messages, SEMANTIC_MAX_RESULTS, SEMANTIC_MIN_SIMILARITY);
+                    if (results.isEmpty()) {
+                        matrixClient.sendMarkdown(responseRoomId, "No messages similar to `" + query + "` found in " + messages.size() + " messages." + partialNote(history));
+                        return;
+                    }
+                    StringBuilder reply = new StringBuilder("**Top " + results.size() + " of " + messages.size() + " messages for `" + query + "`:**\n\n");
+                    for (SemanticSearchEngine.MessageEmbedding result : results) {
+                        reply.append(result.timestamp).append(String.format(" (%.2f)", result.embedding[0])).append("\n\n");
+                    }
+                    matrixClient.sendMarkdown(responseRoomId, reply.toString().trim() + partialNote(history));
+                } finally {
+                    runningOperations.remove(sender, abort);
+                }
+            });
         }
     }
 
     private void handleGrep(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId, String exportRoomId) {
         Matcher matcher = Pattern.compile("!grep\\s+([A-Z]{3})\\s+(\\d+)([dh])\\s+(.+)").matcher(trimmed);
         if (matcher.matches()) {
+            ZoneId zoneId = getZoneIdFromAbbr(matcher.group(1));
+            long windowMs = Long.parseLong(matcher.group(2)) * ("d".equals(matcher.group(3)) ? 24L : 1L) * 3600L * 1000L;
+            String query = matcher.group(4).trim();
+            Pattern grepPattern;
+            boolean regex = query.length() > 2 && query.startsWith("/") && query.endsWith("/");
+            if (!regex) {
+                grepPattern = Pattern.compile(Pattern.quote(query), Pattern.CASE_INSENSITIVE);
+            } else if (query.length() - 2 > GREP_MAX_REGEX_LENGTH) {
+                matrixClient.sendMarkdownAsync(responseRoomId, "Regex is too long (max " + GREP_MAX_REGEX_LENGTH + " characters).");
+                return;
+            } else {
+                try {
+                    grepPattern = Pattern.compile(query.substring(1, query.length() - 1), Pattern.CASE_INSENSITIVE);
+                } catch (PatternSyntaxException e) {
+                    matrixClient.sendMarkdownAsync(responseRoomId, "Invalid regex: " + e.getDescription());
+                    return;
+                }
+            }
             System.out.println("Received grep command in " + roomId + " from " + sender);
-            new Thread(() -> matrixClient.sendMarkdown(responseRoomId, "[GREP command queued but implementation moved to separate service]")).start();
+            commandExecutor.submit("!grep", sender, responseRoomId, () -> {
+                AtomicBoolean abort = new AtomicBoolean();
+                runningOperations.put(sender, abort);
+                try {
+                    long now = System.currentTimeMillis();
+                    // Newest first; paging stops once enough matches were found or on !abort
+                    List<String> matches;
+                    HistoryStream.Cursor history = historyManager.iterate(exportRoomId, prevBatch, HistoryStream.Direction.BACKWARD, now - windowMs, now);
+                    try (Stream<EventStore.StoredEvent> events = HistoryStream.stream(history)) {
+                        matches = events.takeWhile(event -> !abort.get())
+                                .filter(event -> grepFind(grepPattern, event.body))
+                                .limit(GREP_MAX_RESULTS)
+                                .map(event -> RoomHistoryManager.formatLine(event.ts, event.sender, event.body, zoneId))
+                                .toList();
+                    }
+                    if (matches.isEmpty()) {
+                        matrixClient.sendMarkdown(responseRoomId, "No messages matching `" + query + "` found." + partialNote(history));
+                    } else {
+                        matrixClient.sendMarkdown(responseRoomId, "**" + matches.size() + " match(es) for `" + query + "`, newest first:**\n\n" + String.join("\n\n", matches) + partialNote(history));
+                    }
+                } finally {
+                    runningOperations.remove(sender, abort);
+                }
+            });
         }
     }
 
+    /**
+     * Thrown by {@link DeadlineText} once a match has run past its budget
+     */
+    private static class MatchTimeoutException extends RuntimeException {
+        MatchTimeoutException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Text whose chars can only be read until a deadline. The regex engine reads the input
+     * through charAt, so a catastrophically backtracking pattern fails fast instead of
+     * tying up a command thread.
+     */
+    private static class DeadlineText implements CharSequence {
+        private final String text;
+        private final long deadline;
+
+        DeadlineText(String text, long deadline) {
+            this.text = text;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new MatchTimeoutException();
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new DeadlineText(text.substring(start, end), deadline);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Find the pattern in a message within {@link #GREP_MATCH_BUDGET_MS}; a message that takes
+     * longer counts as no match
+     */
+    static boolean grepFind(Pattern pattern, String body) {
+        try {
+            return pattern.matcher(new DeadlineText(body, System.nanoTime() + GREP_MATCH_BUDGET_MS * 1_000_000L)).find();
+        } catch (MatchTimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tells the reader when history ended early, so an incomplete answer isn't taken as complete
+     */
+    private static String partialNote(HistoryStream.Cursor history) {
+        return history != null && history.isTruncated() ? "\n\n_Part of the history couldn't be fetched, so this may be incomplete._" : "";
+    }
+
     private void handleGrepSlow(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId, String exportRoomId) {
         Matcher matcher = Pattern.compile("!grep-slow\\s+([A-Z]{3})\\s+(\\d+)([dh])\\s+(.+)").matcher(trimmed);
         if (matcher.matches()) {
             System.out.println("Received grep-slow command in " + roomId + " from " + sender);
-            new Thread(() -> matrixClient.sendMarkdown(responseRoomId, "[GREP-SLOW command queued but implementation moved to separate service]")).start();
+            commandExecutor.submit("!grep-slow", sender, responseRoomId, () -> matrixClient.sendMarkdown(responseRoomId, "[GREP-SLOW command queued but implementation moved to separate service]"));
         }
     }
 
     private void handleSearch(String trimmed, String roomId, String sender, String prevBatch, String responseRoomId, String exportRoomId) {
         Matcher matcher = Pattern.compile("!search\\s+([A-Z]{3})\\s+(\\d+)([dh])\\s+(.+)").matcher(trimmed);
         if (matcher.matches()) {
+            ZoneId zoneId = getZoneIdFromAbbr(matcher.group(1));
+            long windowMs = Long.parseLong(matcher.group(2)) * ("d".equals(matcher.group(3)) ? 24L : 1L) * 3600L * 1000L;
+            String query = matcher.group(4).trim();
             System.out.println("Received search command in " + roomId + " from " + sender);
-            new Thread(() -> matrixClient.sendMarkdown(responseRoomId, "[SEARCH command queued but implementation moved to separate service]")).start();
+            commandExecutor.submit("!search", sender, responseRoomId, () -> {
+                // Looked up only, so queries for unseen words don't grow the shared dictionary
+                PositionalIndex.Query parsed = PositionalIndex.Query.parseKnown(query);
+                if (parsed.isEmpty()) {
+                    matrixClient.sendMarkdown(responseRoomId, "Search for at least one word of " + Tokenizer.MIN_TERM_LENGTH + " or more characters.");
+                    return;
+                }
+                AtomicBoolean abort = new AtomicBoolean();
+                runningOperations.put(sender, abort);
+                try {
+                    long now = System.currentTimeMillis();
+                    List<String> matches;
+                    String count;
+                    HistoryStream.Cursor history = null;
+                    if (searchIndex.covers(now - windowMs)) {
+                        PositionalIndex.Matches found = searchIndex.search(parsed, now - windowMs, now, SEARCH_MAX_RESULTS);
+                        // The index keeps only IDs; bodies come from the event store
+                        matches = found.newest.stream()
+                                .map(hit -> historyManager.findStored(exportRoomId, hit.ts, hit.eventId))
+                                .filter(java.util.Objects::nonNull)
+                                .map(event -> RoomHistoryManager.formatLine(event.ts, event.sender, event.body, zoneId))
+                                .toList();
+                        count = found.total > matches.size() ? matches.size() + " of " + found.total : String.valueOf(matches.size());
+                    } else {
+                        // Older than the index: read the window newest first, as !grep does. Those
+                        // messages may hold words the dictionary hasn't seen, so the query interns.
+                        PositionalIndex.Query scanned = PositionalIndex.Query.parse(query);
+                        history = historyManager.iterate(exportRoomId, prevBatch, HistoryStream.Direction.BACKWARD, now - windowMs, now);
+                        try (Stream<EventStore.StoredEvent> events = HistoryStream.stream(history)) {
+                            matches = events.takeWhile(event -> !abort.get())
+                                    .filter(event -> scanned.matches(event.body))
+                                    .limit(SEARCH_MAX_RESULTS)
+                                    .map(event -> RoomHistoryManager.formatLine(event.ts, event.sender, event.body, zoneId))
+                                    .toList();
+                        }
+                        count = String.valueOf(matches.size());
+                    }
+                    if (matches.isEmpty()) {
+                        matrixClient.sendMarkdown(responseRoomId, "No messages matching `" + query + "` found." + partialNote(history));
+                    } else {
+                        matrixClient.sendMarkdown(responseRoomId, "**" + count + " match(es) for `" + query + "`, newest first:**\n\n" + String.join("\n\n", matches) + partialNote(history));
+                    }
+                } finally {
+                    runningOperations.remove(sender, abort);
+                }
+            });
         }
     }
 
     private void handleAutoSummary(String roomId, String sender, String prevBatch, String responseRoomId, String exportRoomId) {
         System.out.println("Received autosummary command in " + roomId + " from " + sender);
-        new Thread(() -> autoSummaryService.executeAutoSummary(sender, responseRoomId, exportRoomId)).start();
+        commandExecutor.submit("!unreadarliai", sender, responseRoomId, () -> autoSummaryService.executeAutoSummary(sender, responseRoomId, exportRoomId));
     }
 
     private void handleAbort(String sender, String responseRoomId) {
@@ -200,18 +488,16 @@ public class CommandDispatcher {
 
     private void handleHelp(String responseRoomId) {
         System.out.println("Received help command");
-        String helpText = "**Matrix Bot Commands (Primary Use Case: !last)**\n\n" +
-            "**!last** - Show your last message and read receipt status in export room (PRIMARY)\n\n" +
-            "**Additional Commands:**\n\n" +
-            "**!unreadarliai** - Summarize unread messages (>100 messages, >6 hours old) using Arli AI\n\n" +
-            "**!ping** - Measure and report ping latency\n\n" +
-            "**!testcommand** - Test if the bot is responding\n\n" +
-            "**!export<duration>h** - Export chat history (e.g., `!export24h`)\n\n" +
-            "**!arliai, !cerebras** - Query AI with chat logs\n\n" +
-            "**!semantic** - AI-free semantic search using local embeddings\n\n" +
-            "**!grep, !grep-slow, !search** - Pattern and term-based searches\n\n" +
-            "**!abort** - Abort currently running operations";
-        matrixClient.sendMarkdown(responseRoomId, helpText);
+        matrixClient.sendTemplateAsync(responseRoomId, helpTemplate);
+    }
+
+    private void handleStats(String responseRoomId) {
+        System.out.println("Received stats command");
+        StringBuilder report = new StringBuilder(commandExecutor.formatStats());
+        for (Supplier<String> source : statsSources) {
+            report.append("\n").append(source.get());
+        }
+        matrixClient.sendMarkdown(responseRoomId, report.toString());
     }
 
     private ZoneId getZoneIdFromAbbr(String timezoneAbbr) {
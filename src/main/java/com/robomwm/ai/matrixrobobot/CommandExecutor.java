@@ -0,0 +1,232 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs command handlers on named virtual threads with a global and a per-user concurrency limit.
+ * Admission is bounded: once too many commands are waiting for a permit, new ones are
+ * rejected with a "busy" reply instead of piling up. Each user also has their own cap on
+ * waiting commands, checked first, so one user flooding commands cannot fill the shared queue.
+ */
+public class CommandExecutor {
+
+    /**
+     * Per command type counters
+     */
+    public static class CommandStats {
+        public final AtomicLong submitted = new AtomicLong();
+        public final AtomicLong rejected = new AtomicLong();
+        public final AtomicInteger queued = new AtomicInteger();
+        public final LatencyStats waitTime = new LatencyStats();
+        public final LatencyStats runTime = new LatencyStats();
+    }
+
+    /**
+     * A user's permits and how many of their commands are waiting or running; dropped once none are
+     */
+    private static class UserSlots {
+        final Semaphore permits;
+        int admitted;
+
+        UserSlots(int perUserLimit) {
+            this.permits = new Semaphore(perUserLimit, true);
+        }
+    }
+
+    private final MatrixClient matrixClient;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("command-", 0).factory());
+    private final Semaphore globalPermits;
+    private final int globalLimit;
+    private final int perUserLimit;
+    private final int maxQueued;
+    private final int maxQueuedPerUser;
+    private final Map<String, UserSlots> users = new ConcurrentHashMap<>();
+    private final Map<String, CommandStats> stats = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile boolean shuttingDown;
+
+    /**
+     * @param maxQueued Commands waiting for a permit across all users
+     * @param maxQueuedPerUser Commands one user may have waiting on top of the ones running
+     */
+    public CommandExecutor(MatrixClient matrixClient, int globalLimit, int perUserLimit, int maxQueued, int maxQueuedPerUser) {
+        this.matrixClient = matrixClient;
+        this.globalPermits = new Semaphore(globalLimit, true);
+        this.globalLimit = globalLimit;
+        this.perUserLimit = perUserLimit;
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerUser = maxQueuedPerUser;
+    }
+
+    /**
+     * Submit a command for execution.
+     * @param commandType Name used for metrics (e.g. "!export")
+     * @param userId The user the command runs for, used for the per-user limit
+     * @param responseRoomId Room to send the "busy" reply to, or null for background work
+     * @param task The command body
+     * @return false if the command was rejected
+     */
+    public boolean submit(String commandType, String userId, String responseRoomId, Runnable task) {
+        CommandStats typeStats = stats.computeIfAbsent(commandType, k -> new CommandStats());
+        typeStats.submitted.incrementAndGet();
+
+        if (shuttingDown) {
+            reject(commandType, typeStats, userId, responseRoomId, "shutting down");
+            return false;
+        }
+        String userKey = userId == null ? "" : userId;
+        UserSlots slots = admit(userKey);
+        if (slots == null) {
+            typeStats.rejected.incrementAndGet();
+            System.out.println("Rejected " + commandType + " from " + userId + ": too many queued for this user");
+            if (responseRoomId != null) {
+                matrixClient.sendTextCoalescedAsync(responseRoomId, "You already have commands waiting, please try " + commandType + " again once they finish.");
+            }
+            return false;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            release(userKey);
+            reject(commandType, typeStats, userId, responseRoomId, "queue full");
+            return false;
+        }
+        typeStats.queued.incrementAndGet();
+
+        long enqueuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> run(commandType, typeStats, userKey, slots, enqueuedAt, task));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            typeStats.queued.decrementAndGet();
+            release(userKey);
+            reject(commandType, typeStats, userId, responseRoomId, "shutting down");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Count a command against the user's running and waiting cap
+     * @return the user's slots, or null if the cap is reached
+     */
+    private UserSlots admit(String userKey) {
+        boolean[] admitted = new boolean[1];
+        UserSlots slots = users.compute(userKey, (k, existing) -> {
+            UserSlots s = existing != null ? existing : new UserSlots(perUserLimit);
+            if (s.admitted < perUserLimit + maxQueuedPerUser) {
+                s.admitted++;
+                admitted[0] = true;
+            }
+            return s.admitted == 0 ? null : s;
+        });
+        return admitted[0] ? slots : null;
+    }
+
+    /**
+     * A command of the user finished or was turned away; forget the user once none are left
+     */
+    private void release(String userKey) {
+        users.computeIfPresent(userKey, (k, s) -> --s.admitted == 0 ? null : s);
+    }
+
+    private void reject(String commandType, CommandStats typeStats, String userId, String responseRoomId, String reason) {
+        typeStats.rejected.incrementAndGet();
+        System.out.println("Rejected " + commandType + " from " + userId + ": " + reason);
+        if (responseRoomId != null) {
+            matrixClient.sendTextCoalescedAsync(responseRoomId, "I'm busy right now, please try " + commandType + " again in a moment.");
+        }
+    }
+
+    private void run(String commandType, CommandStats typeStats, String userId, UserSlots slots, long enqueuedAt, Runnable task) {
+        Semaphore userPermit = slots.permits;
+        boolean userAcquired = false;
+        boolean globalAcquired = false;
+        try {
+            // Per-user first so a single flooding user cannot hold global permits while waiting
+            userPermit.acquire();
+            userAcquired = true;
+            globalPermits.acquire();
+            globalAcquired = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+            typeStats.queued.decrementAndGet();
+        }
+
+        try {
+            if (!globalAcquired) {
+                typeStats.rejected.incrementAndGet();
+                return;
+            }
+            long startedAt = System.nanoTime();
+            typeStats.waitTime.record(startedAt - enqueuedAt);
+            System.out.println("Running " + commandType + " for " + userId + " after " + (startedAt - enqueuedAt) / 1_000_000 + " ms queued (queue depth " + queued.get() + ")");
+            try {
+                task.run();
+            } catch (Throwable t) {
+                System.out.println("Command " + commandType + " failed: " + t.getMessage());
+                t.printStackTrace();
+            } finally {
+                typeStats.runTime.record(System.nanoTime() - startedAt);
+            }
+        } finally {
+            if (globalAcquired) globalPermits.release();
+            if (userAcquired) userPermit.release();
+            release(userId);
+        }
+    }
+
+    /**
+     * Current number of commands waiting for a permit
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Human-readable queue depth and wait/run times per command type
+     */
+    public String formatStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("**Command executor** (queued: ").append(queued.get()).append("/").append(maxQueued)
+                .append(", users: ").append(users.size())
+                .append(", running: ").append(globalLimit - globalPermits.availablePermits()).append("/").append(globalLimit).append(")\n\n");
+        for (Map.Entry<String, CommandStats> entry : new TreeMap<>(stats).entrySet()) {
+            CommandStats s = entry.getValue();
+            sb.append("- `").append(entry.getKey()).append("` submitted=").append(s.submitted.get())
+                    .append(" rejected=").append(s.rejected.get())
+                    .append(" queued=").append(s.queued.get())
+                    .append(" wait[").append(s.waitTime.summary()).append("]")
+                    .append(" run[").append(s.runTime.summary()).append("]\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stop admitting new commands and wait for running and queued ones to finish.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        shuttingDown = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, unit)) {
+                System.out.println("Command executor did not drain in time, interrupting " + queued.get() + " queued command(s)");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        System.out.println(formatStats());
+    }
+}
@@ -0,0 +1,768 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * On-disk store of m.room.message events for selected rooms (the export room), so history
+ * queries become local reads instead of dozens of /messages round-trips.
+ *
+ * Each room directory holds append-only segment files. Every segment is one run of records
+ * sorted by timestamp, with a sparse time index (.idx, one entry every {@link #INDEX_INTERVAL}
+ * records). The manifest lists the segments and the coverage: time ranges known to be complete,
+ * each with the pagination token that continues backwards from its lower edge. Sync timelines
+ * extend the live range; gaps are backfilled from the homeserver by {@link RoomHistoryManager}.
+ * Reads go through {@link SegmentReader}, which maps the overlapping segments, merges them by
+ * timestamp and drops duplicates at the seams. Once a room has too many segments, a background
+ * thread merges the smallest ones without holding the room's lock while it copies.
+ */
+public class EventStore {
+    static final int INDEX_INTERVAL = 64;
+    private static final long MAX_SEGMENT_BYTES = 64L << 20;
+    private static final int COMPACT_SEGMENT_COUNT = 32;
+    private static final int COMPACT_MAX_INPUTS = 16;
+
+    /**
+     * A stored message
+     */
+    public static class StoredEvent {
+        public final long ts;
+        public final String eventId;
+        public final String sender;
+        public final String body;
+
+        public StoredEvent(long ts, String eventId, String sender, String body) {
+            this.ts = ts;
+            this.eventId = eventId;
+            this.sender = sender;
+            this.body = body;
+        }
+    }
+
+    public static class SegmentInfo {
+        public long id;
+        public long minTs = Long.MAX_VALUE;
+        public long maxTs = Long.MIN_VALUE;
+        public long length;
+        public int count;
+    }
+
+    /**
+     * A time range [from, to] for which every message is in the store
+     */
+    public static class Coverage {
+        public long from;
+        public long to;
+        /** Pagination token continuing backwards from {@code from}, if known */
+        public String lowerToken;
+        /** Still being extended by the sync stream */
+        public boolean live;
+    }
+
+    public static class Manifest {
+        public long nextSegmentId;
+        public List<SegmentInfo> segments = new ArrayList<>();
+        public List<Coverage> coverage = new ArrayList<>();
+    }
+
+    /**
+     * Sparse time index of a segment; entries are only ever appended
+     */
+    static class SegmentIndex {
+        long[] ts = new long[16];
+        long[] offsets = new long[16];
+        int size;
+
+        void add(long timestamp, long offset) {
+            if (size == ts.length) {
+                ts = Arrays.copyOf(ts, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            ts[size] = timestamp;
+            offsets[size] = offset;
+            size++;
+        }
+
+        /**
+         * Offset of the index block that may contain the first record at or after the timestamp
+         */
+        long seek(long timestamp, int entries) {
+            int lo = 0;
+            int hi = entries - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ts[mid] < timestamp) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found < 0 ? 0 : offsets[found];
+        }
+    }
+
+    /**
+     * Immutable view of a segment for a reader; data past length may be in flight
+     */
+    static class SegmentSnapshot {
+        final Path file;
+        final long minTs;
+        final long maxTs;
+        final long length;
+        final SegmentIndex index;
+        final int indexEntries;
+
+        SegmentSnapshot(Path file, SegmentInfo info, SegmentIndex index) {
+            this.file = file;
+            this.minTs = info.minTs;
+            this.maxTs = info.maxTs;
+            this.length = info.length;
+            this.index = index;
+            this.indexEntries = index.size;
+        }
+    }
+
+    private class RoomStore {
+        final Path dir;
+        Manifest manifest = new Manifest();
+        final Map<Long, SegmentIndex> indexes = new HashMap<>();
+        boolean compacting;
+
+        RoomStore(Path dir) {
+            this.dir = dir;
+        }
+
+        Path segmentFile(long id) {
+            return dir.resolve(id + ".seg");
+        }
+
+        Path indexFile(long id) {
+            return dir.resolve(id + ".idx");
+        }
+    }
+
+    private final ObjectMapper mapper;
+    private final Map<String, RoomStore> rooms = new HashMap<>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("event-store-compact").factory());
+
+    /**
+     * @param baseDir Directory holding one subdirectory per stored room
+     * @param roomIds Rooms to store
+     */
+    public EventStore(ObjectMapper mapper, Path baseDir, Set<String> roomIds) {
+        this.mapper = mapper;
+        for (String roomId : roomIds) {
+            RoomStore store = new RoomStore(baseDir.resolve(URLEncoder.encode(roomId, StandardCharsets.UTF_8)));
+            try {
+                Files.createDirectories(store.dir);
+                load(store);
+            } catch (IOException e) {
+                System.err.println("Error loading event store for " + roomId + ", starting empty: " + e.getMessage());
+                store.manifest = new Manifest();
+                // Don't reuse the IDs of segment files that may still be on disk
+                store.manifest.nextSegmentId = System.currentTimeMillis();
+                store.indexes.clear();
+            }
+            rooms.put(roomId, store);
+        }
+    }
+
+    public boolean isStored(String roomId) {
+        return rooms.containsKey(roomId);
+    }
+
+    /**
+     * Append sync timeline events and extend the live coverage of every stored room
+     */
+    public void apply(SyncBatch batch) {
+        Map<String, SyncBatch.JoinedRoom> joined = new HashMap<>();
+        for (SyncBatch.JoinedRoom room : batch.joinedRooms) {
+            joined.put(room.roomId, room);
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, RoomStore> entry : rooms.entrySet()) {
+            RoomStore store = entry.getValue();
+            SyncBatch.JoinedRoom room = joined.get(entry.getKey());
+            synchronized (store) {
+                try {
+                    List<StoredEvent> events = new ArrayList<>();
+                    if (room != null) {
+                        for (SyncBatch.TimelineEvent ev : room.timeline) {
+                            if (ev.eventId != null && ev.sender != null && ev.body != null) {
+                                events.add(new StoredEvent(ev.originServerTs, ev.eventId, ev.sender, ev.body));
+                            }
+                        }
+                        events.sort(Comparator.comparingLong(e -> e.ts));
+                        append(store, events);
+                    }
+                    extendLive(store, room, events, now);
+                    saveManifest(store);
+                    maybeCompact(entry.getKey(), store);
+                } catch (IOException e) {
+                    // The batch may be missing from disk, so the live range must not run on across it
+                    System.err.println("Error writing event store for " + entry.getKey() + ", closing the live range: " + e.getMessage());
+                    closeLive(store);
+                }
+            }
+        }
+    }
+
+    private void extendLive(RoomStore store, SyncBatch.JoinedRoom room, List<StoredEvent> events, long now) {
+        Coverage live = null;
+        for (Coverage c : store.manifest.coverage) {
+            if (c.live) {
+                live = c;
+            }
+        }
+        long newest = events.isEmpty() ? now : Math.max(now, events.get(events.size() - 1).ts);
+        if (live != null && (room == null || !room.limited)) {
+            live.to = Math.max(live.to, newest);
+            return;
+        }
+        // Gapped timeline or no live range yet: the new live range starts at this batch
+        if (live != null) {
+            live.live = false;
+        }
+        Coverage started = new Coverage();
+        started.from = events.isEmpty() ? now : events.get(0).ts;
+        started.to = newest;
+        started.lowerToken = room != null ? room.prevBatch : null;
+        started.live = true;
+        store.manifest.coverage.add(started);
+        mergeCoverage(store);
+    }
+
+    /**
+     * Stop extending the live ranges, e.g. after a cold start where events may have been missed
+     */
+    public void closeLive() {
+        for (RoomStore store : rooms.values()) {
+            synchronized (store) {
+                closeLive(store);
+            }
+        }
+    }
+
+    /**
+     * The next batch starts a new live range, leaving a gap for backfill in between
+     */
+    private void closeLive(RoomStore store) {
+        store.manifest.coverage.forEach(c -> c.live = false);
+        try {
+            saveManifest(store);
+        } catch (IOException e) {
+            System.err.println("Error writing event store manifest: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start of the range sync is extending, Long.MAX_VALUE if there is none
+     */
+    public long liveFrom(String roomId) {
+        RoomStore store = rooms.get(roomId);
+        synchronized (store) {
+            for (Coverage c : store.manifest.coverage) {
+                if (c.live) {
+                    return c.from;
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Uncovered sub-ranges of [from, to], newest first
+     */
+    public List<long[]> gaps(String roomId, long from, long to) {
+        RoomStore store = rooms.get(roomId);
+        List<long[]> gaps = new ArrayList<>();
+        synchronized (store) {
+            long upper = to;
+            List<Coverage> coverage = store.manifest.coverage;
+            for (int i = coverage.size() - 1; i >= 0 && upper >= from; i--) {
+                Coverage c = coverage.get(i);
+                if (c.from > upper) {
+                    continue;
+                }
+                if (c.to < upper) {
+                    gaps.add(new long[]{Math.max(from, c.to + 1), upper});
+                }
+                upper = c.from - 1;
+            }
+            if (upper >= from) {
+                gaps.add(new long[]{from, upper});
+            }
+        }
+        return gaps;
+    }
+
+    /**
+     * Pagination token continuing backwards from the covered range that starts right after the timestamp
+     */
+    public String tokenBelow(String roomId, long ts) {
+        RoomStore store = rooms.get(roomId);
+        synchronized (store) {
+            for (Coverage c : store.manifest.coverage) {
+                if (c.from == ts + 1) {
+                    return c.lowerToken;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Store events fetched from the homeserver and mark [from, to] as covered
+     * @param events Events in any order; those already inside covered ranges are skipped
+     * @param lowerToken Pagination token continuing backwards from {@code from}
+     */
+    public void addBackfill(String roomId, List<StoredEvent> events, long from, long to, String lowerToken) {
+        RoomStore store = rooms.get(roomId);
+        synchronized (store) {
+            List<StoredEvent> fresh = new ArrayList<>();
+            for (StoredEvent ev : events) {
+                if (!isCovered(store, ev.ts)) {
+                    fresh.add(ev);
+                }
+            }
+            fresh.sort(Comparator.comparingLong(e -> e.ts));
+            try {
+                append(store, fresh);
+                Coverage c = new Coverage();
+                c.from = from;
+                c.to = to;
+                c.lowerToken = lowerToken;
+                store.manifest.coverage.add(c);
+                mergeCoverage(store);
+                saveManifest(store);
+                maybeCompact(roomId, store);
+            } catch (IOException e) {
+                System.err.println("Error writing event store backfill for " + roomId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Events with from <= ts <= to, oldest first
+     */
+    public List<StoredEvent> read(String roomId, long from, long to) throws IOException {
+        List<StoredEvent> result = new ArrayList<>();
+        scan(roomId, from, to, record -> result.add(new StoredEvent(record.ts(), record.eventId(), record.sender(), record.body())));
+        return result;
+    }
+
+    /**
+     * @return the stored event with this ID and timestamp, or null if there is none
+     */
+    public StoredEvent find(String roomId, long ts, String eventId) throws IOException {
+        StoredEvent[] found = new StoredEvent[1];
+        scan(roomId, ts, ts, record -> {
+            if (!eventId.equals(record.eventId())) {
+                return true;
+            }
+            found[0] = new StoredEvent(record.ts(), record.eventId(), record.sender(), record.body());
+            return false;
+        });
+        return found[0];
+    }
+
+    /**
+     * Start of the newest count events with ts >= from, so an index with a size cap can skip
+     * the older ones instead of adding and then dropping them
+     * @return the timestamp of the oldest of them, or from if there are no more than count
+     */
+    public long newestFrom(String roomId, long from, int count) throws IOException {
+        if (count <= 0) {
+            return from;
+        }
+        // Ring of the last count timestamps seen; oldest first, so the slot about to be overwritten is the answer
+        long[] recent = new long[count];
+        long[] seen = new long[1];
+        scan(roomId, from, Long.MAX_VALUE, record -> {
+            recent[(int) (seen[0]++ % count)] = record.ts();
+            return true;
+        });
+        return seen[0] <= count ? from : recent[(int) (seen[0] % count)];
+    }
+
+    /**
+     * Visit events with from <= ts <= to, oldest first, as flyweight views over the mapped segments
+     */
+    public void scan(String roomId, long from, long to, SegmentReader.RecordVisitor visitor) throws IOException {
+        SegmentReader.scan(snapshot(roomId, from, to), from, to, visitor);
+    }
+
+    /**
+     * Lazily merged events with from <= ts <= to, oldest first, for pull-based iteration
+     */
+    SegmentReader.Merge open(String roomId, long from, long to) throws IOException {
+        return new SegmentReader.Merge(snapshot(roomId, from, to), from, to);
+    }
+
+    private List<SegmentSnapshot> snapshot(String roomId, long from, long to) {
+        RoomStore store = rooms.get(roomId);
+        synchronized (store) {
+            return snapshot(store, from, to);
+        }
+    }
+
+    private List<SegmentSnapshot> snapshot(RoomStore store, long from, long to) {
+        List<SegmentSnapshot> snapshots = new ArrayList<>();
+        for (SegmentInfo info : store.manifest.segments) {
+            if (info.count > 0 && info.maxTs >= from && info.minTs <= to) {
+                snapshots.add(new SegmentSnapshot(store.segmentFile(info.id), info, store.indexes.get(info.id)));
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Append events in order; the caller forces and closes the writer before saving the manifest
+     */
+    private void append(RoomStore store, List<StoredEvent> run) throws IOException {
+        if (run.isEmpty()) {
+            return;
+        }
+        try (SegmentWriter writer = new SegmentWriter(store, store.manifest.segments, store.indexes)) {
+            for (StoredEvent ev : run) {
+                writer.write(ev);
+            }
+        }
+    }
+
+    /**
+     * Appends to the last of the given segments, starting a new one whenever a record would
+     * break the segment's timestamp order or the segment is full. Writes into the manifest's
+     * own list happen under the room's lock; compaction writes into a list of its own.
+     */
+    private class SegmentWriter implements AutoCloseable {
+        final RoomStore store;
+        final List<SegmentInfo> segments;
+        final Map<Long, SegmentIndex> indexes;
+        SegmentInfo active;
+        FileChannel data;
+        FileChannel index;
+
+        SegmentWriter(RoomStore store, List<SegmentInfo> segments, Map<Long, SegmentIndex> indexes) {
+            this.store = store;
+            this.segments = segments;
+            this.indexes = indexes;
+            this.active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        }
+
+        void write(StoredEvent ev) throws IOException {
+            writeRecord(ev.ts, encode(ev));
+        }
+
+        void write(SegmentReader.RecordView record) throws IOException {
+            writeRecord(record.ts(), record.rawRecord());
+        }
+
+        private void writeRecord(long ts, ByteBuffer record) throws IOException {
+            if (active == null || ts < active.maxTs || active.length >= MAX_SEGMENT_BYTES) {
+                closeFiles();
+                active = newSegment();
+            }
+            if (data == null) {
+                data = FileChannel.open(store.segmentFile(active.id), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                index = FileChannel.open(store.indexFile(active.id), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            if (active.count % INDEX_INTERVAL == 0) {
+                ByteBuffer entry = ByteBuffer.allocate(16).putLong(ts).putLong(active.length).flip();
+                index.write(entry, (long) (active.count / INDEX_INTERVAL) * 16);
+                indexes.get(active.id).add(ts, active.length);
+            }
+            long position = active.length;
+            while (record.hasRemaining()) {
+                position += data.write(record, position);
+            }
+            active.length = position;
+            active.count++;
+            active.minTs = Math.min(active.minTs, ts);
+            active.maxTs = Math.max(active.maxTs, ts);
+        }
+
+        private void closeFiles() throws IOException {
+            if (data != null) {
+                // Data is durable before the manifest that references it
+                data.force(false);
+                index.force(false);
+                data.close();
+                index.close();
+                data = null;
+                index = null;
+            }
+        }
+
+        private SegmentInfo newSegment() throws IOException {
+            SegmentInfo info = new SegmentInfo();
+            synchronized (store) {
+                info.id = store.manifest.nextSegmentId++;
+            }
+            // Left over from a compaction interrupted before its manifest was saved
+            Files.deleteIfExists(store.segmentFile(info.id));
+            Files.deleteIfExists(store.indexFile(info.id));
+            segments.add(info);
+            indexes.put(info.id, new SegmentIndex());
+            return info;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeFiles();
+        }
+    }
+
+    /**
+     * Record layout: int length (of the rest), long ts, u16 + event ID, u16 + sender, int + body (UTF-8)
+     */
+    static ByteBuffer encode(StoredEvent ev) {
+        byte[] eventId = ev.eventId.getBytes(StandardCharsets.UTF_8);
+        byte[] sender = ev.sender.getBytes(StandardCharsets.UTF_8);
+        byte[] body = ev.body.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 2 + eventId.length + 2 + sender.length + 4 + body.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).putLong(ev.ts);
+        buffer.putShort((short) eventId.length).put(eventId);
+        buffer.putShort((short) sender.length).put(sender);
+        buffer.putInt(body.length).put(body);
+        return buffer.flip();
+    }
+
+    /**
+     * Queue a compaction once backfills and out-of-order timelines have produced too many
+     * segments; the caller holds the room's lock
+     */
+    private void maybeCompact(String roomId, RoomStore store) {
+        if (store.manifest.segments.size() > COMPACT_SEGMENT_COUNT && !store.compacting) {
+            store.compacting = true;
+            compactor.execute(() -> compact(roomId, store));
+        }
+    }
+
+    /**
+     * Merge the smallest segments of a room into sorted, deduplicated ones right away
+     * @return whether anything was merged
+     */
+    boolean compact(String roomId) {
+        RoomStore store = rooms.get(roomId);
+        synchronized (store) {
+            if (store.compacting) {
+                return false;
+            }
+            store.compacting = true;
+        }
+        return compact(roomId, store);
+    }
+
+    /**
+     * Size-tiered: up to {@link #COMPACT_MAX_INPUTS} of the smallest segments, together no
+     * bigger than a full segment, are copied into new segments without holding the lock, so
+     * sync appends carry on meanwhile. Only the swap in the manifest happens under the lock.
+     * Full segments are never rewritten, and the segment being appended to is left alone.
+     */
+    private boolean compact(String roomId, RoomStore store) {
+        List<SegmentInfo> inputs;
+        List<SegmentSnapshot> snapshots = new ArrayList<>();
+        synchronized (store) {
+            inputs = pickCompaction(store.manifest.segments);
+            if (inputs.size() < 2) {
+                store.compacting = false;
+                return false;
+            }
+            for (SegmentInfo info : inputs) {
+                snapshots.add(new SegmentSnapshot(store.segmentFile(info.id), info, store.indexes.get(info.id)));
+            }
+        }
+
+        long started = System.nanoTime();
+        List<SegmentInfo> outputs = new ArrayList<>();
+        Map<Long, SegmentIndex> outputIndexes = new HashMap<>();
+        int[] events = new int[1];
+        try {
+            try (SegmentWriter writer = new SegmentWriter(store, outputs, outputIndexes)) {
+                SegmentReader.scan(snapshots, Long.MIN_VALUE, Long.MAX_VALUE, record -> {
+                    writer.write(record);
+                    events[0]++;
+                    return true;
+                });
+            }
+            synchronized (store) {
+                List<SegmentInfo> segments = store.manifest.segments;
+                int at = segments.size();
+                for (SegmentInfo info : inputs) {
+                    at = Math.min(at, segments.indexOf(info));
+                }
+                List<SegmentInfo> before = new ArrayList<>(segments);
+                segments.removeAll(inputs);
+                segments.addAll(at, outputs);
+                try {
+                    saveManifest(store);
+                } catch (IOException e) {
+                    segments.clear();
+                    segments.addAll(before);
+                    throw e;
+                }
+                store.indexes.putAll(outputIndexes);
+                for (SegmentInfo info : inputs) {
+                    store.indexes.remove(info.id);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error compacting event store for " + roomId + ": " + e.getMessage());
+            deleteSegments(store, outputs);
+            synchronized (store) {
+                store.compacting = false;
+            }
+            return false;
+        }
+        deleteSegments(store, inputs);
+        System.out.println("Compacted event store " + store.dir.getFileName() + ": " + inputs.size() + " segments -> "
+                + outputs.size() + " (" + events[0] + " events) in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        synchronized (store) {
+            store.compacting = false;
+            maybeCompact(roomId, store);
+        }
+        return true;
+    }
+
+    /**
+     * The smallest segments other than the newest, as many as fit in one full segment
+     */
+    private static List<SegmentInfo> pickCompaction(List<SegmentInfo> segments) {
+        List<SegmentInfo> candidates = new ArrayList<>(segments.subList(0, Math.max(0, segments.size() - 1)));
+        candidates.sort(Comparator.comparingLong(info -> info.length));
+        List<SegmentInfo> picked = new ArrayList<>();
+        long bytes = 0;
+        for (SegmentInfo info : candidates) {
+            if (picked.size() == COMPACT_MAX_INPUTS || bytes + info.length > MAX_SEGMENT_BYTES) {
+                break;
+            }
+            picked.add(info);
+            bytes += info.length;
+        }
+        return picked;
+    }
+
+    private static void deleteSegments(RoomStore store, List<SegmentInfo> segments) {
+        for (SegmentInfo info : segments) {
+            try {
+                Files.deleteIfExists(store.segmentFile(info.id));
+                Files.deleteIfExists(store.indexFile(info.id));
+            } catch (IOException e) {
+                System.err.println("Error deleting event store segment " + info.id + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Number of segment files of a room
+     */
+    int segmentCount(String roomId) {
+        RoomStore store = rooms.get(roomId);
+        synchronized (store) {
+            return store.manifest.segments.size();
+        }
+    }
+
+    private static boolean isCovered(RoomStore store, long ts) {
+        for (Coverage c : store.manifest.coverage) {
+            if (c.from <= ts && ts <= c.to) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sort coverage by start and merge overlapping or adjacent ranges
+     */
+    private static void mergeCoverage(RoomStore store) {
+        List<Coverage> coverage = store.manifest.coverage;
+        coverage.sort(Comparator.comparingLong(c -> c.from));
+        List<Coverage> merged = new ArrayList<>();
+        for (Coverage c : coverage) {
+            Coverage last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && c.from <= last.to + 1) {
+                // The live range is always the newest, so anything merged with it stays live
+                last.to = Math.max(last.to, c.to);
+                last.live |= c.live;
+            } else {
+                merged.add(c);
+            }
+        }
+        coverage.clear();
+        coverage.addAll(merged);
+    }
+
+    private void load(RoomStore store) throws IOException {
+        Path manifestFile = store.dir.resolve("manifest.json");
+        if (!Files.exists(manifestFile)) {
+            return;
+        }
+        store.manifest = mapper.readValue(Files.readAllBytes(manifestFile), Manifest.class);
+        long events = 0;
+        for (SegmentInfo info : store.manifest.segments) {
+            SegmentIndex index = new SegmentIndex();
+            int entries = (info.count + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+            try (FileChannel channel = FileChannel.open(store.indexFile(info.id), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(entries * 16);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // keep reading
+                }
+                if (buffer.hasRemaining()) {
+                    throw new EOFException("index of segment " + info.id + " is truncated");
+                }
+                buffer.flip();
+                for (int i = 0; i < entries; i++) {
+                    index.add(buffer.getLong(), buffer.getLong());
+                }
+            }
+            // Anything past the manifest's length is a torn write from a crash
+            try (FileChannel channel = FileChannel.open(store.segmentFile(info.id), StandardOpenOption.WRITE)) {
+                if (channel.size() > info.length) {
+                    channel.truncate(info.length);
+                }
+            }
+            store.indexes.put(info.id, index);
+            events += info.count;
+        }
+        System.out.println("Loaded event store " + store.dir.getFileName() + ": " + store.manifest.segments.size()
+                + " segments, " + events + " events, " + store.manifest.coverage.size() + " covered ranges");
+    }
+
+    private void saveManifest(RoomStore store) throws IOException {
+        Path manifestFile = store.dir.resolve("manifest.json");
+        Path tmp = store.dir.resolve("manifest.json.tmp");
+        byte[] content = mapper.writeValueAsBytes(store.manifest);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
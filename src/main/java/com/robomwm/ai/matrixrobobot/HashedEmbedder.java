@@ -0,0 +1,84 @@
+package com.robomwm.ai.matrixrobobot;
+
+/**
+ * Turns text into a fixed-size vector without any model download: word unigrams, word bigrams and
+ * character trigrams of each word are hashed into {@link #DIMENSIONS} buckets with a hash-derived
+ * sign, and the result is L2-normalized, so the dot product of two vectors is their cosine.
+ * Trigrams let "deploying" and "deploy" or a typo still land near each other.
+ */
+public class HashedEmbedder {
+    /** Power of two; 512 floats keep a vector at 2 KiB with few unrelated features sharing a bucket */
+    public static final int DIMENSIONS = 512;
+
+    private static final float UNIGRAM_WEIGHT = 1.0f;
+    private static final float BIGRAM_WEIGHT = 0.5f;
+    private static final float TRIGRAM_WEIGHT = 0.25f;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /** Stands for the start or end of a word in trigrams */
+    private static final char BOUNDARY = '\u0002';
+
+    private HashedEmbedder() {
+    }
+
+    public static float[] embed(CharSequence text) {
+        float[] vector = new float[DIMENSIONS];
+        long previousWord = 0;
+        int i = 0;
+        int n = text.length();
+        while (i < n) {
+            while (i < n && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < n && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i == start) {
+                break;
+            }
+            long word = FNV_OFFSET;
+            for (int k = start; k < i; k++) {
+                word = (word ^ Character.toLowerCase(text.charAt(k))) * FNV_PRIME;
+            }
+            add(vector, word, UNIGRAM_WEIGHT);
+            if (previousWord != 0) {
+                add(vector, previousWord * 31 + word, BIGRAM_WEIGHT);
+            }
+            previousWord = word;
+            // Trigrams over BOUNDARY + word + BOUNDARY
+            for (int k = start - 1; k + 2 <= i; k++) {
+                long trigram = FNV_OFFSET;
+                for (int j = k; j < k + 3; j++) {
+                    char c = j < start || j >= i ? BOUNDARY : Character.toLowerCase(text.charAt(j));
+                    trigram = (trigram ^ c) * FNV_PRIME;
+                }
+                add(vector, trigram, TRIGRAM_WEIGHT);
+            }
+        }
+        normalize(vector);
+        return vector;
+    }
+
+    private static void add(float[] vector, long hash, float weight) {
+        // FNV's low bits mix poorly; fold the high half in before taking the bucket and sign
+        long h = hash ^ (hash >>> 32);
+        h *= 0x9e3779b97f4a7c15L;
+        int bucket = (int) (h >>> 40) & (DIMENSIONS - 1);
+        vector[bucket] += h < 0 ? -weight : weight;
+    }
+
+    private static void normalize(float[] vector) {
+        double sum = 0;
+        for (float v : vector) {
+            sum += v * v;
+        }
+        if (sum == 0) {
+            return;
+        }
+        float scale = (float) (1 / Math.sqrt(sum));
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] *= scale;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A window of room history stored by column: timestamps in a long[], senders as int IDs into a
+ * dictionary of distinct user IDs, and event IDs and bodies as UTF-8 packed into one byte[] each.
+ * Log lines are only formatted when they are written out, reusing the timestamp text while
+ * consecutive messages share a minute.
+ */
+public class HistoryColumns {
+    private final int size;
+    private final long[] timestamps;
+    private final int[] senderIds;
+    private final String[] senders;
+    private final byte[] eventIdBytes;
+    private final int[] eventIdOffsets;
+    private final byte[] bodyBytes;
+    private final int[] bodyOffsets;
+
+    /**
+     * Appends messages in the order they should be read back
+     */
+    public static class Builder {
+        private int size;
+        private long[] timestamps = new long[64];
+        private int[] senderIds = new int[64];
+        private final Map<String, Integer> senderDictionary = new HashMap<>();
+        private String[] senders = new String[16];
+        private final ByteColumn eventIds = new ByteColumn();
+        private final ByteColumn bodies = new ByteColumn();
+
+        public Builder add(long ts, String eventId, String sender, String body) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                senderIds = Arrays.copyOf(senderIds, size * 2);
+            }
+            timestamps[size] = ts;
+            senderIds[size] = senderDictionary.computeIfAbsent(sender, this::newSender);
+            eventIds.add(eventId);
+            bodies.add(body);
+            size++;
+            return this;
+        }
+
+        public Builder add(EventStore.StoredEvent event) {
+            return add(event.ts, event.eventId, event.sender, event.body);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public HistoryColumns build() {
+            return new HistoryColumns(size, Arrays.copyOf(timestamps, size), Arrays.copyOf(senderIds, size),
+                    Arrays.copyOf(senders, senderDictionary.size()), eventIds.bytes(), eventIds.offsets(size), bodies.bytes(), bodies.offsets(size));
+        }
+
+        /**
+         * Build with the rows in reverse order, for windows collected newest first
+         */
+        public HistoryColumns buildReversed() {
+            HistoryColumns forward = build();
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = size - 1 - i;
+            }
+            return forward.select(order);
+        }
+
+        private int newSender(String sender) {
+            int id = senderDictionary.size();
+            if (id == senders.length) {
+                senders = Arrays.copyOf(senders, id * 2);
+            }
+            senders[id] = sender;
+            return id;
+        }
+    }
+
+    private static class ByteColumn {
+        private byte[] bytes = new byte[4096];
+        private int length;
+        private int[] offsets = new int[65];
+        private int count;
+
+        void add(String value) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            if (length + encoded.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + encoded.length));
+            }
+            System.arraycopy(encoded, 0, bytes, length, encoded.length);
+            length += encoded.length;
+            if (count + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[++count] = length;
+        }
+
+        byte[] bytes() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        /** size + 1 entries; value i spans [offsets[i], offsets[i + 1]) */
+        int[] offsets(int size) {
+            return Arrays.copyOf(offsets, size + 1);
+        }
+    }
+
+    private HistoryColumns(int size, long[] timestamps, int[] senderIds, String[] senders,
+                           byte[] eventIdBytes, int[] eventIdOffsets, byte[] bodyBytes, int[] bodyOffsets) {
+        this.size = size;
+        this.timestamps = timestamps;
+        this.senderIds = senderIds;
+        this.senders = senders;
+        this.eventIdBytes = eventIdBytes;
+        this.eventIdOffsets = eventIdOffsets;
+        this.bodyBytes = bodyBytes;
+        this.bodyOffsets = bodyOffsets;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long timestamp(int i) {
+        return timestamps[i];
+    }
+
+    /**
+     * Dictionary ID of the sender of message i, for comparing senders without strings
+     */
+    public int senderId(int i) {
+        return senderIds[i];
+    }
+
+    /**
+     * @return the dictionary ID of the user, or -1 if they sent nothing in this window
+     */
+    public int senderIdOf(String sender) {
+        for (int id = 0; id < senders.length; id++) {
+            if (senders[id].equals(sender)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    public String sender(int i) {
+        return senders[senderIds[i]];
+    }
+
+    public int senderCount() {
+        return senders.length;
+    }
+
+    public String eventId(int i) {
+        return new String(eventIdBytes, eventIdOffsets[i], eventIdOffsets[i + 1] - eventIdOffsets[i], StandardCharsets.UTF_8);
+    }
+
+    public String body(int i) {
+        return new String(bodyBytes, bodyOffsets[i], bodyOffsets[i + 1] - bodyOffsets[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * "[yyyy-MM-dd HH:mm z] <sender> body"
+     */
+    public String line(int i, ZoneId zoneId) {
+        StringBuilder sb = new StringBuilder();
+        new LineFormatter(zoneId).append(sb, i);
+        return sb.toString();
+    }
+
+    /**
+     * Log lines as a list formatted on access; not safe for concurrent use
+     */
+    public List<String> lines(ZoneId zoneId) {
+        LineFormatter formatter = new LineFormatter(zoneId);
+        return new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                StringBuilder sb = new StringBuilder();
+                formatter.append(sb, index);
+                return sb.toString();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    public List<String> eventIds() {
+        return new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                return eventId(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Write every message as a line ending in '\n': log lines, or just "<sender> body" when zoneId is null
+     */
+    public void appendTranscript(Appendable out, ZoneId zoneId) throws IOException {
+        LineFormatter formatter = zoneId == null ? null : new LineFormatter(zoneId);
+        StringBuilder sb = new StringBuilder(256);
+        for (int i = 0; i < size; i++) {
+            sb.setLength(0);
+            if (formatter != null) {
+                formatter.append(sb, i);
+            } else {
+                sb.append('<').append(sender(i)).append("> ").append(body(i));
+            }
+            out.append(sb).append('\n');
+        }
+    }
+
+    /**
+     * A new window holding the given rows in the given order; the dictionary is shared
+     */
+    public HistoryColumns select(int[] rows) {
+        long[] ts = new long[rows.length];
+        int[] ids = new int[rows.length];
+        int[] eventOffsets = new int[rows.length + 1];
+        int[] bodyOffsetsOut = new int[rows.length + 1];
+        for (int k = 0; k < rows.length; k++) {
+            int i = rows[k];
+            ts[k] = timestamps[i];
+            ids[k] = senderIds[i];
+            eventOffsets[k + 1] = eventOffsets[k] + eventIdOffsets[i + 1] - eventIdOffsets[i];
+            bodyOffsetsOut[k + 1] = bodyOffsetsOut[k] + bodyOffsets[i + 1] - bodyOffsets[i];
+        }
+        byte[] events = new byte[eventOffsets[rows.length]];
+        byte[] bodies = new byte[bodyOffsetsOut[rows.length]];
+        for (int k = 0; k < rows.length; k++) {
+            int i = rows[k];
+            System.arraycopy(eventIdBytes, eventIdOffsets[i], events, eventOffsets[k], eventOffsets[k + 1] - eventOffsets[k]);
+            System.arraycopy(bodyBytes, bodyOffsets[i], bodies, bodyOffsetsOut[k], bodyOffsetsOut[k + 1] - bodyOffsetsOut[k]);
+        }
+        return new HistoryColumns(rows.length, ts, ids, senders, events, eventOffsets, bodies, bodyOffsetsOut);
+    }
+
+    /**
+     * Formats log lines, reusing the timestamp text for messages in the same minute
+     */
+    private class LineFormatter {
+        private final ZoneId zoneId;
+        private long minute = Long.MIN_VALUE;
+        private String timestamp;
+
+        LineFormatter(ZoneId zoneId) {
+            this.zoneId = zoneId;
+        }
+
+        void append(StringBuilder sb, int i) {
+            long m = Math.floorDiv(timestamps[i], 60000L);
+            if (m != minute) {
+                minute = m;
+                timestamp = Instant.ofEpochMilli(timestamps[i]).atZone(zoneId).format(RoomHistoryManager.LOG_TIME_FORMAT);
+            }
+            sb.append('[').append(timestamp).append("] <").append(sender(i)).append("> ").append(body(i));
+        }
+    }
+}
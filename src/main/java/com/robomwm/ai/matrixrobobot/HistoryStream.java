@@ -0,0 +1,379 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Pull-based room history. Nothing is fetched until the consumer asks for the next message, and
+ * only one /messages page (or one mapped {@link EventStore} record) is held at a time, so callers
+ * that stop early never pay for the rest of the window. Created through {@link RoomHistoryManager}.
+ * A page that can't be fetched ends the history early; {@link Cursor#isTruncated} tells that
+ * apart from reaching the end of the window, so replies can say they are partial.
+ */
+public class HistoryStream {
+
+    public enum Direction {
+        /** Newest first */
+        BACKWARD("b"),
+        /** Oldest first */
+        FORWARD("f");
+
+        final String param;
+
+        Direction(String param) {
+            this.param = param;
+        }
+    }
+
+    /**
+     * Room history in one direction
+     */
+    public interface Cursor extends Iterator<EventStore.StoredEvent> {
+        /**
+         * @return true if the history ended early because part of it couldn't be fetched
+         */
+        boolean isTruncated();
+    }
+
+    /**
+     * Fetches one /messages page
+     */
+    interface PageSource {
+        JsonNode fetch(String token, Direction direction) throws Exception;
+    }
+
+    /**
+     * Reads the stored messages with from <= ts <= to, oldest first, backfilling them first if needed
+     */
+    interface SliceSource {
+        List<EventStore.StoredEvent> read(long from, long to) throws Exception;
+    }
+
+    private static final long MIN_SLICE_MS = 60_000L;
+    private static final long INITIAL_SLICE_MS = 3_600_000L;
+    private static final long MAX_SLICE_MS = 30L * 24 * 3_600_000L;
+    private static final int SLICE_TARGET_MIN = 200;
+    private static final int SLICE_TARGET_MAX = 2000;
+
+    private HistoryStream() {
+    }
+
+    /**
+     * Messages with from <= ts <= to, paged from the homeserver one page at a time starting at the token
+     */
+    static Cursor pages(PageSource source, String token, Direction direction, long from, long to) {
+        return new PageIterator(source, token, direction, from, to);
+    }
+
+    /**
+     * Messages with from <= ts <= to newest first, read from the store one time slice at a time.
+     * Slices grow in quiet stretches and shrink in busy ones, so each holds about a page or two.
+     */
+    static Cursor newestFirst(SliceSource source, long from, long to) {
+        return new SliceIterator(source, from, to);
+    }
+
+    /**
+     * A cursor over already fetched messages
+     */
+    static Cursor cursor(Iterator<EventStore.StoredEvent> events, boolean truncated) {
+        return new Cursor() {
+            @Override
+            public boolean hasNext() {
+                return events.hasNext();
+            }
+
+            @Override
+            public EventStore.StoredEvent next() {
+                return events.next();
+            }
+
+            @Override
+            public boolean isTruncated() {
+                return truncated;
+            }
+        };
+    }
+
+    /**
+     * Messages from a store merge, copied out of the mapped segments one at a time
+     */
+    static Cursor records(SegmentReader.Merge merge) {
+        return new Cursor() {
+            private SegmentReader.RecordView next = merge.next();
+
+            @Override
+            public boolean isTruncated() {
+                return false;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public EventStore.StoredEvent next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                EventStore.StoredEvent event = new EventStore.StoredEvent(next.ts(), next.eventId(), next.sender(), next.body());
+                next = merge.next();
+                return event;
+            }
+        };
+    }
+
+    /**
+     * Add the messages of a /messages chunk to the list, in page order
+     * @return the lowest timestamp of any event in the chunk, messages or not
+     */
+    static long collect(JsonNode chunk, List<EventStore.StoredEvent> out) {
+        long lowest = Long.MAX_VALUE;
+        for (JsonNode ev : chunk) {
+            long originServerTs = ev.path("origin_server_ts").asLong(0);
+            lowest = Math.min(lowest, originServerTs);
+            if (!"m.room.message".equals(ev.path("type").asText(null))) continue;
+            String body = ev.path("content").path("body").asText(null);
+            String sender = ev.path("sender").asText(null);
+            String eventId = ev.path("event_id").asText(null);
+            if (body != null && sender != null && eventId != null) {
+                out.add(new EventStore.StoredEvent(originServerTs, eventId, sender, body));
+            }
+        }
+        return lowest;
+    }
+
+    static Stream<EventStore.StoredEvent> stream(Iterator<EventStore.StoredEvent> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Publisher that opens a fresh iterator per subscriber and only pulls as much as was requested
+     */
+    static Flow.Publisher<EventStore.StoredEvent> publisher(Supplier<Iterator<EventStore.StoredEvent>> iterators, Executor executor) {
+        return subscriber -> subscriber.onSubscribe(new IteratorSubscription(subscriber, iterators, executor));
+    }
+
+    private static class SliceIterator implements Cursor {
+        private final SliceSource source;
+        private final long from;
+        private long upper;
+        private long span = INITIAL_SLICE_MS;
+        private ListIterator<EventStore.StoredEvent> slice = Collections.emptyListIterator();
+        private boolean truncated;
+
+        SliceIterator(SliceSource source, long from, long to) {
+            this.source = source;
+            this.from = from;
+            this.upper = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!slice.hasPrevious() && upper >= from && !truncated) {
+                long lower = Math.max(from, upper - span + 1);
+                List<EventStore.StoredEvent> events;
+                try {
+                    events = source.read(lower, upper);
+                } catch (Exception e) {
+                    System.out.println("Room history truncated, couldn't read " + lower + ".." + upper + ": " + e.getMessage());
+                    truncated = true;
+                    break;
+                }
+                if (events.size() < SLICE_TARGET_MIN) {
+                    span = Math.min(MAX_SLICE_MS, span * 2);
+                } else if (events.size() > SLICE_TARGET_MAX) {
+                    span = Math.max(MIN_SLICE_MS, span / 2);
+                }
+                upper = lower - 1;
+                slice = events.listIterator(events.size());
+            }
+            return slice.hasPrevious();
+        }
+
+        @Override
+        public EventStore.StoredEvent next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return slice.previous();
+        }
+
+        @Override
+        public boolean isTruncated() {
+            return truncated;
+        }
+    }
+
+    private static class PageIterator implements Cursor {
+        private final PageSource source;
+        private final Direction direction;
+        private final long from;
+        private final long to;
+        private String token;
+        private Iterator<JsonNode> page = Collections.emptyIterator();
+        private EventStore.StoredEvent next;
+        private boolean done;
+        private boolean truncated;
+
+        PageIterator(PageSource source, String token, Direction direction, long from, long to) {
+            this.source = source;
+            this.token = token;
+            this.direction = direction;
+            this.from = from;
+            this.to = to;
+            this.done = token == null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public EventStore.StoredEvent next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            EventStore.StoredEvent event = next;
+            next = null;
+            return event;
+        }
+
+        @Override
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        private void advance() {
+            while (true) {
+                while (page.hasNext()) {
+                    JsonNode ev = page.next();
+                    if (!"m.room.message".equals(ev.path("type").asText(null))) continue;
+                    long originServerTs = ev.path("origin_server_ts").asLong(0);
+                    // Events before the window in paging order are skipped, the first one past it ends the stream
+                    boolean before = direction == Direction.BACKWARD ? originServerTs > to : originServerTs < from;
+                    boolean past = direction == Direction.BACKWARD ? originServerTs < from : originServerTs > to;
+                    if (past) {
+                        done = true;
+                        return;
+                    }
+                    if (before) continue;
+
+                    String body = ev.path("content").path("body").asText(null);
+                    String sender = ev.path("sender").asText(null);
+                    String eventId = ev.path("event_id").asText(null);
+                    if (body != null && sender != null && eventId != null) {
+                        next = new EventStore.StoredEvent(originServerTs, eventId, sender, body);
+                        return;
+                    }
+                }
+                if (token == null) {
+                    done = true;
+                    return;
+                }
+                try {
+                    JsonNode root = source.fetch(token, direction);
+                    if (root == null) {
+                        System.out.println("Room history truncated: the homeserver refused a page");
+                        truncated = true;
+                        done = true;
+                        return;
+                    }
+                    JsonNode chunk = root.path("chunk");
+                    if (!chunk.isArray() || chunk.size() == 0) {
+                        done = true;
+                        return;
+                    }
+                    page = chunk.iterator();
+                    token = root.path("end").asText(null);
+                } catch (Exception e) {
+                    System.out.println("Room history truncated, error fetching a page: " + e.getMessage());
+                    truncated = true;
+                    done = true;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drains the iterator on the executor while there is outstanding demand; request and cancel
+     * may be called from any thread, onNext calls are never concurrent
+     */
+    private static class IteratorSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super EventStore.StoredEvent> subscriber;
+        private final Supplier<Iterator<EventStore.StoredEvent>> iterators;
+        private final Executor executor;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private Iterator<EventStore.StoredEvent> iterator;
+        private volatile boolean cancelled;
+
+        IteratorSubscription(Flow.Subscriber<? super EventStore.StoredEvent> subscriber, Supplier<Iterator<EventStore.StoredEvent>> iterators, Executor executor) {
+            this.subscriber = subscriber;
+            this.iterators = iterators;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            demand.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                try {
+                    if (iterator == null && !cancelled) {
+                        iterator = iterators.get();
+                    }
+                    while (!cancelled && demand.get() > 0) {
+                        if (!iterator.hasNext()) {
+                            cancelled = true;
+                            subscriber.onComplete();
+                            break;
+                        }
+                        subscriber.onNext(iterator.next());
+                        demand.decrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    cancelled = true;
+                    subscriber.onError(t);
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
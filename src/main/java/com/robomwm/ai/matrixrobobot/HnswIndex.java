@@ -0,0 +1,794 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+
+/**
+ * Approximate nearest-neighbour index over message vectors (Hierarchical Navigable Small World
+ * graph). Every message is a node linked to up to M similar messages per layer (2M on layer 0);
+ * the sparse upper layers let a search descend greedily before the wide search on layer 0.
+ * Vectors must be L2-normalized, as from {@link HashedEmbedder}, since similarity is the dot product.
+ * Nodes keep only the event ID, timestamp and an int8 copy of the vector (a quarter of the float
+ * size); message bodies stay in the {@link EventStore}.
+ *
+ * Inserts may run concurrently with each other and with searches: each node's neighbour lists are
+ * replaced wholesale under the node's lock, and readers walk whatever list they got. Past the size
+ * cap the oldest quarter is dropped by rebuilding the graph from the rest on a background thread.
+ * Inserts and searches keep using the old graph meanwhile; inserts are also buffered and replayed
+ * into the new graph, and only the final swap briefly holds them up.
+ *
+ * Like {@link PositionalIndex}, the index only claims a time range once it is known to be complete:
+ * after seeding from the store, and never across a gap in the sync stream.
+ */
+public class HnswIndex {
+    private static final int MAGIC = 0x484e5357; // "HNSW"
+    private static final int VERSION = 2;
+
+    public static class Hit {
+        public final String eventId;
+        public final long ts;
+        public final float score;
+
+        Hit(String eventId, long ts, float score) {
+            this.eventId = eventId;
+            this.ts = ts;
+            this.score = score;
+        }
+    }
+
+    /** A vector as int8 codes; component i is codes[i] * scale */
+    private static class Quantized {
+        final byte[] codes;
+        final float scale;
+
+        Quantized(byte[] codes, float scale) {
+            this.codes = codes;
+            this.scale = scale;
+        }
+
+        static Quantized of(float[] vector) {
+            float max = 0;
+            for (float v : vector) {
+                max = Math.max(max, Math.abs(v));
+            }
+            byte[] codes = new byte[vector.length];
+            if (max == 0) {
+                return new Quantized(codes, 0);
+            }
+            float scale = max / 127;
+            for (int i = 0; i < vector.length; i++) {
+                codes[i] = (byte) Math.round(vector[i] / scale);
+            }
+            return new Quantized(codes, scale);
+        }
+
+        float similarity(Quantized other) {
+            return scale * other.scale * VectorSimilarity.dot(codes, other.codes);
+        }
+    }
+
+    private static class Node {
+        final String eventId;
+        final long ts;
+        final Quantized vector;
+        /** Per layer up to the node's own; guarded by the node */
+        final int[][] neighbors;
+
+        Node(String eventId, long ts, Quantized vector, int level) {
+            this.eventId = eventId;
+            this.ts = ts;
+            this.vector = vector;
+            this.neighbors = new int[level + 1][];
+            Arrays.fill(neighbors, new int[0]);
+        }
+
+        int level() {
+            return neighbors.length - 1;
+        }
+
+        synchronized int[] neighbors(int level) {
+            return neighbors[level];
+        }
+
+        synchronized void setNeighbors(int level, int[] ids) {
+            neighbors[level] = ids;
+        }
+    }
+
+    private static class Entry {
+        final int node;
+        final int level;
+
+        Entry(int node, int level) {
+            this.node = node;
+            this.level = level;
+        }
+    }
+
+    /** Nodes still to expand, best first */
+    private static class Candidates {
+        private int[] ids = new int[64];
+        private float[] scores = new float[64];
+        private int size;
+
+        void push(int id, float score) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0 && scores[(i - 1) >>> 1] < score) {
+                int parent = (i - 1) >>> 1;
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        float bestScore() {
+            return scores[0];
+        }
+
+        /** Remove the best and return its ID */
+        int pop() {
+            int best = ids[0];
+            size--;
+            int id = ids[size];
+            float score = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && scores[child + 1] > scores[child]) {
+                    child++;
+                }
+                if (scores[child] <= score) {
+                    break;
+                }
+                ids[i] = ids[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            ids[i] = id;
+            scores[i] = score;
+            return best;
+        }
+    }
+
+    /** Per-thread visited marks, cleared in O(1) by bumping the epoch */
+    private static class Visited {
+        int[] marks = new int[0];
+        int epoch;
+
+        void reset(int capacity) {
+            if (marks.length < capacity) {
+                marks = new int[Math.max(capacity, marks.length * 2)];
+                epoch = 0;
+            }
+            if (++epoch == 0) {
+                Arrays.fill(marks, 0);
+                epoch = 1;
+            }
+        }
+
+        /** @return false if already visited */
+        boolean visit(int id) {
+            if (marks[id] == epoch) {
+                return false;
+            }
+            marks[id] = epoch;
+            return true;
+        }
+    }
+
+    private static final ThreadLocal<Visited> VISITED = ThreadLocal.withInitial(Visited::new);
+
+    private final int dimensions;
+    private final int m;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final int maxSize;
+    private volatile int efSearch;
+    private volatile Node[] nodes = new Node[1024];
+    private int size;
+    private volatile Entry entry;
+    private volatile Map<String, Integer> idsByEventId = new ConcurrentHashMap<>();
+    /** Inserts and searches share it, swapping in a trimmed graph takes it exclusively */
+    private final ReentrantReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+    /** Nodes inserted since a trim took its snapshot, null while no trim runs; guarded by this */
+    private List<Node> pending;
+    private volatile Thread trimmer;
+    /** Messages older than this were dropped for the size cap and are not indexed again */
+    private volatile long floor = Long.MIN_VALUE;
+    /** Every message from here on is indexed; Long.MAX_VALUE until seeded */
+    private long coveredFrom = Long.MAX_VALUE;
+    /** Latest point before which sync may have skipped messages */
+    private long gapBefore = Long.MIN_VALUE;
+    /** Coverage of the loaded file: complete from coveredFrom to the newest message it held */
+    private long restoredFrom = Long.MAX_VALUE;
+    private long restoredThrough = Long.MIN_VALUE;
+
+    /**
+     * @param m Links per node and layer; more gives better recall for more memory and insert time
+     * @param efConstruction Candidates considered when linking a new node
+     * @param efSearch Candidates considered per query, at least the number of results asked for
+     * @param maxSize Most messages kept, 0 for no limit
+     */
+    public HnswIndex(int dimensions, int m, int efConstruction, int efSearch, int maxSize) {
+        this.dimensions = dimensions;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.maxSize = maxSize;
+        this.levelMultiplier = 1 / Math.log(m);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    /**
+     * Insert a message; safe to call from several threads at once
+     * @return false if the event was already indexed or is older than the size cap keeps
+     */
+    public boolean add(String eventId, long ts, float[] vector) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + vector.length);
+        }
+        rebuildLock.readLock().lock();
+        try {
+            if (ts < floor || !insert(eventId, ts, Quantized.of(vector))) {
+                return false;
+            }
+        } finally {
+            rebuildLock.readLock().unlock();
+        }
+        if (maxSize > 0 && size() > maxSize) {
+            startTrim();
+        }
+        return true;
+    }
+
+    /**
+     * Index the room's stored messages from the start of the range sync is extending, or only the
+     * newest of them that fit under the size cap, then treat that range as covered, along with what
+     * the loaded file covered if the two meet. Messages arriving from sync meanwhile may be added
+     * at the same time.
+     */
+    public void seed(EventStore store, String roomId) throws IOException {
+        long from = store.liveFrom(roomId);
+        if (from == Long.MAX_VALUE) {
+            return;
+        }
+        long seedFrom = Math.max(from, floor);
+        if (maxSize > 0) {
+            // Older messages would only be embedded to be trimmed again
+            seedFrom = store.newestFrom(roomId, seedFrom, maxSize);
+            synchronized (this) {
+                floor = Math.max(floor, seedFrom);
+            }
+        }
+        store.scan(roomId, seedFrom, Long.MAX_VALUE, record -> {
+            String eventId = record.eventId();
+            // Vectors from the loaded file are kept, only new messages are embedded
+            if (!idsByEventId.containsKey(eventId)) {
+                add(eventId, record.ts(), HashedEmbedder.embed(record.body()));
+            }
+            return true;
+        });
+        synchronized (this) {
+            long start = restoredFrom != Long.MAX_VALUE && restoredThrough >= from ? Math.min(restoredFrom, from) : from;
+            coveredFrom = Math.max(Math.max(start, seedFrom), Math.max(gapBefore, floor));
+        }
+    }
+
+    /**
+     * Sync skipped messages before this time (a limited timeline), so older ones may be missing
+     */
+    public synchronized void gap(long ts) {
+        gapBefore = Math.max(gapBefore, ts);
+        if (coveredFrom != Long.MAX_VALUE) {
+            coveredFrom = Math.max(coveredFrom, ts);
+        }
+    }
+
+    /**
+     * Whether every message since the time is indexed
+     */
+    public synchronized boolean covers(long from) {
+        return from >= coveredFrom;
+    }
+
+    private boolean insert(String eventId, long ts, Quantized vector) {
+        if (idsByEventId.putIfAbsent(eventId, -1) != null) {
+            return false;
+        }
+        int level = (int) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * levelMultiplier);
+        Node node = new Node(eventId, ts, vector, level);
+        int id;
+        Entry top;
+        synchronized (this) {
+            id = size++;
+            if (id == nodes.length) {
+                nodes = Arrays.copyOf(nodes, id * 2);
+            }
+            nodes[id] = node;
+            if (pending != null) {
+                pending.add(node);
+            }
+            top = entry;
+            if (top == null) {
+                entry = new Entry(id, level);
+            }
+        }
+        idsByEventId.put(eventId, id);
+        if (top == null) {
+            return true;
+        }
+
+        int current = top.node;
+        for (int l = top.level; l > level; l--) {
+            current = greedy(vector, current, l);
+        }
+        for (int l = Math.min(level, top.level); l >= 0; l--) {
+            TopK found = searchLayer(vector, current, efConstruction, l, null);
+            int[] ids = new int[found.size()];
+            double[] scores = new double[found.size()];
+            int n = found.drain(ids, scores);
+            int[] selected = selectNeighbors(vector, ids, n, m);
+            node.setNeighbors(l, selected);
+            for (int neighbor : selected) {
+                link(neighbor, id, l);
+            }
+            current = ids[0];
+        }
+        if (level > top.level) {
+            synchronized (this) {
+                if (level > entry.level) {
+                    entry = new Entry(id, level);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Start rebuilding the graph from the newest three quarters of the cap on a background thread,
+     * unless a rebuild is already running
+     */
+    private void startTrim() {
+        int count;
+        Node[] snapshot;
+        synchronized (this) {
+            if (pending != null || size <= maxSize) {
+                return;
+            }
+            // Every node is now either in the snapshot or gets buffered
+            pending = new ArrayList<>();
+            count = size;
+            snapshot = nodes;
+        }
+        trimmer = Thread.ofPlatform().daemon().name("semantic-trim").start(() -> trim(snapshot, count));
+    }
+
+    /**
+     * Build a graph of the newest snapshot nodes, catch it up with the buffered inserts, and swap it
+     * in. The old graph serves inserts and searches until the swap, so both graphs are in memory
+     * for a while.
+     */
+    private void trim(Node[] snapshot, int count) {
+        try {
+            long start = System.nanoTime();
+            long[] timestamps = new long[count];
+            for (int id = 0; id < count; id++) {
+                timestamps[id] = snapshot[id].ts;
+            }
+            Arrays.sort(timestamps);
+            long kept = timestamps[count - maxSize * 3 / 4];
+            HnswIndex rebuilt = new HnswIndex(dimensions, m, efConstruction, efSearch, 0);
+            for (int id = 0; id < count; id++) {
+                Node node = snapshot[id];
+                if (node.ts >= kept) {
+                    rebuilt.insert(node.eventId, node.ts, node.vector);
+                }
+            }
+            // Replay outside the lock until few inserts arrive per round, so the swap itself is short
+            int replayed;
+            do {
+                replayed = replay(rebuilt, kept);
+            } while (replayed > m);
+            int dropped;
+            rebuildLock.writeLock().lock();
+            try {
+                replay(rebuilt, kept);
+                synchronized (this) {
+                    dropped = size - rebuilt.size;
+                    nodes = rebuilt.nodes;
+                    size = rebuilt.size;
+                    entry = rebuilt.entry;
+                    idsByEventId = rebuilt.idsByEventId;
+                    pending = null;
+                    floor = kept;
+                    gapBefore = Math.max(gapBefore, kept);
+                    if (coveredFrom != Long.MAX_VALUE) {
+                        coveredFrom = Math.max(coveredFrom, kept);
+                    }
+                }
+            } finally {
+                rebuildLock.writeLock().unlock();
+            }
+            System.out.println("Semantic index dropped " + dropped + " messages before " + java.time.Instant.ofEpochMilli(kept)
+                    + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (RuntimeException e) {
+            System.out.println("Error trimming semantic index: " + e.getMessage());
+            e.printStackTrace();
+            synchronized (this) {
+                pending = null;
+            }
+            return;
+        }
+        // Inserts during the rebuild may have filled it up again
+        if (size() > maxSize) {
+            startTrim();
+        }
+    }
+
+    /**
+     * Insert the nodes buffered since the last call into the rebuilt graph
+     * @return how many there were
+     */
+    private int replay(HnswIndex rebuilt, long kept) {
+        List<Node> buffered;
+        synchronized (this) {
+            buffered = pending;
+            pending = new ArrayList<>();
+        }
+        for (Node node : buffered) {
+            if (node.ts >= kept) {
+                rebuilt.insert(node.eventId, node.ts, node.vector);
+            }
+        }
+        return buffered.size();
+    }
+
+    /**
+     * Wait until no trim is running
+     */
+    void awaitTrim() throws InterruptedException {
+        Thread current = trimmer;
+        while (current != null) {
+            current.join();
+            Thread next = trimmer;
+            if (next == current) {
+                return;
+            }
+            current = next;
+        }
+    }
+
+    /**
+     * @return up to k messages most similar to the query, best first
+     */
+    public List<Hit> search(float[] query, int k) {
+        return search(query, k, null);
+    }
+
+    /**
+     * @param filter Only messages whose timestamp it accepts are returned; the graph is still walked
+     *               through the others, so a filter that rejects most messages makes the search slower
+     * @return up to k accepted messages most similar to the query, best first
+     */
+    public List<Hit> search(float[] query, int k, LongPredicate filter) {
+        Quantized target = Quantized.of(query);
+        rebuildLock.readLock().lock();
+        try {
+            Entry top = entry;
+            if (top == null || k <= 0) {
+                return new ArrayList<>();
+            }
+            int current = top.node;
+            for (int l = top.level; l > 0; l--) {
+                current = greedy(target, current, l);
+            }
+            TopK found = searchLayer(target, current, Math.max(efSearch, k), 0, filter);
+            int[] ids = new int[found.size()];
+            double[] scores = new double[found.size()];
+            int n = Math.min(k, found.drain(ids, scores));
+            Node[] snapshot = nodes;
+            List<Hit> hits = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                hits.add(new Hit(snapshot[ids[i]].eventId, snapshot[ids[i]].ts, (float) scores[i]));
+            }
+            return hits;
+        } finally {
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write the graph and its coverage to the file, replacing it atomically. Messages inserted while
+     * saving may be left out; they are newer than the coverage written and get seeded again on load.
+     */
+    public void save(Path file) throws IOException {
+        int count;
+        Entry top;
+        Node[] snapshot;
+        long covered;
+        long dropped;
+        synchronized (this) {
+            count = size;
+            top = entry;
+            snapshot = nodes;
+            covered = coveredFrom;
+            dropped = floor;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dimensions);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(count);
+            out.writeInt(top == null ? -1 : top.node);
+            out.writeInt(top == null ? -1 : top.level);
+            out.writeLong(covered);
+            out.writeLong(dropped);
+            for (int id = 0; id < count; id++) {
+                Node node = snapshot[id];
+                out.writeLong(node.ts);
+                writeString(out, node.eventId);
+                out.writeFloat(node.vector.scale);
+                out.write(node.vector.codes);
+                out.writeInt(node.level());
+                for (int l = 0; l <= node.level(); l++) {
+                    int[] neighbors = node.neighbors(l);
+                    int kept = 0;
+                    for (int neighbor : neighbors) {
+                        if (neighbor < count) {
+                            kept++;
+                        }
+                    }
+                    out.writeInt(kept);
+                    for (int neighbor : neighbors) {
+                        if (neighbor < count) {
+                            out.writeInt(neighbor);
+                        }
+                    }
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read an index written by {@link #save}; M and efConstruction come from the file. The loaded
+     * index covers nothing until {@link #seed} connects it to the store.
+     */
+    public static HnswIndex load(Path file, int efSearch, int maxSize) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a version " + VERSION + " HNSW index file: " + file);
+            }
+            HnswIndex index = new HnswIndex(in.readInt(), in.readInt(), in.readInt(), efSearch, maxSize);
+            int count = in.readInt();
+            int entryNode = in.readInt();
+            int entryLevel = in.readInt();
+            long covered = in.readLong();
+            long dropped = in.readLong();
+            Node[] nodes = new Node[Math.max(1024, count)];
+            long newest = Long.MIN_VALUE;
+            for (int id = 0; id < count; id++) {
+                long ts = in.readLong();
+                String eventId = readString(in);
+                float scale = in.readFloat();
+                byte[] codes = new byte[index.dimensions];
+                in.readFully(codes);
+                Node node = new Node(eventId, ts, new Quantized(codes, scale), in.readInt());
+                for (int l = 0; l <= node.level(); l++) {
+                    int[] neighbors = new int[in.readInt()];
+                    for (int i = 0; i < neighbors.length; i++) {
+                        neighbors[i] = in.readInt();
+                    }
+                    node.neighbors[l] = neighbors;
+                }
+                nodes[id] = node;
+                index.idsByEventId.put(eventId, id);
+                newest = Math.max(newest, ts);
+            }
+            synchronized (index) {
+                index.nodes = nodes;
+                index.size = count;
+                index.entry = entryNode < 0 ? null : new Entry(entryNode, entryLevel);
+                index.floor = dropped;
+                index.restoredFrom = covered;
+                index.restoredThrough = newest;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Load the index from the file if there is a usable one, otherwise start empty
+     */
+    public static HnswIndex loadOrCreate(Path file, int dimensions, int m, int efConstruction, int efSearch, int maxSize) {
+        if (Files.exists(file)) {
+            try {
+                HnswIndex index = load(file, efSearch, maxSize);
+                if (index.dimensions == dimensions) {
+                    System.out.println("Loaded semantic index: " + index.size() + " vectors");
+                    return index;
+                }
+                System.out.println("Semantic index has " + index.dimensions + " dimensions, expected " + dimensions + "; starting over");
+            } catch (IOException e) {
+                System.out.println("Failed to load semantic index: " + e.getMessage());
+            }
+        }
+        return new HnswIndex(dimensions, m, efConstruction, efSearch, maxSize);
+    }
+
+    public String formatStats() {
+        Entry top = entry;
+        long covered;
+        boolean trimming;
+        synchronized (this) {
+            covered = coveredFrom;
+            trimming = pending != null;
+        }
+        return "**Semantic index** (vectors: " + size() + (maxSize > 0 ? " of " + maxSize : "") + (trimming ? ", trimming" : "") + ", layers: " + (top == null ? 0 : top.level + 1) + ", "
+                + (covered == Long.MAX_VALUE ? "not seeded" : "complete since " + java.time.Instant.ofEpochMilli(covered)) + ")\n\n"
+                + "- M=" + m + " efConstruction=" + efConstruction + " efSearch=" + efSearch + "\n";
+    }
+
+    /**
+     * Follow the most similar neighbour on one layer until none is more similar
+     */
+    private int greedy(Quantized query, int current, int level) {
+        float best = query.similarity(nodes[current].vector);
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            for (int neighbor : nodes[current].neighbors(level)) {
+                float score = query.similarity(nodes[neighbor].vector);
+                if (score > best) {
+                    best = score;
+                    current = neighbor;
+                    moved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search of one layer keeping the ef most similar nodes the filter accepts
+     */
+    private TopK searchLayer(Quantized query, int start, int ef, int level, LongPredicate filter) {
+        Node[] snapshot = nodes;
+        Visited visited = VISITED.get();
+        visited.reset(snapshot.length);
+        TopK results = new TopK(ef);
+        Candidates candidates = new Candidates();
+        visited.visit(start);
+        float startScore = query.similarity(snapshot[start].vector);
+        candidates.push(start, startScore);
+        if (filter == null || filter.test(snapshot[start].ts)) {
+            results.offer(start, startScore);
+        }
+        while (!candidates.isEmpty()) {
+            if (results.isFull() && candidates.bestScore() < results.worstScore()) {
+                break;
+            }
+            int current = candidates.pop();
+            for (int neighbor : snapshot[current].neighbors(level)) {
+                if (neighbor >= snapshot.length) {
+                    // Inserted after this search started
+                    continue;
+                }
+                if (!visited.visit(neighbor)) {
+                    continue;
+                }
+                Node node = snapshot[neighbor];
+                if (node == null) {
+                    continue;
+                }
+                float score = query.similarity(node.vector);
+                if (!results.isFull() || score > results.worstScore()) {
+                    candidates.push(neighbor, score);
+                    if (filter == null || filter.test(node.ts)) {
+                        results.offer(neighbor, score);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Keep a candidate only if it is more similar to the base than to any candidate already kept,
+     * so links spread out in different directions instead of all pointing into one cluster
+     * @param ids Candidates, most similar first
+     */
+    private int[] selectNeighbors(Quantized base, int[] ids, int count, int max) {
+        Node[] snapshot = nodes;
+        int[] selected = new int[Math.min(count, max)];
+        int kept = 0;
+        for (int i = 0; i < count && kept < max; i++) {
+            Quantized candidate = snapshot[ids[i]].vector;
+            float toBase = base.similarity(candidate);
+            boolean diverse = true;
+            for (int j = 0; j < kept && diverse; j++) {
+                diverse = candidate.similarity(snapshot[selected[j]].vector) <= toBase;
+            }
+            if (diverse) {
+                selected[kept++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(selected, kept);
+    }
+
+    /**
+     * Add a back link from the neighbour to the new node, re-selecting the neighbour's list if it is full
+     */
+    private void link(int neighborId, int id, int level) {
+        Node neighbor = nodes[neighborId];
+        int max = level == 0 ? 2 * m : m;
+        synchronized (neighbor) {
+            int[] current = neighbor.neighbors[level];
+            if (current.length < max) {
+                int[] grown = Arrays.copyOf(current, current.length + 1);
+                grown[current.length] = id;
+                neighbor.neighbors[level] = grown;
+                return;
+            }
+            Node[] snapshot = nodes;
+            TopK ranked = new TopK(current.length + 1);
+            for (int candidate : current) {
+                ranked.offer(candidate, neighbor.vector.similarity(snapshot[candidate].vector));
+            }
+            ranked.offer(id, neighbor.vector.similarity(snapshot[id].vector));
+            int[] ids = new int[ranked.size()];
+            int n = ranked.drain(ids, new double[ids.length]);
+            neighbor.neighbors[level] = selectNeighbors(neighbor.vector, ids, n, max);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
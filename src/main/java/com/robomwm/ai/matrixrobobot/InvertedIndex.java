@@ -0,0 +1,224 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index over messages for {@link SemanticSearchEngine}. Each message gets an ordinal in
+ * the order it was added; each term keeps a posting list of the ordinals containing it and the
+ * term frequency in each. Queries walk only the posting lists of their terms, so their cost
+ * follows how common the query terms are rather than the size of the corpus.
+ *
+ * Messages can be added and deleted at any time. Deleted ordinals are skipped and dropped from a
+ * posting list once they make up half of it; ordinals are never reused.
+ */
+public class InvertedIndex {
+    /** BM25 term frequency saturation */
+    private static final double K1 = 1.2;
+    /** BM25 document length normalisation */
+    private static final double B = 0.75;
+
+    private static class Postings {
+        int[] ordinals = new int[4];
+        int[] frequencies = new int[4];
+        int size;
+        /** Entries whose message is not deleted */
+        int live;
+
+        void add(int ordinal, int frequency) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            ordinals[size] = ordinal;
+            frequencies[size] = frequency;
+            size++;
+            live++;
+        }
+    }
+
+    /** Indexed by term ID from {@link SemanticSearchEngine#TERMS}, null for terms in no live message */
+    private Postings[] postings = new Postings[1024];
+    private final Map<String, Integer> ordinalsByEventId = new HashMap<>();
+    /** Indexed message per ordinal, null once deleted */
+    private SemanticSearchEngine.MessageEmbedding[] messages = new SemanticSearchEngine.MessageEmbedding[64];
+    /** Number of terms per ordinal, counting repeats */
+    private int[] lengths = new int[64];
+    /** Number of distinct terms per ordinal */
+    private int[] distinctTerms = new int[64];
+    private int nextOrdinal;
+    private int liveCount;
+    private long totalLength;
+
+    /**
+     * Index of the messages, in list order
+     */
+    public static InvertedIndex of(List<SemanticSearchEngine.MessageEmbedding> messages) {
+        InvertedIndex index = new InvertedIndex();
+        for (SemanticSearchEngine.MessageEmbedding message : messages) {
+            index.add(message);
+        }
+        return index;
+    }
+
+    /**
+     * Index a message, replacing an earlier one with the same event ID (e.g. after an edit)
+     */
+    public synchronized void add(SemanticSearchEngine.MessageEmbedding message) {
+        if (message.eventId != null && ordinalsByEventId.containsKey(message.eventId)) {
+            delete(message.eventId);
+        }
+        int[] terms = SemanticSearchEngine.TOKENIZER.terms(message.message);
+        Arrays.sort(terms);
+        int ordinal = nextOrdinal++;
+        if (ordinal == messages.length) {
+            messages = Arrays.copyOf(messages, ordinal * 2);
+            lengths = Arrays.copyOf(lengths, ordinal * 2);
+            distinctTerms = Arrays.copyOf(distinctTerms, ordinal * 2);
+        }
+        int distinct = 0;
+        for (int i = 0, run; i < terms.length; i += run) {
+            // Sorted, so repeats of a term are adjacent
+            run = 1;
+            while (i + run < terms.length && terms[i + run] == terms[i]) {
+                run++;
+            }
+            postingsFor(terms[i]).add(ordinal, run);
+            distinct++;
+        }
+        messages[ordinal] = message;
+        lengths[ordinal] = terms.length;
+        distinctTerms[ordinal] = distinct;
+        if (message.eventId != null) {
+            ordinalsByEventId.put(message.eventId, ordinal);
+        }
+        liveCount++;
+        totalLength += terms.length;
+    }
+
+    /**
+     * @return false if no message with this event ID is indexed
+     */
+    public synchronized boolean delete(String eventId) {
+        Integer ordinal = ordinalsByEventId.remove(eventId);
+        if (ordinal == null) {
+            return false;
+        }
+        String text = messages[ordinal].message;
+        messages[ordinal] = null;
+        for (int term : SemanticSearchEngine.TOKENIZER.termSet(text)) {
+            Postings list = postings[term];
+            list.live--;
+            if (list.live == 0) {
+                postings[term] = null;
+            } else if (list.live * 2 < list.size) {
+                purge(list);
+            }
+        }
+        liveCount--;
+        totalLength -= lengths[ordinal];
+        return true;
+    }
+
+    public synchronized int size() {
+        return liveCount;
+    }
+
+    /**
+     * Rank messages sharing a term with the query by BM25
+     * @return up to topK messages, best first, each carrying its score in embedding[0]
+     */
+    public synchronized List<SemanticSearchEngine.MessageEmbedding> searchBm25(String query, int topK) {
+        return search(query, topK, true, 0);
+    }
+
+    /**
+     * Rank messages by Jaccard similarity of their word sets with the query's, the same score as
+     * {@link SemanticSearchEngine#calculateTextSimilarity}, computed from the postings
+     * @return up to topK messages scoring above the threshold, best first (ties in index order),
+     *         each carrying its score in embedding[0]
+     */
+    public synchronized List<SemanticSearchEngine.MessageEmbedding> searchJaccard(String query, int topK, double threshold) {
+        return search(query, topK, false, threshold);
+    }
+
+    /**
+     * Document-at-a-time walk over the query terms' posting lists, which are sorted by ordinal
+     */
+    private List<SemanticSearchEngine.MessageEmbedding> search(String query, int topK, boolean bm25, double threshold) {
+        if (topK <= 0 || liveCount == 0) {
+            return new ArrayList<>();
+        }
+        int[] queryTerms = SemanticSearchEngine.TOKENIZER.termSet(query);
+        List<Postings> lists = new ArrayList<>(queryTerms.length);
+        List<Double> idfs = new ArrayList<>(queryTerms.length);
+        for (int term : queryTerms) {
+            Postings list = term < postings.length ? postings[term] : null;
+            if (list != null) {
+                lists.add(list);
+                idfs.add(Math.log(1 + (liveCount - list.live + 0.5) / (list.live + 0.5)));
+            }
+        }
+        int[] cursors = new int[lists.size()];
+        double averageLength = (double) totalLength / liveCount;
+        TopK best = new TopK(topK);
+        while (true) {
+            int ordinal = Integer.MAX_VALUE;
+            for (int t = 0; t < lists.size(); t++) {
+                if (cursors[t] < lists.get(t).size) {
+                    ordinal = Math.min(ordinal, lists.get(t).ordinals[cursors[t]]);
+                }
+            }
+            if (ordinal == Integer.MAX_VALUE) {
+                break;
+            }
+            double score = 0;
+            int shared = 0;
+            for (int t = 0; t < lists.size(); t++) {
+                Postings list = lists.get(t);
+                if (cursors[t] < list.size && list.ordinals[cursors[t]] == ordinal) {
+                    int tf = list.frequencies[cursors[t]];
+                    score += idfs.get(t) * tf * (K1 + 1) / (tf + K1 * (1 - B + B * lengths[ordinal] / averageLength));
+                    shared++;
+                    cursors[t]++;
+                }
+            }
+            if (messages[ordinal] == null) {
+                continue;
+            }
+            if (!bm25) {
+                score = (double) shared / (queryTerms.length + distinctTerms[ordinal] - shared);
+                if (score <= threshold) {
+                    continue;
+                }
+            }
+            best.offer(ordinal, score);
+        }
+        return SemanticSearchEngine.results(best, Arrays.asList(messages));
+    }
+
+    private void purge(Postings list) {
+        int kept = 0;
+        for (int i = 0; i < list.size; i++) {
+            if (messages[list.ordinals[i]] != null) {
+                list.ordinals[kept] = list.ordinals[i];
+                list.frequencies[kept] = list.frequencies[i];
+                kept++;
+            }
+        }
+        list.size = kept;
+    }
+
+    private Postings postingsFor(int term) {
+        if (term >= postings.length) {
+            postings = Arrays.copyOf(postings, Math.max(term + 1, postings.length * 2));
+        }
+        if (postings[term] == null) {
+            postings[term] = new Postings();
+        }
+        return postings[term];
+    }
+}
@@ -16,21 +16,36 @@ import java.util.TreeMap;
 /**
  * Handles the !last command: shows user's last message and read receipt status.
  */
-public class LastMessageService {
+public class LastMessageService implements SyncFilter.Contributor {
     private final MatrixClient matrixClient;
     private final RoomHistoryManager historyManager;
     private final HttpClient httpClient;
     private final ObjectMapper mapper;
     private final String homeserverUrl;
     private final String accessToken;
+    private final SyncFilter syncFilter;
+    private final RoomIndex roomIndex;
 
-    public LastMessageService(MatrixClient matrixClient, RoomHistoryManager historyManager, HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken) {
+    public LastMessageService(MatrixClient matrixClient, RoomHistoryManager historyManager, HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken, SyncFilter syncFilter,
+                              RoomIndex roomIndex) {
         this.matrixClient = matrixClient;
         this.historyManager = historyManager;
         this.httpClient = httpClient;
         this.mapper = mapper;
         this.homeserverUrl = homeserverUrl;
         this.accessToken = accessToken;
+        this.syncFilter = syncFilter;
+        this.roomIndex = roomIndex;
+    }
+
+    /**
+     * Read receipts and the latest message come from the sync stream through the {@link RoomIndex},
+     * or are looked up through /sync when it doesn't know them
+     */
+    @Override
+    public void contributeSyncFilter(SyncFilter filter) {
+        filter.includeTimelineType("m.room.message");
+        filter.includeEphemeralType("m.receipt");
     }
 
     /**
@@ -49,11 +64,18 @@ public class LastMessageService {
      */
     public void sendLastMessageAndReadReceipt(String exportRoomId, String sender, String responseRoomId, String cachedPreviousReadEventId) {
         try {
-            String lastMessageEventId = historyManager.getLastMessageFromSender(exportRoomId, sender);
+            String lastMessageEventId = roomIndex.lastMessageFrom(exportRoomId, sender);
+            if (lastMessageEventId == null) {
+                lastMessageEventId = historyManager.getLastMessageFromSender(exportRoomId, sender);
+            }
             // If we have a cached previous read event ID, use that instead of fetching current
-            String lastReadEventId = cachedPreviousReadEventId != null 
-                ? cachedPreviousReadEventId 
-                : getReadReceipt(exportRoomId, sender);
+            String lastReadEventId = cachedPreviousReadEventId;
+            if (lastReadEventId == null) {
+                lastReadEventId = roomIndex.lastReadBy(exportRoomId, sender);
+            }
+            if (lastReadEventId == null) {
+                lastReadEventId = getReadReceipt(exportRoomId, sender);
+            }
 
             StringBuilder response = new StringBuilder();
 
@@ -96,7 +118,7 @@ public class LastMessageService {
             Map<Long, java.util.List<String>> receiptsWithTimestamps = new TreeMap<>(Collections.reverseOrder());
 
             // Try to get the read receipt from the sync response first
-            String syncUrl = homeserverUrl + "/_matrix/client/v3/sync?timeout=0";
+            String syncUrl = syncFilter.apply(homeserverUrl + "/_matrix/client/v3/sync?timeout=0");
             HttpRequest syncReq = HttpRequest.newBuilder()
                     .uri(URI.create(syncUrl))
                     .header("Authorization", "Bearer " + accessToken)
@@ -177,8 +199,12 @@ public class LastMessageService {
      * Check if a message is the latest in the room
      */
     private boolean isLatestMessage(String roomId, String eventId) {
+        String latest = roomIndex.latestMessage(roomId);
+        if (latest != null) {
+            return eventId.equals(latest);
+        }
         try {
-            String syncUrl = homeserverUrl + "/_matrix/client/v3/sync?timeout=0";
+            String syncUrl = syncFilter.apply(homeserverUrl + "/_matrix/client/v3/sync?timeout=0");
             HttpRequest syncReq = HttpRequest.newBuilder()
                     .uri(URI.create(syncUrl))
                     .header("Authorization", "Bearer " + accessToken)
@@ -0,0 +1,30 @@
+package com.robomwm.ai.matrixrobobot;
+
+/**
+ * Thread-safe count/average/max accumulator for latency measurements in nanoseconds.
+ */
+public class LatencyStats {
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public synchronized void record(long nanos) {
+        count++;
+        totalNanos += nanos;
+        if (nanos > maxNanos) {
+            maxNanos = nanos;
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Format as "n=<count> avg=<ms> max=<ms>"
+     */
+    public synchronized String summary() {
+        double avgMs = count == 0 ? 0.0 : totalNanos / (double) count / 1_000_000.0;
+        return String.format("n=%d avg=%.1fms max=%.1fms", count, avgMs, maxNanos / 1_000_000.0);
+    }
+}
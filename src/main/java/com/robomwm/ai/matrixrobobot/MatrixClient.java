@@ -1,37 +1,61 @@
 package com.robomwm.ai.matrixrobobot;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.commonmark.parser.Parser;
-import org.commonmark.renderer.html.HtmlRenderer;
 
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.time.Instant;
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Handles all Matrix protocol interactions including sending messages,
  * getting user info, managing room state, etc.
+ *
+ * Messages go out through the {@link OutboundQueue}, which keeps per-room order and retries
+ * rate-limited sends.
+ *
+ * Every operation has a non-blocking *Async variant built on {@link HttpClient#sendAsync}
+ * that completes exceptionally on transport errors or timeouts (failures are logged once,
+ * inside the future). The blocking variants wait on the async one and fall back to the
+ * previous defaults (null/false/0/empty) on failure.
  */
 public class MatrixClient {
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final int DM_LOOKUP_CONCURRENCY = 8;
+
     private final HttpClient httpClient;
     private final ObjectMapper mapper;
     private final String homeserverUrl;
     private final String accessToken;
+    private final RoomStateCache roomStateCache;
+    private final OutboundQueue outboundQueue;
+    private final MessageEncoder encoder;
 
-    public MatrixClient(HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken) {
+    public MatrixClient(HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken, RoomStateCache roomStateCache,
+                        OutboundQueue outboundQueue, MessageEncoder encoder) {
         this.httpClient = httpClient;
         this.mapper = mapper;
-        this.homeserverUrl = homeserverUrl.endsWith("/") 
-            ? homeserverUrl.substring(0, homeserverUrl.length() - 1) 
+        this.homeserverUrl = homeserverUrl.endsWith("/")
+            ? homeserverUrl.substring(0, homeserverUrl.length() - 1)
             : homeserverUrl;
         this.accessToken = accessToken;
+        this.roomStateCache = roomStateCache;
+        this.outboundQueue = outboundQueue;
+        this.encoder = encoder;
     }
 
     /**
@@ -65,307 +89,346 @@ public class MatrixClient {
      * Send a plain text message to a room
      */
     public void sendText(String roomId, String message) {
-        try {
-            String txnId = "m" + Instant.now().toEpochMilli();
-            String encodedRoom = URLEncoder.encode(roomId, StandardCharsets.UTF_8);
-            String endpoint = homeserverUrl + "/_matrix/client/v3/rooms/" + encodedRoom + "/send/m.room.message/" + txnId;
-            
-            String sanitizedMessage = sanitizeUserIds(message);
-            
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("msgtype", "m.text");
-            payload.put("body", sanitizedMessage);
-            payload.put("m.mentions", Map.of());
-            String json = mapper.writeValueAsString(payload);
+        await(sendTextAsync(roomId, message), null);
+    }
 
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(endpoint))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .header("Content-Type", "application/json")
-                    .PUT(HttpRequest.BodyPublishers.ofString(json))
-                    .build();
+    public CompletableFuture<Void> sendTextAsync(String roomId, String message) {
+        return outboundQueue.send(roomId, encoder.textPayload(encoder.sanitize(message)))
+                .thenAccept(response -> System.out.println("Sent reply to " + roomId + " -> " + response.statusCode()))
+                .whenComplete(logFailure("Failed to send message"));
+    }
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            System.out.println("Sent reply to " + roomId + " -> " + response.statusCode());
-        } catch (Exception e) {
-            System.out.println("Failed to send message: " + e.getMessage());
-        }
+    /**
+     * Send a short status line that may be merged with others sent to the room in the same
+     * coalescing window, for bursts such as busy replies to a flood of commands
+     */
+    public CompletableFuture<Void> sendTextCoalescedAsync(String roomId, String message) {
+        return outboundQueue.sendCoalescible(roomId, encoder.sanitize(message))
+                .thenAccept(response -> System.out.println("Sent status to " + roomId + " -> " + response.statusCode()))
+                .whenComplete(logFailure("Failed to send message"));
     }
 
     /**
      * Send a text message and return the event ID
      */
     public String sendTextWithEventId(String roomId, String message) {
-        try {
-            String txnId = "m" + Instant.now().toEpochMilli();
-            String encodedRoom = URLEncoder.encode(roomId, StandardCharsets.UTF_8);
-            String endpoint = homeserverUrl + "/_matrix/client/v3/rooms/" + encodedRoom + "/send/m.room.message/" + txnId;
-            
-            String sanitizedMessage = sanitizeUserIds(message);
-            
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("msgtype", "m.text");
-            payload.put("body", sanitizedMessage);
-            payload.put("m.mentions", Map.of());
-            String json = mapper.writeValueAsString(payload);
-
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(endpoint))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .header("Content-Type", "application/json")
-                    .PUT(HttpRequest.BodyPublishers.ofString(json))
-                    .build();
+        return await(sendTextWithEventIdAsync(roomId, message), null);
+    }
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                JsonNode root = mapper.readTree(response.body());
-                return root.path("event_id").asText(null);
-            }
-            System.out.println("Sent message to " + roomId + " -> " + response.statusCode());
-            return null;
-        } catch (Exception e) {
-            System.out.println("Failed to send message: " + e.getMessage());
-            return null;
-        }
+    public CompletableFuture<String> sendTextWithEventIdAsync(String roomId, String message) {
+        return outboundQueue.send(roomId, encoder.textPayload(encoder.sanitize(message)))
+                .thenApply(response -> {
+                    if (response.statusCode() == 200) {
+                        return readTree(response.body()).path("event_id").asText(null);
+                    }
+                    System.out.println("Sent message to " + roomId + " -> " + response.statusCode());
+                    return null;
+                })
+                .whenComplete(logFailure("Failed to send message"));
     }
 
     /**
      * Update a previously sent text message
      */
     public String updateTextMessage(String roomId, String originalEventId, String message) {
-        try {
-            String txnId = "m" + Instant.now().toEpochMilli();
-            String encodedRoom = URLEncoder.encode(roomId, StandardCharsets.UTF_8);
-            String endpoint = homeserverUrl + "/_matrix/client/v3/rooms/" + encodedRoom + "/send/m.room.message/" + txnId;
-            
-            String sanitizedMessage = sanitizeUserIds(message);
-            
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("msgtype", "m.text");
-            payload.put("body", "* " + sanitizedMessage);
-            payload.put("m.mentions", Map.of());
-            
-            Map<String, Object> newContent = new HashMap<>();
-            newContent.put("msgtype", "m.text");
-            newContent.put("body", sanitizedMessage);
-            newContent.put("m.mentions", Map.of());
-            payload.put("m.new_content", newContent);
-            
-            Map<String, Object> relatesTo = new HashMap<>();
-            relatesTo.put("event_id", originalEventId);
-            relatesTo.put("rel_type", "m.replace");
-            payload.put("m.relates_to", relatesTo);
-            
-            String json = mapper.writeValueAsString(payload);
-
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(endpoint))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .header("Content-Type", "application/json")
-                    .PUT(HttpRequest.BodyPublishers.ofString(json))
-                    .build();
+        return await(updateTextMessageAsync(roomId, originalEventId, message), null);
+    }
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            System.out.println("Updated message " + originalEventId + " -> " + response.statusCode());
-            
-            if (response.statusCode() == 200) {
-                JsonNode root = mapper.readTree(response.body());
-                return root.path("event_id").asText(null);
-            }
-        } catch (Exception e) {
-            System.out.println("Failed to update message: " + e.getMessage());
-        }
-        return null;
+    public CompletableFuture<String> updateTextMessageAsync(String roomId, String originalEventId, String message) {
+        return outboundQueue.send(roomId, encoder.editPayload(originalEventId, encoder.sanitize(message)))
+                .thenApply(response -> {
+                    System.out.println("Updated message " + originalEventId + " -> " + response.statusCode());
+                    if (response.statusCode() == 200) {
+                        return readTree(response.body()).path("event_id").asText(null);
+                    }
+                    return (String) null;
+                })
+                .whenComplete(logFailure("Failed to update message"));
     }
 
     /**
      * Send a markdown formatted message
      */
     public void sendMarkdown(String roomId, String message) {
-        try {
-            String txnId = "m" + Instant.now().toEpochMilli();
-            String encodedRoom = URLEncoder.encode(roomId, StandardCharsets.UTF_8);
-            String endpoint = homeserverUrl + "/_matrix/client/v3/rooms/" + encodedRoom + "/send/m.room.message/" + txnId;
-            
-            String sanitizedMessage = sanitizeUserIds(message);
-            String htmlBody = convertMarkdownToHtml(sanitizedMessage);
-            
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("msgtype", "m.text");
-            payload.put("body", sanitizedMessage);
-            payload.put("format", "org.matrix.custom.html");
-            payload.put("formatted_body", htmlBody);
-            payload.put("m.mentions", Map.of());
-            String json = mapper.writeValueAsString(payload);
+        await(sendMarkdownAsync(roomId, message), null);
+    }
 
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(endpoint))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .header("Content-Type", "application/json")
-                    .PUT(HttpRequest.BodyPublishers.ofString(json))
-                    .build();
+    public CompletableFuture<Void> sendMarkdownAsync(String roomId, String message) {
+        return sendMarkdownPayloadAsync(roomId, encoder.markdownPayload(encoder.sanitize(message)));
+    }
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            System.out.println("Sent markdown reply to " + roomId + " -> " + response.statusCode());
-        } catch (Exception e) {
-            System.out.println("Failed to send markdown message: " + e.getMessage());
-        }
+    /**
+     * Send a pre-rendered markdown template, e.g. the !help text
+     */
+    public CompletableFuture<Void> sendTemplateAsync(String roomId, MessageEncoder.Template template) {
+        return sendMarkdownPayloadAsync(roomId, template.payload);
+    }
+
+    private CompletableFuture<Void> sendMarkdownPayloadAsync(String roomId, byte[] payload) {
+        return outboundQueue.send(roomId, payload)
+                .thenAccept(response -> System.out.println("Sent markdown reply to " + roomId + " -> " + response.statusCode()))
+                .whenComplete(logFailure("Failed to send markdown message"));
     }
 
     /**
      * Join a room
      */
     public boolean joinRoom(String roomId) {
-        try {
-            String joinUrl = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/join";
-            Map<String, Object> payload = new HashMap<>();
-            String jsonPayload = mapper.writeValueAsString(payload);
-            
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(joinUrl))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
-                    .build();
-            
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                System.out.println("Successfully joined room: " + roomId);
-                return true;
-            } else {
-                System.out.println("Failed to join room " + roomId + ": " + response.statusCode() + " - " + response.body());
-                return false;
-            }
-        } catch (Exception e) {
-            System.out.println("Error joining room: " + e.getMessage());
-            return false;
-        }
+        return await(joinRoomAsync(roomId), false);
+    }
+
+    public CompletableFuture<Boolean> joinRoomAsync(String roomId) {
+        String joinUrl = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/join";
+        return sendAsync(jsonRequest(joinUrl).POST(HttpRequest.BodyPublishers.ofString("{}")).build())
+                .thenApply(response -> {
+                    if (response.statusCode() == 200) {
+                        System.out.println("Successfully joined room: " + roomId);
+                        return true;
+                    }
+                    System.out.println("Failed to join room " + roomId + ": " + response.statusCode() + " - " + response.body());
+                    return false;
+                })
+                .whenComplete(logFailure("Error joining room"));
     }
 
     /**
      * Leave a room
      */
     public boolean leaveRoom(String roomId) {
-        try {
-            String leaveUrl = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/leave";
-            Map<String, Object> payload = new HashMap<>();
-            String jsonPayload = mapper.writeValueAsString(payload);
-            
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(leaveUrl))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
-                    .build();
-            
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            System.out.println("Bot left room " + roomId + " -> " + response.statusCode());
-            return response.statusCode() == 200;
-        } catch (Exception e) {
-            System.out.println("Error leaving room: " + e.getMessage());
-            return false;
-        }
+        return await(leaveRoomAsync(roomId), false);
+    }
+
+    public CompletableFuture<Boolean> leaveRoomAsync(String roomId) {
+        String leaveUrl = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/leave";
+        return sendAsync(jsonRequest(leaveUrl).POST(HttpRequest.BodyPublishers.ofString("{}")).build())
+                .thenApply(response -> {
+                    System.out.println("Bot left room " + roomId + " -> " + response.statusCode());
+                    return response.statusCode() == 200;
+                })
+                .whenComplete(logFailure("Error leaving room"));
     }
 
     /**
-     * Check if a room is encrypted
+     * Check if a room is encrypted, from the room state cache when known
      */
     public boolean isRoomEncrypted(String roomId) {
-        try {
-            String stateUrl = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/state/m.room.encryption/";
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(stateUrl))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .GET()
-                    .build();
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                JsonNode encryption = mapper.readTree(response.body());
-                if (encryption.has("algorithm")) {
-                    System.out.println("Room " + roomId + " is encrypted with algorithm: " + encryption.path("algorithm").asText());
-                    return true;
-                }
-            }
-            return false;
-        } catch (Exception e) {
-            System.out.println("Error checking room encryption: " + e.getMessage());
-            return false;
+        return await(isRoomEncryptedAsync(roomId), false);
+    }
+
+    public CompletableFuture<Boolean> isRoomEncryptedAsync(String roomId) {
+        Boolean cached = roomStateCache.isEncrypted(roomId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
         }
+        String stateUrl = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/state/m.room.encryption/";
+        return sendAsync(request(stateUrl).GET().build())
+                .thenApply(response -> {
+                    if (response.statusCode() == 200) {
+                        JsonNode encryption = readTree(response.body());
+                        if (encryption.has("algorithm")) {
+                            System.out.println("Room " + roomId + " is encrypted with algorithm: " + encryption.path("algorithm").asText());
+                            roomStateCache.putEncrypted(roomId, true);
+                            return true;
+                        }
+                        roomStateCache.putEncrypted(roomId, false);
+                    } else if (response.statusCode() == 404) {
+                        roomStateCache.putEncrypted(roomId, false);
+                    }
+                    return false;
+                })
+                .whenComplete(logFailure("Error checking room encryption"));
     }
 
     /**
-     * Get the member count of a room
+     * Get the member count of a room, from the room state cache when known
      */
     public int getRoomMemberCount(String roomId) {
-        try {
-            String membersUrl = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/members";
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(membersUrl))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .GET()
-                    .build();
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                JsonNode members = mapper.readTree(response.body()).path("chunk");
-                if (members.isArray()) {
-                    int count = 0;
+        return await(getRoomMemberCountAsync(roomId), 0);
+    }
+
+    public CompletableFuture<Integer> getRoomMemberCountAsync(String roomId) {
+        int cached = roomStateCache.getMemberCount(roomId);
+        if (cached >= 0) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        String membersUrl = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/members";
+        return sendAsync(request(membersUrl).GET().build())
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        return 0;
+                    }
+                    JsonNode members = readTree(response.body()).path("chunk");
+                    if (!members.isArray()) {
+                        return 0;
+                    }
+                    Set<String> joined = new HashSet<>();
+                    int invited = 0;
                     for (JsonNode member : members) {
                         String membership = member.path("content").path("membership").asText(null);
-                        if ("join".equals(membership) || "invite".equals(membership)) {
-                            count++;
+                        if ("join".equals(membership)) {
+                            joined.add(member.path("state_key").asText());
+                        } else if ("invite".equals(membership)) {
+                            invited++;
                         }
                     }
-                    return count;
-                }
-            }
-        } catch (Exception e) {
-            System.out.println("Error getting room member count: " + e.getMessage());
-        }
-        return 0;
+                    roomStateCache.putMembers(roomId, joined);
+                    roomStateCache.putMemberCount(roomId, joined.size(), invited);
+                    return joined.size() + invited;
+                })
+                .whenComplete(logFailure("Error getting room member count"));
     }
 
     /**
      * Get list of joined rooms
      */
-    public java.util.List<String> getJoinedRooms() {
-        java.util.List<String> rooms = new java.util.ArrayList<>();
-        try {
-            String joinedRoomsUrl = homeserverUrl + "/_matrix/client/v3/joined_rooms";
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(joinedRoomsUrl))
-                    .header("Authorization", "Bearer " + accessToken)
-                    .GET()
-                    .build();
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                JsonNode joinedRooms = mapper.readTree(response.body()).path("joined_rooms");
-                if (joinedRooms.isArray()) {
-                    for (JsonNode roomId : joinedRooms) {
-                        rooms.add(roomId.asText());
+    public List<String> getJoinedRooms() {
+        return await(getJoinedRoomsAsync(), new ArrayList<>());
+    }
+
+    public CompletableFuture<List<String>> getJoinedRoomsAsync() {
+        String joinedRoomsUrl = homeserverUrl + "/_matrix/client/v3/joined_rooms";
+        return sendAsync(request(joinedRoomsUrl).GET().build())
+                .thenApply(response -> {
+                    List<String> rooms = new ArrayList<>();
+                    if (response.statusCode() == 200) {
+                        JsonNode joinedRooms = readTree(response.body()).path("joined_rooms");
+                        if (joinedRooms.isArray()) {
+                            for (JsonNode roomId : joinedRooms) {
+                                rooms.add(roomId.asText());
+                            }
+                        }
                     }
+                    return rooms;
+                })
+                .whenComplete(logFailure("Error getting joined rooms"));
+    }
+
+    /**
+     * Find a DM room (exactly 2 joined members) shared with the user.
+     * Answered from the room state cache when possible; otherwise looks up the members of the
+     * user's m.direct rooms first, then rooms naming them as a summary hero, then of the other
+     * joined rooms, a few at a time, stopping at
+     * the first match. What it learns is recorded in the cache.
+     */
+    public String findDirectMessageRoom(String targetUserId) {
+        return await(findDirectMessageRoomAsync(targetUserId), null);
+    }
+
+    public CompletableFuture<String> findDirectMessageRoomAsync(String targetUserId) {
+        String cached = roomStateCache.findDirectRoom(targetUserId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return getJoinedRoomsAsync().thenCompose(roomIds -> {
+            Set<String> joined = new HashSet<>(roomIds);
+            Set<String> ordered = new LinkedHashSet<>();
+            for (String roomId : roomStateCache.getDirectRooms(targetUserId)) {
+                if (joined.contains(roomId)) {
+                    ordered.add(roomId);
                 }
             }
-        } catch (Exception e) {
-            System.out.println("Error getting joined rooms: " + e.getMessage());
+            for (String roomId : roomStateCache.getHeroRooms(targetUserId)) {
+                if (joined.contains(roomId)) {
+                    ordered.add(roomId);
+                }
+            }
+            ordered.addAll(roomIds);
+            return findDirectMessageRoomAsync(targetUserId, new ArrayList<>(ordered), 0);
+        });
+    }
+
+    /**
+     * Check the members of the next few rooms, moving on to the rest only if none is a DM
+     */
+    private CompletableFuture<String> findDirectMessageRoomAsync(String targetUserId, List<String> roomIds, int from) {
+        if (from >= roomIds.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<CompletableFuture<String>> lookups = new ArrayList<>();
+        for (String roomId : roomIds.subList(from, Math.min(roomIds.size(), from + DM_LOOKUP_CONCURRENCY))) {
+            lookups.add(getJoinedMembersAsync(roomId)
+                    .handle((members, e) -> {
+                        if (members == null) {
+                            return null;
+                        }
+                        roomStateCache.putMembers(roomId, members);
+                        // A DM usually has exactly 2 members: the bot and the target user
+                        return members.size() == 2 && members.contains(targetUserId) ? roomId : null;
+                    }));
         }
-        return rooms;
+        return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenCompose(done -> {
+            for (CompletableFuture<String> lookup : lookups) {
+                String roomId = lookup.join();
+                if (roomId != null) {
+                    roomStateCache.putDirectRoom(targetUserId, roomId);
+                    return CompletableFuture.completedFuture(roomId);
+                }
+            }
+            return findDirectMessageRoomAsync(targetUserId, roomIds, from + DM_LOOKUP_CONCURRENCY);
+        });
     }
 
     /**
-     * Convert markdown to HTML using commonmark
+     * Get the joined members of a room, or null on a non-200 response
      */
-    private String convertMarkdownToHtml(String markdown) {
-        Parser parser = Parser.builder().build();
-        HtmlRenderer renderer = HtmlRenderer.builder().build();
-        org.commonmark.node.Node document = parser.parse(markdown);
-        return renderer.render(document);
+    private CompletableFuture<Set<String>> getJoinedMembersAsync(String roomId) {
+        String url = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8) + "/joined_members";
+        return sendAsync(request(url).GET().build())
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        return (Set<String>) null;
+                    }
+                    Set<String> members = new HashSet<>();
+                    readTree(response.body()).path("joined").fieldNames().forEachRemaining(members::add);
+                    return members;
+                })
+                .whenComplete(logFailure("Error getting joined members"));
+    }
+
+    private HttpRequest.Builder request(String url) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Authorization", "Bearer " + accessToken);
+    }
+
+    private HttpRequest.Builder jsonRequest(String url) {
+        return request(url).header("Content-Type", "application/json");
+    }
+
+    private CompletableFuture<HttpResponse<String>> sendAsync(HttpRequest request) {
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private JsonNode readTree(String body) {
+        try {
+            return mapper.readTree(body);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
-     * Sanitize user IDs to prevent pinging
+     * Log a failed future once, with the same messages the blocking methods used to print
      */
-    private String sanitizeUserIds(String message) {
-        return message.replaceAll("(?<!`)(?<!`<)(@[a-zA-Z0-9._=-]+:[a-zA-Z0-9.-]+)(?!`)", "`$1`");
+    private static <T> java.util.function.BiConsumer<T, Throwable> logFailure(String message) {
+        return (result, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                System.out.println(message + ": " + cause.getMessage());
+            }
+        };
+    }
+
+    /**
+     * Block on a future, returning the fallback if it failed
+     */
+    private static <T> T await(CompletableFuture<T> future, T fallback) {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            return fallback;
+        }
     }
 
     public String getHomeserverUrl() {
@@ -379,4 +442,16 @@ public class MatrixClient {
     public ObjectMapper getMapper() {
         return mapper;
     }
+
+    public MessageEncoder getEncoder() {
+        return encoder;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    public RoomStateCache getRoomStateCache() {
+        return roomStateCache;
+    }
 }
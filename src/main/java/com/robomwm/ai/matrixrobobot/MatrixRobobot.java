@@ -1,29 +1,41 @@
 package com.robomwm.ai.matrixrobobot;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.InputStream;
 import java.net.URI;
-import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Architecture:
- * - MatrixRobobot: Sync loop, !last command, room management
+ * - MatrixRobobot: Wiring, sync pipeline stages, !last command, room management
+ * - SyncPipeline: Overlaps the /sync long-poll with in-order batch processing
  * - MatrixClient: Matrix protocol HTTP interactions
+ * - OutboundQueue: Per-room ordered message sending with rate-limit retries and coalescing
+ * - SyncDecoder: Streaming /sync parser producing SyncBatch
+ * - SyncFilter: Server-side /sync filter declared by the services
  * - RoomHistoryManager: Chat history fetching and pagination
+ * - EventStore: On-disk export room history, filled from sync and backfilled for gaps
  * - LastMessageService: !last command implementation
  * - RoomManagementService: Join/leave/cleanup logic
+ * - RoomStateCache: Encryption, membership and DM state fed by the sync stream
+ * - RoomIndex: Latest message, per-user last message and read receipt fed by the sync stream
+ * - PageCache: LRU of /messages pages by pagination token, invalidated by redactions and edits from sync
+ * - HnswIndex: Approximate nearest-neighbour graph over export room message vectors for !semantic
+ * - PositionalIndex: Word positions of export room messages for !search phrase and NEAR queries
  * - CommandDispatcher: Routing for other commands (export, search, etc.)
+ * - CommandExecutor: Bounded virtual-thread executor all command handlers run on
  */
 
 public class MatrixRobobot {
@@ -38,8 +50,26 @@ public class MatrixRobobot {
     }
     
     private static final Map<String, AtomicBoolean> runningOperations = new ConcurrentHashMap<>();
+
+    private static final int MAX_CONCURRENT_COMMANDS = 16;
+    private static final int MAX_CONCURRENT_COMMANDS_PER_USER = 2;
+    private static final int MAX_QUEUED_COMMANDS = 64;
+    private static final int MAX_QUEUED_COMMANDS_PER_USER = 4;
+    private static final int SYNC_QUEUE_CAPACITY = 4;
+    private static final long OUTBOUND_COALESCE_WINDOW_MS = 150;
+    private static final int BACKFILL_CONCURRENCY = 4;
+    private static final long PAGE_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final int HNSW_M = 16;
+    private static final int HNSW_EF_CONSTRUCTION = 100;
+    private static final int HNSW_EF_SEARCH = 128;
+    /** About 600 bytes per message with int8 vectors and links */
+    private static final int HNSW_MAX_VECTORS = 500_000;
+    /** About 200 bytes per message for postings, event ID and timestamp */
+    private static final int SEARCH_INDEX_MAX_MESSAGES = 1_000_000;
+    private static final long SEMANTIC_SAVE_INTERVAL_MS = 10 * 60 * 1000L;
     
     public static void main(String[] args) throws Exception {
+        long startupNanos = System.nanoTime();
         String configPath = args.length > 0 ? args[0] : "config.json";
         Config config = loadConfig(configPath);
         
@@ -56,147 +86,242 @@ public class MatrixRobobot {
         ObjectMapper mapper = new ObjectMapper();
         
         // Initialize services
-        MatrixClient matrixClient = new MatrixClient(client, mapper, url, config.accessToken);
-        RoomHistoryManager historyManager = new RoomHistoryManager(client, mapper, url, config.accessToken);
-        LastMessageService lastMessageService = new LastMessageService(matrixClient, historyManager, client, mapper, url, config.accessToken);
+        RoomStateCache roomStateCache = new RoomStateCache();
+        TxnIdAllocator txnIds = new TxnIdAllocator(mapper, Paths.get("txn_ids.json"));
+        MessageEncoder messageEncoder = new MessageEncoder(mapper.getFactory());
+        OutboundQueue outboundQueue = new OutboundQueue(client, mapper, url, config.accessToken, txnIds, messageEncoder, OUTBOUND_COALESCE_WINDOW_MS);
+        MatrixClient matrixClient = new MatrixClient(client, mapper, url, config.accessToken, roomStateCache, outboundQueue, messageEncoder);
+        SyncFilter syncFilter = new SyncFilter(client, mapper, url, config.accessToken);
+        SyncCheckpoint checkpoint = new SyncCheckpoint(mapper, Paths.get("sync_checkpoint.json"));
+        EventStore eventStore = new EventStore(mapper, Paths.get("event_store"), Set.of(config.exportRoomId));
+        PageCache pageCache = new PageCache(PAGE_CACHE_BYTES);
+        RoomHistoryManager historyManager = new RoomHistoryManager(client, mapper, url, config.accessToken, syncFilter, checkpoint, eventStore, BACKFILL_CONCURRENCY, pageCache);
+        RoomIndex roomIndex = new RoomIndex();
+        HnswIndex semanticIndex = HnswIndex.loadOrCreate(Paths.get("semantic_index.hnsw"), HashedEmbedder.DIMENSIONS, HNSW_M, HNSW_EF_CONSTRUCTION, HNSW_EF_SEARCH, HNSW_MAX_VECTORS);
+        PositionalIndex searchIndex = new PositionalIndex(SEARCH_INDEX_MAX_MESSAGES);
+        LastMessageService lastMessageService = new LastMessageService(matrixClient, historyManager, client, mapper, url, config.accessToken, syncFilter, roomIndex);
         RoomManagementService roomMgmt = new RoomManagementService(matrixClient, client, mapper, url, config.accessToken);
+        CommandExecutor commandExecutor = new CommandExecutor(matrixClient, MAX_CONCURRENT_COMMANDS, MAX_CONCURRENT_COMMANDS_PER_USER, MAX_QUEUED_COMMANDS, MAX_QUEUED_COMMANDS_PER_USER);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            commandExecutor.shutdown(30, TimeUnit.SECONDS);
+            // Commands finish first so their final replies still make it out
+            outboundQueue.shutdown(10, TimeUnit.SECONDS);
+            try {
+                semanticIndex.save(Paths.get("semantic_index.hnsw"));
+            } catch (Exception e) {
+                System.out.println("Failed to save semantic index: " + e.getMessage());
+            }
+        }, "command-drain"));
         
         // NEW: AutoLastService with explicit HttpClient passed
-        AutoLastService autoLastService = new AutoLastService(matrixClient, lastMessageService, client, mapper, url, config.accessToken);
+        AutoLastService autoLastService = new AutoLastService(matrixClient, lastMessageService, commandExecutor, client, mapper, url, config.accessToken);
         
         // NEW: AutoSummaryService for !autosummary command
-        AutoSummaryService autoSummaryService = new AutoSummaryService(matrixClient, client, mapper, url, config.accessToken, config.arliApiKey);
+        AutoSummaryService autoSummaryService = new AutoSummaryService(matrixClient, commandExecutor, client, mapper, url, config.accessToken, config.arliApiKey, historyManager);
         
-        CommandDispatcher dispatcher = new CommandDispatcher(matrixClient, historyManager, runningOperations, autoSummaryService);
+        CommandDispatcher dispatcher = new CommandDispatcher(matrixClient, historyManager, runningOperations, autoSummaryService, commandExecutor, semanticIndex, searchIndex);
 
         String userId = matrixClient.getUserId();
+        syncFilter.register(userId, List.of(dispatcher, historyManager, lastMessageService, autoLastService, autoSummaryService, roomStateCache));
 
-        String since = null;
-        try {
-            HttpRequest initSync = HttpRequest.newBuilder()
-                    .uri(URI.create(url + "/_matrix/client/v3/sync?timeout=0"))
-                    .header("Authorization", "Bearer " + config.accessToken)
-                    .GET()
-                    .build();
-            HttpResponse<String> initResp = client.send(initSync, HttpResponse.BodyHandlers.ofString());
-            if (initResp.statusCode() == 200) {
-                JsonNode initRoot = mapper.readTree(initResp.body());
-                since = initRoot.path("next_batch").asText(null);
-                System.out.println("Primed since token: " + since);
+        SyncDecoder syncDecoder = new SyncDecoder(mapper.getFactory());
+
+        // Resume from the checkpoint when present; events missed while down are replayed by the first sync
+        String since = checkpoint.getNextBatch();
+        boolean resumed = since != null;
+        if (resumed) {
+            System.out.println("Resuming from sync checkpoint: " + since);
+        } else {
+            // Events may have been missed since the store last saw the sync stream
+            eventStore.closeLive();
+            try {
+                HttpRequest initSync = HttpRequest.newBuilder()
+                        .uri(URI.create(syncFilter.apply(url + "/_matrix/client/v3/sync?timeout=0")))
+                        .header("Authorization", "Bearer " + config.accessToken)
+                        .GET()
+                        .build();
+                HttpResponse<InputStream> initResp = client.send(initSync, HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream body = initResp.body()) {
+                    if (initResp.statusCode() == 200) {
+                        SyncBatch initBatch = syncDecoder.decode(body);
+                        since = initBatch.nextBatch;
+                        roomStateCache.apply(initBatch);
+                        roomIndex.apply(initBatch);
+                        eventStore.apply(initBatch);
+                        checkpoint.update(initBatch);
+                        System.out.println("Primed since token: " + since);
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("Initial sync failed: " + e.getMessage());
             }
-        } catch (Exception e) {
-            System.out.println("Initial sync failed: " + e.getMessage());
         }
 
+        System.out.println("Vector similarity: " + VectorSimilarity.implementation());
         System.out.println("Starting /sync loop");
         System.out.println("Command room: " + config.commandRoomId);
         System.out.println("Export room: " + config.exportRoomId);
         
         roomMgmt.cleanupAbandonedDMs(config.commandRoomId, config.exportRoomId);
 
-        while (true) {
-            try {
-                String syncUrl = url + "/_matrix/client/v3/sync?timeout=30000" 
-                    + (since != null ? "&since=" + URLEncoder.encode(since, StandardCharsets.UTF_8) : "");
+        SyncPipeline pipeline = new SyncPipeline(client, syncDecoder, syncFilter, url, config.accessToken, since, SYNC_QUEUE_CAPACITY);
+
+        // Stage 1: room state, membership changes and command dispatch
+        pipeline.addStage("dispatch", batch -> {
+            roomStateCache.apply(batch);
+            // Before dispatch, so a !last sees the messages of its own batch
+            roomIndex.apply(batch);
+            pageCache.apply(batch);
+
+            // Handle invites
+            for (String roomId : batch.invitedRoomIds) {
+                System.out.println("Invited to room: " + roomId);
+                roomMgmt.handleInvitedRoom(roomId);
+            }
+
+            // Handle leaves
+            for (String roomId : batch.leftRoomIds) {
+                System.out.println("User left room: " + roomId);
+                roomMgmt.handleUserLeftRoom(roomId, config.commandRoomId, config.exportRoomId);
+            }
+
+            // Process rooms
+            for (SyncBatch.JoinedRoom room : batch.joinedRooms) {
+                String roomId = room.roomId;
+                String prevBatch = room.prevBatch;
                 
-                HttpRequest syncReq = HttpRequest.newBuilder()
-                        .uri(URI.create(syncUrl))
-                        .header("Authorization", "Bearer " + config.accessToken)
-                        .GET()
-                        .build();
+                for (SyncBatch.TimelineEvent ev : room.timeline) {
+                    String body = ev.body;
+                    String sender = ev.sender;
+                    
+                    String trimmed = body.trim();
+                    String responseRoomId = roomId;
 
-                HttpResponse<String> syncResp = client.send(syncReq, HttpResponse.BodyHandlers.ofString());
-                if (syncResp.statusCode() != 200) {
-                    System.out.println("/sync returned: " + syncResp.statusCode());
-                    Thread.sleep(2000);
-                    continue;
+                    if (userId != null && userId.equals(sender)) continue;
+
+                    // PRIMARY: !last command
+                    if ("!last".equals(trimmed)) {
+                        System.out.println("Received !last command in " + roomId + " from " + sender);
+                        final String finalSender = sender;
+                        commandExecutor.submit("!last", sender, responseRoomId, () -> lastMessageService.sendLastMessageAndReadReceipt(config.exportRoomId, finalSender, responseRoomId));
+                    }
+                    // NEW: !autolast command
+                    else if ("!autolast".equals(trimmed)) {
+                        System.out.println("Received !autolast command from " + sender);
+                        autoLastService.toggleAutoLast(sender, responseRoomId);
+                    }
+                    // !ping for diagnostics
+                    else if ("!ping".equals(trimmed)) {
+                        System.out.println("Received !ping command in " + roomId + " from " + sender);
+                        long messageTimestamp = ev.originServerTs > 0 ? ev.originServerTs : System.currentTimeMillis();
+                        long latencyMs = System.currentTimeMillis() - messageTimestamp;
+                        matrixClient.sendTextAsync(responseRoomId, "Pong! (ping took " + latencyMs + " ms)");
+                    }
+                    // All other commands
+                    else {
+                        dispatcher.dispatchCommand(trimmed, roomId, sender, prevBatch, responseRoomId, config.exportRoomId);
+                    }
                 }
+            }
+        // Commands mustn't be handled twice, so a failed batch isn't retried
+        }, 1, null);
 
-                JsonNode root = mapper.readTree(syncResp.body());
-                since = root.path("next_batch").asText(since);
+        // Stage 2: read receipts, which may block on HTTP without holding up command delivery
+        pipeline.addStage("receipts", batch -> {
+            for (SyncBatch.JoinedRoom room : batch.joinedRooms) {
+                autoLastService.processReceipts(room.roomId, room.receipts, config.exportRoomId);
+                autoSummaryService.processReceipts(room.roomId, room.receipts, config.exportRoomId);
+            }
+        });
 
-                // Handle invites
-                JsonNode inviteRooms = root.path("rooms").path("invite");
-                Iterator<String> inviteRoomIds = inviteRooms.fieldNames();
-                while (inviteRoomIds.hasNext()) {
-                    String roomId = inviteRoomIds.next();
-                    System.out.println("Invited to room: " + roomId);
-                    roomMgmt.handleInvitedRoom(roomId);
-                }
+        // Stage 3: append export room messages to the local event store; appending twice would
+        // duplicate events, so a failed batch ends the live range instead, leaving a gap to backfill
+        pipeline.addStage("store", eventStore::apply, 1, batch -> eventStore.closeLive());
 
-                // Handle leaves
-                JsonNode leaveRooms = root.path("rooms").path("leave");
-                Iterator<String> leaveRoomIds = leaveRooms.fieldNames();
-                while (leaveRoomIds.hasNext()) {
-                    String roomId = leaveRoomIds.next();
-                    System.out.println("User left room: " + roomId);
-                    roomMgmt.handleUserLeftRoom(roomId, config.commandRoomId, config.exportRoomId);
+        // Stage 4: index export room messages for !semantic over long windows, topped up from the event store once the first batch is stored
+        AtomicBoolean semanticSeeded = new AtomicBoolean();
+        pipeline.addStage("semantic", batch -> {
+            for (SyncBatch.JoinedRoom room : batch.joinedRooms) {
+                if (!room.roomId.equals(config.exportRoomId)) continue;
+                if (room.limited) {
+                    semanticIndex.gap(room.timeline.isEmpty() ? System.currentTimeMillis() : room.timeline.get(0).originServerTs);
                 }
-
-                // Process rooms
-                JsonNode rooms = root.path("rooms").path("join");
-                Iterator<String> roomIds = rooms.fieldNames();
-                while (roomIds.hasNext()) {
-                    String roomId = roomIds.next();
-                    JsonNode roomNode = rooms.path(roomId);
-                    
-                    // NEW: Process Ephemeral Events (Read Receipts)
-                    JsonNode ephemeralEvents = roomNode.path("ephemeral").path("events");
-                    autoLastService.processEphemeralEvents(roomId, ephemeralEvents, config.exportRoomId);
-                    autoSummaryService.processEphemeralEvents(roomId, ephemeralEvents, config.exportRoomId);
-
-                    JsonNode timelineNode = roomNode.path("timeline");
-                    String prevBatch = timelineNode.path("prev_batch").asText(null);
-                    JsonNode timeline = timelineNode.path("events");
-                    
-                    if (timeline.isArray()) {
-                        for (JsonNode ev : timeline) {
-                            if (!"m.room.message".equals(ev.path("type").asText(null))) continue;
-                            
-                            String body = ev.path("content").path("body").asText(null);
-                            String sender = ev.path("sender").asText(null);
-                            if (body == null) continue;
-                            
-                            String trimmed = body.trim();
-                            String responseRoomId = roomId;
-
-                            if (userId != null && userId.equals(sender)) continue;
-
-                            // PRIMARY: !last command
-                            if ("!last".equals(trimmed)) {
-                                System.out.println("Received !last command in " + roomId + " from " + sender);
-                                final String finalSender = sender;
-                                new Thread(() -> lastMessageService.sendLastMessageAndReadReceipt(config.exportRoomId, finalSender, responseRoomId)).start();
-                            }
-                            // NEW: !autolast command
-                            else if ("!autolast".equals(trimmed)) {
-                                System.out.println("Received !autolast command from " + sender);
-                                autoLastService.toggleAutoLast(sender, responseRoomId);
-                            }
-                            // !ping for diagnostics
-                            else if ("!ping".equals(trimmed)) {
-                                System.out.println("Received !ping command in " + roomId + " from " + sender);
-                                long messageTimestamp = ev.path("origin_server_ts").asLong(System.currentTimeMillis());
-                                long latencyMs = System.currentTimeMillis() - messageTimestamp;
-                                matrixClient.sendText(responseRoomId, "Pong! (ping took " + latencyMs + " ms)");
-                            }
-                            // All other commands
-                            else {
-                                dispatcher.dispatchCommand(trimmed, roomId, sender, prevBatch, responseRoomId, config.exportRoomId);
-                            }
-                        }
+                for (SyncBatch.TimelineEvent ev : room.timeline) {
+                    semanticIndex.add(ev.eventId, ev.originServerTs, HashedEmbedder.embed(ev.body));
+                }
+            }
+            if (semanticSeeded.compareAndSet(false, true)) {
+                Thread.ofPlatform().daemon().name("semantic-seed").start(() -> {
+                    long seedStart = System.nanoTime();
+                    try {
+                        semanticIndex.seed(eventStore, config.exportRoomId);
+                        System.out.println("Semantic index seeded to " + semanticIndex.size() + " messages in " + (System.nanoTime() - seedStart) / 1_000_000 + " ms");
+                    } catch (Exception e) {
+                        System.out.println("Failed to seed semantic index: " + e.getMessage());
                     }
+                });
+            }
+        }, SyncPipeline.DEFAULT_ATTEMPTS, batch -> semanticIndex.gap(System.currentTimeMillis()));
+
+        // Stage 5: index export room messages for !search, seeded from the event store once the first batch is stored
+        AtomicBoolean searchSeeded = new AtomicBoolean();
+        pipeline.addStage("search", batch -> {
+            for (SyncBatch.JoinedRoom room : batch.joinedRooms) {
+                if (!room.roomId.equals(config.exportRoomId)) continue;
+                // A limited timeline skipped messages even when nothing new came with it
+                if (room.limited) {
+                    searchIndex.gap(room.timeline.isEmpty() ? System.currentTimeMillis() : room.timeline.get(0).originServerTs);
                 }
+                for (SyncBatch.TimelineEvent ev : room.timeline) {
+                    searchIndex.add(ev.eventId, ev.originServerTs, ev.body);
+                }
+            }
+            if (searchSeeded.compareAndSet(false, true)) {
+                Thread.ofPlatform().daemon().name("search-seed").start(() -> {
+                    long seedStart = System.nanoTime();
+                    try {
+                        searchIndex.seed(eventStore, config.exportRoomId);
+                        System.out.println("Search index seeded with " + searchIndex.size() + " messages in " + (System.nanoTime() - seedStart) / 1_000_000 + " ms");
+                    } catch (Exception e) {
+                        System.out.println("Failed to seed search index: " + e.getMessage());
+                    }
+                });
+            }
+        }, SyncPipeline.DEFAULT_ATTEMPTS, batch -> searchIndex.gap(System.currentTimeMillis()));
 
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            } catch (Exception e) {
-                System.out.println("Error during sync loop: " + e.getMessage());
-                e.printStackTrace();
-                try { Thread.sleep(2000); } catch (InterruptedException ex) { Thread.currentThread().interrupt(); break; }
+        // Stage 6: persist the position once every stage has handled or given up on the batch
+        AtomicBoolean firstSync = new AtomicBoolean(true);
+        AtomicLong semanticSavedAt = new AtomicLong(System.currentTimeMillis());
+        AtomicBoolean semanticSaving = new AtomicBoolean();
+        pipeline.addStage("checkpoint", batch -> {
+            checkpoint.update(batch);
+            // Every stage has indexed this batch, so the saved graph is complete up to the checkpoint
+            long now = System.currentTimeMillis();
+            if (now - semanticSavedAt.get() >= SEMANTIC_SAVE_INTERVAL_MS && semanticSaving.compareAndSet(false, true)) {
+                semanticSavedAt.set(now);
+                Thread.ofPlatform().daemon().name("semantic-save").start(() -> {
+                    try {
+                        semanticIndex.save(Paths.get("semantic_index.hnsw"));
+                    } catch (Exception e) {
+                        System.out.println("Failed to save semantic index: " + e.getMessage());
+                    } finally {
+                        semanticSaving.set(false);
+                    }
+                });
             }
-        }
+            if (firstSync.compareAndSet(true, false)) {
+                long elapsedMs = (System.nanoTime() - startupNanos) / 1_000_000;
+                System.out.println("Time to first sync: " + elapsedMs + " ms (" + (resumed ? "resumed from checkpoint" : "cold start") + ")");
+            }
+        });
+
+        dispatcher.addStatsSource(pipeline::formatStats);
+        dispatcher.addStatsSource(outboundQueue::formatStats);
+        dispatcher.addStatsSource(roomIndex::formatStats);
+        dispatcher.addStatsSource(pageCache::formatStats);
+        dispatcher.addStatsSource(semanticIndex::formatStats);
+        dispatcher.addStatsSource(searchIndex::formatStats);
+        pipeline.run();
     }
     
     private static Config loadConfig(String configPath) {
@@ -0,0 +1,142 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds m.room.message payloads. The commonmark parser and renderer are immutable and shared,
+ * the mention sanitizer is precompiled, and payloads are streamed through a JsonGenerator
+ * straight into the byte[] that becomes the request body.
+ */
+public class MessageEncoder {
+    /** User IDs not already inside backticks */
+    private static final Pattern USER_ID = Pattern.compile("(?<!`)(?<!`<)(@[a-zA-Z0-9._=-]+:[a-zA-Z0-9.-]+)(?!`)");
+
+    private static final Parser PARSER = Parser.builder().build();
+    private static final HtmlRenderer RENDERER = HtmlRenderer.builder().build();
+
+    /**
+     * A pre-encoded markdown message for fixed texts such as !help
+     */
+    public static class Template {
+        public final String body;
+        /** Shared encoded payload, must not be modified */
+        final byte[] payload;
+
+        private Template(String body, byte[] payload) {
+            this.body = body;
+            this.payload = payload;
+        }
+    }
+
+    private final JsonFactory jsonFactory;
+
+    public MessageEncoder(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Wrap user IDs in backticks to prevent pinging, in a single pass
+     */
+    public String sanitize(String message) {
+        if (message.indexOf('@') < 0) {
+            return message;
+        }
+        Matcher matcher = USER_ID.matcher(message);
+        if (!matcher.find()) {
+            return message;
+        }
+        StringBuilder sb = new StringBuilder(message.length() + 16);
+        int last = 0;
+        do {
+            sb.append(message, last, matcher.start()).append('`').append(message, matcher.start(), matcher.end()).append('`');
+            last = matcher.end();
+        } while (matcher.find());
+        return sb.append(message, last, message.length()).toString();
+    }
+
+    public String renderMarkdown(String markdown) {
+        return RENDERER.render(PARSER.parse(markdown));
+    }
+
+    /**
+     * Plain text message; the body must already be sanitized
+     */
+    public byte[] textPayload(String body) {
+        try (ByteArrayBuilder out = new ByteArrayBuilder(body.length() + 64);
+             JsonGenerator gen = jsonFactory.createGenerator(out)) {
+            gen.writeStartObject();
+            writeTextFields(gen, body);
+            gen.writeEndObject();
+            gen.flush();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Markdown message with an HTML formatted_body; the body must already be sanitized
+     */
+    public byte[] markdownPayload(String body) {
+        String html = renderMarkdown(body);
+        try (ByteArrayBuilder out = new ByteArrayBuilder(body.length() + html.length() + 128);
+             JsonGenerator gen = jsonFactory.createGenerator(out)) {
+            gen.writeStartObject();
+            writeTextFields(gen, body);
+            gen.writeStringField("format", "org.matrix.custom.html");
+            gen.writeStringField("formatted_body", html);
+            gen.writeEndObject();
+            gen.flush();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * m.replace edit of an earlier message; the body must already be sanitized
+     */
+    public byte[] editPayload(String originalEventId, String body) {
+        try (ByteArrayBuilder out = new ByteArrayBuilder(2 * body.length() + 256);
+             JsonGenerator gen = jsonFactory.createGenerator(out)) {
+            gen.writeStartObject();
+            writeTextFields(gen, "* " + body);
+            gen.writeObjectFieldStart("m.new_content");
+            writeTextFields(gen, body);
+            gen.writeEndObject();
+            gen.writeObjectFieldStart("m.relates_to");
+            gen.writeStringField("event_id", originalEventId);
+            gen.writeStringField("rel_type", "m.replace");
+            gen.writeEndObject();
+            gen.writeEndObject();
+            gen.flush();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sanitize, render and encode a fixed markdown text once so it can be sent repeatedly
+     */
+    public Template template(String markdown) {
+        String body = sanitize(markdown);
+        return new Template(body, markdownPayload(body));
+    }
+
+    private static void writeTextFields(JsonGenerator gen, String body) throws IOException {
+        gen.writeStringField("msgtype", "m.text");
+        gen.writeStringField("body", body);
+        gen.writeObjectFieldStart("m.mentions");
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,192 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Locality-sensitive candidate lookup for Jaccard search. Each message's word set is summarised by
+ * a MinHash signature (per hash function, the smallest hash of any of its term IDs); two sets agree on
+ * one signature entry with probability equal to their Jaccard similarity. Signatures are cut into
+ * bands of rows, and messages whose band matches the query's band land in the same bucket. Only
+ * those candidates get the exact {@link SemanticSearchEngine#calculateTextSimilarity} score.
+ *
+ * The band shape is picked from the threshold and a recall target: a message with Jaccard exactly
+ * at the threshold is found with at least that probability, and more similar ones more often.
+ */
+public class MinHashIndex {
+    private static class Bucket {
+        int[] ordinals = new int[2];
+        int size;
+
+        void add(int ordinal) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+            }
+            ordinals[size++] = ordinal;
+        }
+    }
+
+    private final double threshold;
+    private final int bands;
+    private final int rows;
+    private final long[] seeds;
+    private final List<Map<Long, Bucket>> buckets = new ArrayList<>();
+    private final List<SemanticSearchEngine.MessageEmbedding> messages = new ArrayList<>();
+
+    /**
+     * @param threshold Jaccard score results must exceed
+     * @param recallTarget Probability of finding a message scoring exactly the threshold, e.g. 0.95
+     * @param maxHashes Upper bound on the signature length
+     */
+    public MinHashIndex(double threshold, double recallTarget, int maxHashes) {
+        this.threshold = threshold;
+        int[] shape = bandShape(threshold, recallTarget, maxHashes);
+        this.bands = shape[0];
+        this.rows = shape[1];
+        this.seeds = new long[bands * rows];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = mix(0x9e3779b97f4a7c15L * (i + 1));
+        }
+        for (int b = 0; b < bands; b++) {
+            buckets.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * Bands and rows per band: the most rows (fewest, most selective buckets) whose band count
+     * still reaches the recall target within maxHashes, since P(found) = 1 - (1 - t^rows)^bands
+     */
+    static int[] bandShape(double threshold, double recallTarget, int maxHashes) {
+        for (int rows = maxHashes; rows >= 1; rows--) {
+            double hitPerBand = Math.pow(threshold, rows);
+            double bands = Math.max(1, Math.ceil(Math.log1p(-recallTarget) / Math.log1p(-hitPerBand)));
+            if (bands * rows <= maxHashes) {
+                return new int[]{(int) bands, rows};
+            }
+        }
+        return new int[]{maxHashes, 1};
+    }
+
+    /**
+     * Index of the messages, in list order
+     */
+    public static MinHashIndex of(List<SemanticSearchEngine.MessageEmbedding> messages, double threshold, double recallTarget, int maxHashes) {
+        MinHashIndex index = new MinHashIndex(threshold, recallTarget, maxHashes);
+        for (SemanticSearchEngine.MessageEmbedding message : messages) {
+            index.add(message);
+        }
+        return index;
+    }
+
+    public int bands() {
+        return bands;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * @return P(a message scoring Jaccard j becomes a candidate)
+     */
+    public double recallAt(double j) {
+        return 1 - Math.pow(1 - Math.pow(j, rows), bands);
+    }
+
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    public synchronized void add(SemanticSearchEngine.MessageEmbedding message) {
+        int ordinal = messages.size();
+        messages.add(message);
+        int[] signature = signature(SemanticSearchEngine.terms(message));
+        if (signature == null) {
+            // No words, so it can't score above the threshold against anything
+            return;
+        }
+        // Only the band keys are kept: one int ordinal per band in that band's bucket
+        for (int b = 0; b < bands; b++) {
+            buckets.get(b).computeIfAbsent(bandKey(signature, b), k -> new Bucket()).add(ordinal);
+        }
+    }
+
+    /**
+     * @return up to topK messages scoring above the threshold, best first (ties in index order),
+     *         each carrying its score in embedding[0]
+     */
+    public synchronized List<SemanticSearchEngine.MessageEmbedding> search(String query, int topK) {
+        int[] queryTerms = SemanticSearchEngine.TOKENIZER.termSet(query);
+        int[] signature = signature(queryTerms);
+        if (signature == null || topK <= 0) {
+            return new ArrayList<>();
+        }
+        int[] candidates = new int[64];
+        int count = 0;
+        for (int b = 0; b < bands; b++) {
+            Bucket bucket = buckets.get(b).get(bandKey(signature, b));
+            if (bucket == null) {
+                continue;
+            }
+            if (count + bucket.size > candidates.length) {
+                candidates = Arrays.copyOf(candidates, Math.max(count + bucket.size, candidates.length * 2));
+            }
+            System.arraycopy(bucket.ordinals, 0, candidates, count, bucket.size);
+            count += bucket.size;
+        }
+        // Ascending ordinals, each once, so equal scores keep index order
+        Arrays.sort(candidates, 0, count);
+        TopK best = new TopK(topK);
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && candidates[i] == candidates[i - 1]) {
+                continue;
+            }
+            double similarity = Tokenizer.jaccard(queryTerms, SemanticSearchEngine.terms(messages.get(candidates[i])));
+            if (similarity > threshold) {
+                best.offer(candidates[i], similarity);
+            }
+        }
+        return SemanticSearchEngine.results(best, messages);
+    }
+
+    /**
+     * @return null for an empty word set
+     */
+    private int[] signature(int[] terms) {
+        if (terms.length == 0) {
+            return null;
+        }
+        int[] signature = new int[seeds.length];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (int term : terms) {
+            long h = mix(term);
+            for (int i = 0; i < seeds.length; i++) {
+                int value = (int) (mix(h ^ seeds[i]) >>> 33);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    private long bandKey(int[] signature, int band) {
+        long key = band;
+        for (int r = 0; r < rows; r++) {
+            key = key * 0x100000001b3L + signature[band * rows + r];
+        }
+        return key;
+    }
+
+    /**
+     * SplitMix64 finalizer
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
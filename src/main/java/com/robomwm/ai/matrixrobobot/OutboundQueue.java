@@ -0,0 +1,369 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound m.room.message pipeline. Each room has its own FIFO queue drained by one virtual
+ * thread at a time, so replies to a room are delivered in the order they were sent while rooms
+ * don't hold each other up. Rate-limited (429) sends wait for retry_after_ms and are retried
+ * with the same transaction ID, which the homeserver deduplicates, so a retry never posts twice;
+ * transport errors and 5xx responses are retried the same way with backoff. A room's queue is
+ * dropped once it drains.
+ * Messages sent with {@link #sendCoalescible} wait a short window for followers and consecutive
+ * ones to the same room are coalesced into one event; everything else goes out right away.
+ */
+public class OutboundQueue {
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final int MAX_RATE_LIMIT_RETRIES = 10;
+    private static final int MAX_ERROR_RETRIES = 3;
+    private static final long DEFAULT_RETRY_AFTER_MS = 1000;
+    private static final int MAX_COALESCED_LENGTH = 4000;
+
+    private static class Outgoing {
+        final String txnId;
+        final byte[] payload;
+        /** Sanitized plain-text body if this message may be coalesced, else null */
+        final String coalesceBody;
+        final long enqueuedAt = System.nanoTime();
+        final CompletableFuture<HttpResponse<String>> result = new CompletableFuture<>();
+
+        Outgoing(String txnId, byte[] payload, String coalesceBody) {
+            this.txnId = txnId;
+            this.payload = payload;
+            this.coalesceBody = coalesceBody;
+        }
+    }
+
+    private static class RoomQueue {
+        final Deque<Outgoing> pending = new ArrayDeque<>();
+        boolean draining;
+    }
+
+    private final HttpClient httpClient;
+    private final ObjectMapper mapper;
+    private final String homeserverUrl;
+    private final String accessToken;
+    private final TxnIdAllocator txnIds;
+    private final MessageEncoder encoder;
+    private final long coalesceWindowMs;
+    private final ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("outbound-", 0).factory());
+    private final Map<String, RoomQueue> rooms = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final LatencyStats deliveryTime = new LatencyStats();
+    /** Homeserver rate limits are per user, so a 429 in one room pauses sending in all of them */
+    private final AtomicLong pausedUntilNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param coalesceWindowMs How long to hold a plain-text message for followers to merge with, or 0 to disable coalescing
+     */
+    public OutboundQueue(HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken, TxnIdAllocator txnIds,
+                         MessageEncoder encoder, long coalesceWindowMs) {
+        this.httpClient = httpClient;
+        this.mapper = mapper;
+        this.homeserverUrl = homeserverUrl.endsWith("/")
+            ? homeserverUrl.substring(0, homeserverUrl.length() - 1)
+            : homeserverUrl;
+        this.accessToken = accessToken;
+        this.txnIds = txnIds;
+        this.encoder = encoder;
+        this.coalesceWindowMs = coalesceWindowMs;
+    }
+
+    /**
+     * Queue an encoded m.room.message event for delivery after everything already queued for the room.
+     * @return the final response of the PUT, or an exceptionally completed future if it could not be delivered
+     */
+    public CompletableFuture<HttpResponse<String>> send(String roomId, byte[] payload) {
+        return enqueue(roomId, new Outgoing(txnIds.next(), payload, null));
+    }
+
+    /**
+     * Queue a plain-text message that waits for the coalescing window and may be merged with
+     * adjacent coalescible messages; only for bulk status lines where neither the event ID nor
+     * latency matters
+     * @param body Sanitized message body
+     */
+    public CompletableFuture<HttpResponse<String>> sendCoalescible(String roomId, String body) {
+        return enqueue(roomId, new Outgoing(txnIds.next(), encoder.textPayload(body), body));
+    }
+
+    private CompletableFuture<HttpResponse<String>> enqueue(String roomId, Outgoing outgoing) {
+        boolean[] startDrain = new boolean[1];
+        // Under the map entry's lock, so a draining thread can't drop the queue in between
+        RoomQueue queue = rooms.compute(roomId, (k, existing) -> {
+            RoomQueue q = existing != null ? existing : new RoomQueue();
+            synchronized (q) {
+                q.pending.addLast(outgoing);
+                startDrain[0] = !q.draining;
+                q.draining = true;
+            }
+            return q;
+        });
+        queued.incrementAndGet();
+        if (startDrain[0]) {
+            try {
+                executor.execute(() -> drain(roomId, queue));
+            } catch (RejectedExecutionException e) {
+                rooms.remove(roomId, queue);
+                failAll(queue, e);
+            }
+        }
+        return outgoing.result;
+    }
+
+    private void drain(String roomId, RoomQueue queue) {
+        while (true) {
+            Outgoing head = peekOrRetire(roomId, queue);
+            if (head == null) {
+                return;
+            }
+            if (coalesceWindowMs > 0 && head.coalesceBody != null) {
+                long waitMs = coalesceWindowMs - (System.nanoTime() - head.enqueuedAt) / 1_000_000;
+                if (waitMs > 0) {
+                    try {
+                        Thread.sleep(waitMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            List<Outgoing> batch = takeBatch(queue);
+            queued.addAndGet(-batch.size());
+            deliver(roomId, batch);
+        }
+    }
+
+    /**
+     * @return the next message of the room, or null after removing the emptied queue
+     */
+    private Outgoing peekOrRetire(String roomId, RoomQueue queue) {
+        Outgoing[] head = new Outgoing[1];
+        rooms.computeIfPresent(roomId, (k, q) -> {
+            synchronized (q) {
+                head[0] = q.pending.peekFirst();
+                if (head[0] == null) {
+                    q.draining = false;
+                    return null;
+                }
+            }
+            return q;
+        });
+        return head[0];
+    }
+
+    /**
+     * Take the head of the queue plus any coalescible messages directly behind it
+     */
+    private List<Outgoing> takeBatch(RoomQueue queue) {
+        List<Outgoing> batch = new ArrayList<>();
+        synchronized (queue) {
+            Outgoing head = queue.pending.pollFirst();
+            batch.add(head);
+            if (coalesceWindowMs <= 0 || head.coalesceBody == null) {
+                return batch;
+            }
+            int length = head.coalesceBody.length();
+            while (!queue.pending.isEmpty() && queue.pending.peekFirst().coalesceBody != null) {
+                int next = queue.pending.peekFirst().coalesceBody.length() + 1;
+                if (length + next > MAX_COALESCED_LENGTH) {
+                    break;
+                }
+                length += next;
+                batch.add(queue.pending.pollFirst());
+            }
+        }
+        return batch;
+    }
+
+    private void deliver(String roomId, List<Outgoing> batch) {
+        Outgoing head = batch.get(0);
+        byte[] payload = head.payload;
+        if (batch.size() > 1) {
+            StringBuilder body = new StringBuilder(head.coalesceBody);
+            for (int i = 1; i < batch.size(); i++) {
+                body.append('\n').append(batch.get(i).coalesceBody);
+            }
+            payload = encoder.textPayload(body.toString());
+            coalesced.addAndGet(batch.size() - 1);
+        }
+
+        try {
+            HttpResponse<String> response = put(roomId, head.txnId, payload);
+            sent.incrementAndGet();
+            long now = System.nanoTime();
+            for (Outgoing outgoing : batch) {
+                deliveryTime.record(now - outgoing.enqueuedAt);
+                outgoing.result.complete(response);
+            }
+        } catch (Exception e) {
+            failed.addAndGet(batch.size());
+            System.out.println("Giving up sending to " + roomId + " (txn " + head.txnId + "): " + e.getMessage());
+            for (Outgoing outgoing : batch) {
+                outgoing.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * PUT the event, retrying 429s, transport errors and 5xx responses with the same transaction ID
+     */
+    private HttpResponse<String> put(String roomId, String txnId, byte[] payload) throws IOException, InterruptedException {
+        String endpoint = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8)
+                + "/send/m.room.message/" + URLEncoder.encode(txnId, StandardCharsets.UTF_8);
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(endpoint))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Authorization", "Bearer " + accessToken)
+                .header("Content-Type", "application/json")
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(payload))
+                .build();
+
+        int rateLimitRetries = 0;
+        int errorRetries = 0;
+        while (true) {
+            awaitRateLimit();
+            HttpResponse<String> response;
+            try {
+                response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException e) {
+                if (++errorRetries > MAX_ERROR_RETRIES) {
+                    throw e;
+                }
+                retried.incrementAndGet();
+                long backoffMs = 500L << errorRetries;
+                System.out.println("Send to " + roomId + " failed (" + e.getMessage() + "), retrying txn " + txnId + " in " + backoffMs + " ms");
+                Thread.sleep(backoffMs);
+                continue;
+            }
+            if (response.statusCode() >= 500) {
+                serverErrors.incrementAndGet();
+                if (++errorRetries > MAX_ERROR_RETRIES) {
+                    return response;
+                }
+                retried.incrementAndGet();
+                long backoffMs = 500L << errorRetries;
+                System.out.println("Send to " + roomId + " returned " + response.statusCode() + ", retrying txn " + txnId + " in " + backoffMs + " ms");
+                Thread.sleep(backoffMs);
+                continue;
+            }
+            if (response.statusCode() != 429) {
+                return response;
+            }
+            rateLimited.incrementAndGet();
+            if (++rateLimitRetries > MAX_RATE_LIMIT_RETRIES) {
+                throw new IOException("still rate limited after " + MAX_RATE_LIMIT_RETRIES + " retries");
+            }
+            retried.incrementAndGet();
+            long retryAfterMs = retryAfterMs(response);
+            System.out.println("Rate limited sending to " + roomId + ", retrying txn " + txnId + " in " + retryAfterMs + " ms");
+            long resumeAt = System.nanoTime() + retryAfterMs * 1_000_000;
+            pausedUntilNanos.accumulateAndGet(resumeAt, (current, next) -> next - current > 0 ? next : current);
+        }
+    }
+
+    private void awaitRateLimit() throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = pausedUntilNanos.get() - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * retry_after_ms from an M_LIMIT_EXCEEDED body, else the Retry-After header, else a default
+     */
+    private long retryAfterMs(HttpResponse<String> response) {
+        try {
+            JsonNode root = mapper.readTree(response.body());
+            if (root.path("retry_after_ms").canConvertToLong()) {
+                return Math.max(0, root.path("retry_after_ms").asLong());
+            }
+        } catch (Exception e) {
+            // Not JSON, fall through to the header
+        }
+        return response.headers().firstValue("Retry-After")
+                .map(value -> {
+                    try {
+                        return Long.parseLong(value.trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        return DEFAULT_RETRY_AFTER_MS;
+                    }
+                })
+                .orElse(DEFAULT_RETRY_AFTER_MS);
+    }
+
+    private void failAll(RoomQueue queue, Exception e) {
+        List<Outgoing> dropped;
+        synchronized (queue) {
+            dropped = new ArrayList<>(queue.pending);
+            queue.pending.clear();
+        }
+        queued.addAndGet(-dropped.size());
+        failed.addAndGet(dropped.size());
+        for (Outgoing outgoing : dropped) {
+            outgoing.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Current number of messages waiting to be sent, across all rooms
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Human-readable send counters and delivery latency
+     */
+    public String formatStats() {
+        return "**Outbound queue** (queued: " + queued.get() + ", rooms: " + rooms.size() + ")\n\n"
+                + "- sent=" + sent.get() + " coalesced=" + coalesced.get() + " rate_limited=" + rateLimited.get() + " server_errors=" + serverErrors.get()
+                + " retried=" + retried.get() + " failed=" + failed.get()
+                + " delivery[" + deliveryTime.summary() + "]\n";
+    }
+
+    /**
+     * Stop accepting messages and wait for queued ones to be delivered
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, unit)) {
+                System.out.println("Outbound queue did not drain in time, dropping " + queued.get() + " message(s)");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * LRU cache of parsed /messages pages keyed by room, direction and from-token, so bursts of
+ * commands over overlapping windows don't download the same pages again. Bounded by the total
+ * length of the cached responses (the parsed trees take a few times that). A room's pages are
+ * dropped when sync delivers a redaction or edit in it, or skips part of its timeline.
+ */
+public class PageCache {
+
+    private static class Entry {
+        final String roomId;
+        final JsonNode page;
+        final long weight;
+
+        Entry(String roomId, JsonNode page, long weight) {
+            this.roomId = roomId;
+            this.page = page;
+            this.weight = weight;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public PageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached page, or null
+     */
+    public synchronized JsonNode get(String roomId, String token, HistoryStream.Direction direction) {
+        Entry entry = entries.get(key(roomId, token, direction));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.page;
+    }
+
+    /**
+     * Cache a page that won't change anymore; the caller must not modify it afterwards
+     * @param weight Length of the response the page was parsed from
+     */
+    public synchronized void put(String roomId, String token, HistoryStream.Direction direction, JsonNode page, long weight) {
+        if (weight > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key(roomId, token, direction), new Entry(roomId, page, weight));
+        if (previous != null) {
+            bytes -= previous.weight;
+        }
+        bytes += weight;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().weight;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drop every page of the room
+     */
+    public synchronized void invalidate(String roomId) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.roomId.equals(roomId)) {
+                bytes -= entry.weight;
+                it.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Invalidate rooms whose history changed in this batch
+     */
+    public void apply(SyncBatch batch) {
+        for (SyncBatch.JoinedRoom room : batch.joinedRooms) {
+            if (room.limited || !room.modifiedEventIds.isEmpty()) {
+                invalidate(room.roomId);
+            }
+        }
+        for (String roomId : batch.leftRoomIds) {
+            invalidate(roomId);
+        }
+    }
+
+    public synchronized String formatStats() {
+        return "**History page cache** (pages: " + entries.size() + ", " + bytes / 1024 + "/" + maxBytes / 1024 + " KiB)\n\n"
+                + "- hits=" + hits + " misses=" + misses + " evictions=" + evictions + " invalidations=" + invalidations + "\n";
+    }
+
+    private static String key(String roomId, String token, HistoryStream.Direction direction) {
+        return roomId + '|' + direction.param + '|' + token;
+    }
+}
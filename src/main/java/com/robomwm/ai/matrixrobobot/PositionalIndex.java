@@ -0,0 +1,638 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Positional inverted index over export room messages for !search. Each term keeps its postings in
+ * one byte array: per message the ordinal gap to the previous message, the number of occurrences
+ * and the word positions as gaps, all as varints. Every {@link #SKIP_INTERVAL} messages a skip
+ * pointer records where the next run starts, so intersecting a rare term with a common one jumps
+ * over most of the common term's postings instead of decoding them.
+ *
+ * Only the event ID and timestamp of a message are kept; bodies stay in the {@link EventStore}.
+ * Messages are appended to segments of a quarter of the size cap, each with its own ordinals and
+ * postings, and past the cap the oldest segment is dropped whole. Like {@link HnswIndex}, the index
+ * only claims a time range once it is known to be complete: after seeding from the store, never
+ * across a gap in the sync stream, and never below a dropped segment.
+ */
+public class PositionalIndex {
+    private static final int SKIP_INTERVAL = 64;
+    private static final int NO_MORE = Integer.MAX_VALUE;
+    private static final Pattern QUERY_TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+    private static final Pattern NEAR = Pattern.compile("(?i)NEAR/(\\d{1,6})");
+
+    public static class Hit {
+        public final String eventId;
+        public final long ts;
+
+        Hit(String eventId, long ts) {
+            this.eventId = eventId;
+            this.ts = ts;
+        }
+    }
+
+    public static class Matches {
+        /** Newest first, at most the limit asked for */
+        public final List<Hit> newest;
+        /** Number of matching messages in the time range */
+        public final int total;
+
+        Matches(List<Hit> newest, int total) {
+            this.newest = newest;
+            this.total = total;
+        }
+    }
+
+    /**
+     * A !search query: words, quoted phrases, and NEAR/k between two of those, all of which must
+     * match. An unquoted word that the tokenizer splits (e.g. {@code deploy-failed}) is a phrase.
+     * Words shorter than {@link Tokenizer#MIN_TERM_LENGTH} are not indexed: inside a phrase they
+     * match any word, and a word or phrase made only of them is dropped.
+     *
+     * a NEAR/k b matches when some occurrence of b starts at most k words after one of a ends,
+     * or the other way round; adjacent words are 1 apart.
+     */
+    public static class Query {
+        /** Distinct term IDs the query needs */
+        final int[] terms;
+        /** Per word or phrase: indexes into terms, and each word's offset from the first one */
+        final int[][] operandTerms;
+        final int[][] operandOffsets;
+        /** Per NEAR: left operand, right operand, distance */
+        final int[][] nears;
+
+        private Query(int[] terms, int[][] operandTerms, int[][] operandOffsets, int[][] nears) {
+            this.terms = terms;
+            this.operandTerms = operandTerms;
+            this.operandOffsets = operandOffsets;
+            this.nears = nears;
+        }
+
+        public static Query parse(String text) {
+            return parse(text, true);
+        }
+
+        /**
+         * Like {@link #parse}, but without adding the query's words to the dictionary; only for
+         * {@link #search}, since every indexed word is already in it. A word no indexed message has
+         * makes the query match nothing.
+         */
+        public static Query parseKnown(String text) {
+            return parse(text, false);
+        }
+
+        private static Query parse(String text, boolean intern) {
+            int[] terms = new int[0];
+            List<int[]> operandTerms = new ArrayList<>();
+            List<int[]> operandOffsets = new ArrayList<>();
+            List<int[]> nears = new ArrayList<>();
+            int pendingNear = -1;
+            Matcher matcher = QUERY_TOKEN.matcher(text);
+            while (matcher.find()) {
+                String phrase = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+                Matcher near = NEAR.matcher(phrase);
+                if (matcher.group(2) != null && near.matches()) {
+                    pendingNear = Integer.parseInt(near.group(1));
+                    continue;
+                }
+                int[] pairs = intern ? SemanticSearchEngine.TOKENIZER.termPositions(phrase) : SemanticSearchEngine.TOKENIZER.knownTermPositions(phrase);
+                if (pairs.length == 0) {
+                    // Nothing indexed to match, and a NEAR on either side of it means nothing either
+                    pendingNear = -1;
+                    continue;
+                }
+                int[] indexes = new int[pairs.length / 2];
+                int[] offsets = new int[pairs.length / 2];
+                for (int i = 0; i < indexes.length; i++) {
+                    int index = indexOf(terms, terms.length, pairs[2 * i]);
+                    if (index < 0) {
+                        index = terms.length;
+                        terms = Arrays.copyOf(terms, index + 1);
+                        terms[index] = pairs[2 * i];
+                    }
+                    indexes[i] = index;
+                    offsets[i] = pairs[2 * i + 1] - pairs[1];
+                }
+                if (pendingNear >= 0 && !operandTerms.isEmpty()) {
+                    nears.add(new int[]{operandTerms.size() - 1, operandTerms.size(), pendingNear});
+                }
+                pendingNear = -1;
+                operandTerms.add(indexes);
+                operandOffsets.add(offsets);
+            }
+            return new Query(terms, operandTerms.toArray(new int[0][]), operandOffsets.toArray(new int[0][]), nears.toArray(new int[0][]));
+        }
+
+        /**
+         * True when no word in the query is long enough to be indexed
+         */
+        public boolean isEmpty() {
+            return terms.length == 0;
+        }
+
+        /**
+         * Check one message directly, without an index; same result as a search would give.
+         * Needs a query from {@link #parse}, since the message may hold words not yet in the dictionary.
+         */
+        public boolean matches(String text) {
+            if (isEmpty()) {
+                return false;
+            }
+            int[] pairs = SemanticSearchEngine.TOKENIZER.termPositions(text);
+            int[][] positions = new int[terms.length][pairs.length / 2];
+            int[] counts = new int[terms.length];
+            for (int i = 0; i < pairs.length; i += 2) {
+                int index = indexOf(terms, terms.length, pairs[i]);
+                if (index >= 0) {
+                    positions[index][counts[index]++] = pairs[i + 1];
+                }
+            }
+            return matches(positions, counts);
+        }
+
+        /**
+         * @param positions Ascending word positions of each query term in the message, counts[t] of them
+         */
+        boolean matches(int[][] positions, int[] counts) {
+            int[][] starts = new int[operandTerms.length][];
+            for (int o = 0; o < operandTerms.length; o++) {
+                starts[o] = starts(o, positions, counts);
+                if (starts[o].length == 0) {
+                    return false;
+                }
+            }
+            for (int[] near : nears) {
+                if (!near(starts[near[0]], span(near[0]), starts[near[1]], span(near[1]), near[2])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Positions where the whole word or phrase occurs
+         */
+        private int[] starts(int operand, int[][] positions, int[] counts) {
+            int[] indexes = operandTerms[operand];
+            int[] offsets = operandOffsets[operand];
+            int[] first = positions[indexes[0]];
+            int[] starts = new int[counts[indexes[0]]];
+            int n = 0;
+            candidates:
+            for (int c = 0; c < starts.length; c++) {
+                for (int i = 1; i < indexes.length; i++) {
+                    if (Arrays.binarySearch(positions[indexes[i]], 0, counts[indexes[i]], first[c] + offsets[i]) < 0) {
+                        continue candidates;
+                    }
+                }
+                starts[n++] = first[c];
+            }
+            return Arrays.copyOf(starts, n);
+        }
+
+        private int span(int operand) {
+            int[] offsets = operandOffsets[operand];
+            return offsets[offsets.length - 1];
+        }
+
+        private static boolean near(int[] a, int aSpan, int[] b, int bSpan, int distance) {
+            for (int x : a) {
+                for (int y : b) {
+                    int after = y - (x + aSpan);
+                    if (after > distance) {
+                        break;
+                    }
+                    int before = x - (y + bSpan);
+                    if ((after >= 1 && after <= distance) || (before >= 1 && before <= distance)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    static class Postings {
+        byte[] bytes = new byte[16];
+        int length;
+        int docs;
+        int lastDoc = -1;
+        /** Skip k leads to the run after the first (k + 1) * SKIP_INTERVAL messages: the ordinal before it and its offset */
+        int[] skipDocs = new int[0];
+        int[] skipOffsets = new int[0];
+        int skips;
+
+        /**
+         * @param packed term << 32 | position, positions of this term in packed[from, to)
+         */
+        void add(int doc, long[] packed, int from, int to) {
+            if (docs > 0 && docs % SKIP_INTERVAL == 0) {
+                if (skips == skipDocs.length) {
+                    skipDocs = Arrays.copyOf(skipDocs, Math.max(4, skips * 2));
+                    skipOffsets = Arrays.copyOf(skipOffsets, skipDocs.length);
+                }
+                skipDocs[skips] = lastDoc;
+                skipOffsets[skips] = length;
+                skips++;
+            }
+            writeVarint(doc - lastDoc);
+            writeVarint(to - from);
+            int previous = 0;
+            for (int i = from; i < to; i++) {
+                int position = (int) packed[i];
+                writeVarint(position - previous);
+                previous = position;
+            }
+            lastDoc = doc;
+            docs++;
+        }
+
+        private void writeVarint(int value) {
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while ((value & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+    }
+
+    /**
+     * Walks one term's postings in ordinal order
+     */
+    static class Cursor {
+        final Postings postings;
+        int doc = -1;
+        int read;
+        int offset;
+        int skip;
+        int freq;
+        int positionsOffset;
+
+        Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        int next() {
+            if (read == postings.docs) {
+                return doc = NO_MORE;
+            }
+            doc += readVarint();
+            freq = readVarint();
+            positionsOffset = offset;
+            byte[] bytes = postings.bytes;
+            for (int left = freq; left > 0; ) {
+                if ((bytes[offset++] & 0x80) == 0) {
+                    left--;
+                }
+            }
+            read++;
+            return doc;
+        }
+
+        /**
+         * Move to the first message at or after the target
+         */
+        int advance(int target) {
+            if (doc >= target) {
+                return doc;
+            }
+            int jump = -1;
+            while (skip < postings.skips && postings.skipDocs[skip] < target) {
+                jump = skip++;
+            }
+            if (jump >= 0 && (jump + 1) * SKIP_INTERVAL > read) {
+                doc = postings.skipDocs[jump];
+                offset = postings.skipOffsets[jump];
+                read = (jump + 1) * SKIP_INTERVAL;
+            }
+            while (doc < target) {
+                next();
+            }
+            return doc;
+        }
+
+        /**
+         * Decode the current message's positions into out[t], growing it if needed
+         * @return the number of positions
+         */
+        int positions(int[][] out, int t) {
+            if (out[t].length < freq) {
+                out[t] = new int[Math.max(freq, out[t].length * 2)];
+            }
+            int saved = offset;
+            offset = positionsOffset;
+            int position = 0;
+            for (int i = 0; i < freq; i++) {
+                position += readVarint();
+                out[t][i] = position;
+            }
+            offset = saved;
+            return freq;
+        }
+
+        private int readVarint() {
+            byte[] bytes = postings.bytes;
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[offset++];
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * A run of messages with its own ordinals and postings; ordinals follow insertion order
+     */
+    private static class Segment {
+        /** Indexed by term ID from {@link SemanticSearchEngine#TERMS} */
+        Postings[] postings = new Postings[1024];
+        long[] timestamps = new long[1024];
+        /** Null for a message left out because another segment has it */
+        String[] eventIds = new String[1024];
+        int size;
+        long postingBytes;
+        long minTs = Long.MAX_VALUE;
+        long maxTs = Long.MIN_VALUE;
+
+        void add(String eventId, long ts, String body) {
+            int ordinal = size++;
+            if (ordinal == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, ordinal * 2);
+                eventIds = Arrays.copyOf(eventIds, ordinal * 2);
+            }
+            timestamps[ordinal] = ts;
+            eventIds[ordinal] = eventId;
+            minTs = Math.min(minTs, ts);
+            maxTs = Math.max(maxTs, ts);
+
+            int[] pairs = SemanticSearchEngine.TOKENIZER.termPositions(body);
+            long[] packed = new long[pairs.length / 2];
+            for (int i = 0; i < packed.length; i++) {
+                packed[i] = (long) pairs[2 * i] << 32 | pairs[2 * i + 1];
+            }
+            // Sorted by term, then position
+            Arrays.sort(packed);
+            for (int i = 0, end; i < packed.length; i = end) {
+                int term = (int) (packed[i] >>> 32);
+                end = i + 1;
+                while (end < packed.length && (int) (packed[end] >>> 32) == term) {
+                    end++;
+                }
+                Postings list = postingsFor(term);
+                postingBytes -= list.length;
+                list.add(ordinal, packed, i, end);
+                postingBytes += list.length;
+            }
+        }
+
+        /**
+         * Leave a message out of searches; its postings stay until the segment is dropped
+         */
+        void drop(int ordinal) {
+            eventIds[ordinal] = null;
+        }
+
+        /**
+         * Add the newest limit matches with from <= ts <= to to hits
+         * @return the number of matches
+         */
+        int search(Query query, long from, long to, int limit, List<Hit> hits) {
+            if (maxTs < from || minTs > to) {
+                return 0;
+            }
+            int n = query.terms.length;
+            Cursor[] cursors = new Cursor[n];
+            for (int t = 0; t < n; t++) {
+                int term = query.terms[t];
+                Postings list = term != TermDictionary.ABSENT && term < postings.length ? postings[term] : null;
+                if (list == null) {
+                    return 0;
+                }
+                cursors[t] = new Cursor(list);
+            }
+            // The rarest term proposes messages, the others skip ahead to them
+            Cursor[] order = cursors.clone();
+            Arrays.sort(order, (a, b) -> Integer.compare(a.postings.docs, b.postings.docs));
+            int[][] positions = new int[n][8];
+            int[] counts = new int[n];
+            TopK newest = new TopK(limit);
+            int total = 0;
+            int doc = order[0].next();
+            while (doc != NO_MORE) {
+                int behind = 0;
+                for (int i = 1; i < n && behind == 0; i++) {
+                    int found = order[i].advance(doc);
+                    if (found != doc) {
+                        behind = found;
+                    }
+                }
+                if (behind != 0) {
+                    doc = behind == NO_MORE ? NO_MORE : order[0].advance(behind);
+                    continue;
+                }
+                long ts = timestamps[doc];
+                if (ts >= from && ts <= to && eventIds[doc] != null) {
+                    for (int t = 0; t < n; t++) {
+                        counts[t] = cursors[t].positions(positions, t);
+                    }
+                    if (query.matches(positions, counts)) {
+                        total++;
+                        newest.offer(doc, ts);
+                    }
+                }
+                doc = order[0].next();
+            }
+            int[] ordinals = new int[newest.size()];
+            int found = newest.drain(ordinals, new double[ordinals.length]);
+            for (int i = 0; i < found; i++) {
+                hits.add(new Hit(eventIds[ordinals[i]], timestamps[ordinals[i]]));
+            }
+            return total;
+        }
+
+        private Postings postingsFor(int term) {
+            if (term >= postings.length) {
+                postings = Arrays.copyOf(postings, Math.max(term + 1, postings.length * 2));
+            }
+            if (postings[term] == null) {
+                postings[term] = new Postings();
+            }
+            return postings[term];
+        }
+    }
+
+    private final int maxSize;
+    private final int segmentSize;
+    /** Oldest first; sync adds to the last one */
+    private final List<Segment> segments = new ArrayList<>();
+    /** IDs of the indexed messages, so retried batches and seeding don't add them twice */
+    private final Set<String> eventIds = new HashSet<>();
+    /** Older messages were dropped for the size cap */
+    private long floor = Long.MIN_VALUE;
+    /** Every message from here on is indexed; Long.MAX_VALUE until seeded */
+    private long coveredFrom = Long.MAX_VALUE;
+    /** Latest point before which sync may have skipped messages */
+    private long gapBefore = Long.MIN_VALUE;
+
+    /**
+     * @param maxSize Most messages kept, 0 for no limit
+     */
+    public PositionalIndex(int maxSize) {
+        this.maxSize = maxSize;
+        this.segmentSize = maxSize > 0 ? Math.max(1, maxSize / 4) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Index a message
+     * @return false if it was already indexed
+     */
+    public synchronized boolean add(String eventId, long ts, String body) {
+        if (!eventIds.add(eventId)) {
+            return false;
+        }
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last == null || last.size >= segmentSize) {
+            last = new Segment();
+            segments.add(last);
+        }
+        last.add(eventId, ts, body);
+        trim();
+        return true;
+    }
+
+    /**
+     * Index the room's stored messages from the start of the range sync is extending, or only the
+     * newest of them that fit under the size cap, then treat that range as covered. The stored
+     * messages are indexed into segments of their own, joined in ahead of the ones sync is adding
+     * to meanwhile.
+     */
+    public void seed(EventStore store, String roomId) throws IOException {
+        long from = store.liveFrom(roomId);
+        if (from == Long.MAX_VALUE) {
+            return;
+        }
+        long seedFrom;
+        synchronized (this) {
+            seedFrom = Math.max(from, floor);
+        }
+        if (maxSize > 0) {
+            // Older messages would only be indexed to be dropped again
+            seedFrom = store.newestFrom(roomId, seedFrom, maxSize);
+        }
+        List<Segment> seeded = new ArrayList<>();
+        store.scan(roomId, seedFrom, Long.MAX_VALUE, record -> {
+            Segment last = seeded.isEmpty() ? null : seeded.get(seeded.size() - 1);
+            if (last == null || last.size >= segmentSize) {
+                last = new Segment();
+                seeded.add(last);
+            }
+            last.add(record.eventId(), record.ts(), record.body());
+            return true;
+        });
+        synchronized (this) {
+            for (Segment segment : seeded) {
+                for (int i = 0; i < segment.size; i++) {
+                    // Arrived from sync while seeding
+                    if (!eventIds.add(segment.eventIds[i])) {
+                        segment.drop(i);
+                    }
+                }
+            }
+            segments.addAll(0, seeded);
+            floor = Math.max(floor, seedFrom);
+            coveredFrom = Math.max(Math.max(from, floor), gapBefore);
+            trim();
+        }
+    }
+
+    /**
+     * Drop the oldest segments while over the cap; everything after a dropped segment's newest
+     * message is still complete
+     */
+    private void trim() {
+        while (maxSize > 0 && eventIds.size() > maxSize && segments.size() > 1) {
+            Segment oldest = segments.remove(0);
+            for (int i = 0; i < oldest.size; i++) {
+                if (oldest.eventIds[i] != null) {
+                    eventIds.remove(oldest.eventIds[i]);
+                }
+            }
+            floor = Math.max(floor, oldest.maxTs + 1);
+            gapBefore = Math.max(gapBefore, floor);
+            if (coveredFrom != Long.MAX_VALUE) {
+                coveredFrom = Math.max(coveredFrom, floor);
+            }
+        }
+    }
+
+    /**
+     * Sync skipped messages before this time (a limited timeline), so older ones may be missing
+     */
+    public synchronized void gap(long ts) {
+        gapBefore = Math.max(gapBefore, ts);
+        if (coveredFrom != Long.MAX_VALUE) {
+            coveredFrom = Math.max(coveredFrom, ts);
+        }
+    }
+
+    /**
+     * Whether every message since the time is indexed
+     */
+    public synchronized boolean covers(long from) {
+        return from >= coveredFrom;
+    }
+
+    public synchronized int size() {
+        return eventIds.size();
+    }
+
+    /**
+     * Messages with from <= ts <= to matching the query
+     * @param limit Number of newest matches to return
+     */
+    public synchronized Matches search(Query query, long from, long to, int limit) {
+        if (query.isEmpty() || limit <= 0) {
+            return new Matches(new ArrayList<>(), 0);
+        }
+        List<Hit> hits = new ArrayList<>();
+        int total = 0;
+        for (Segment segment : segments) {
+            total += segment.search(query, from, to, limit, hits);
+        }
+        hits.sort(Comparator.comparingLong((Hit hit) -> hit.ts).reversed());
+        return new Matches(new ArrayList<>(hits.subList(0, Math.min(limit, hits.size()))), total);
+    }
+
+    public synchronized String formatStats() {
+        long postingBytes = 0;
+        for (Segment segment : segments) {
+            postingBytes += segment.postingBytes;
+        }
+        return "**Search index** (messages: " + eventIds.size() + (maxSize > 0 ? " of " + maxSize : "") + " in " + segments.size() + " segment(s), postings: "
+                + (postingBytes >> 20) + " MiB, "
+                + (coveredFrom == Long.MAX_VALUE ? "not seeded" : "complete since " + java.time.Instant.ofEpochMilli(coveredFrom)) + ")\n";
+    }
+
+    private static int indexOf(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -3,6 +3,7 @@ package com.robomwm.ai.matrixrobobot;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
@@ -15,16 +16,33 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
 
 /**
  * Manages fetching and processing room chat history from the Matrix server.
+ * History of rooms kept in the {@link EventStore} is read locally; only uncovered ranges are fetched.
+ * {@link #iterate}, {@link #stream} and {@link #publisher} hand out history lazily, one page at a time.
+ * Windows in the past are entered with /timestamp_to_event and /context instead of paging to them from the present.
  */
-public class RoomHistoryManager {
-    
+public class RoomHistoryManager implements SyncFilter.Contributor {
+    static final DateTimeFormatter LOG_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm z");
+    /** Windows ending closer to the present than this page back from it; the seek costs two requests */
+    private static final long SEEK_MIN_AGE_MS = 3600L * 1000L;
+    private static final int PAGE_LIMIT = 1000;
+    /** Gaps at least this long are backfilled by a {@link BackfillCrawler} */
+    private static final long CRAWL_MIN_SPAN_MS = 24 * 3600L * 1000L;
+
     private final HttpClient httpClient;
     private final ObjectMapper mapper;
     private final String homeserverUrl;
     private final String accessToken;
+    private final SyncFilter syncFilter;
+    private final SyncCheckpoint checkpoint;
+    private final EventStore eventStore;
+    private final int backfillConcurrency;
+    private final PageCache pageCache;
+    private volatile boolean timestampSeekSupported = true;
 
     public static class ChatLogsResult {
         public List<String> logs;
@@ -46,11 +64,27 @@ public class RoomHistoryManager {
         }
     }
 
-    public RoomHistoryManager(HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken) {
+    public RoomHistoryManager(HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken, SyncFilter syncFilter, SyncCheckpoint checkpoint,
+                              EventStore eventStore, int backfillConcurrency, PageCache pageCache) {
         this.httpClient = httpClient;
         this.mapper = mapper;
         this.homeserverUrl = homeserverUrl;
         this.accessToken = accessToken;
+        this.syncFilter = syncFilter;
+        this.checkpoint = checkpoint;
+        this.eventStore = eventStore;
+        this.backfillConcurrency = backfillConcurrency;
+        this.pageCache = pageCache;
+    }
+
+    /**
+     * Pagination tokens come from the timeline prev_batch of m.room.message timelines;
+     * redactions invalidate cached pages
+     */
+    @Override
+    public void contributeSyncFilter(SyncFilter filter) {
+        filter.includeTimelineType("m.room.message");
+        filter.includeTimelineType("m.room.redaction");
     }
 
     /**
@@ -65,143 +99,332 @@ public class RoomHistoryManager {
      * Fetch room history with event IDs
      */
     public ChatLogsWithIds fetchRoomHistoryWithIds(String roomId, int hours, String fromToken, long startTimestamp, long endTime, ZoneId zoneId) {
-        List<String> logs = new ArrayList<>();
-        List<String> eventIds = new ArrayList<>();
-        
+        HistoryColumns columns = fetchRoomHistoryColumns(roomId, hours, fromToken, startTimestamp, endTime);
+        return new ChatLogsWithIds(columns.lines(zoneId), columns.eventIds());
+    }
+
+    /**
+     * Fetch room history with first event ID tracking
+     */
+    public ChatLogsResult fetchRoomHistoryDetailed(String roomId, int hours, String fromToken, long startTimestamp, long endTime, ZoneId zoneId) {
+        HistoryColumns columns = fetchRoomHistoryColumns(roomId, hours, fromToken, startTimestamp, endTime);
+        return new ChatLogsResult(columns.lines(zoneId), columns.isEmpty() ? null : columns.eventId(0));
+    }
+
+    /**
+     * Fetch room history oldest first in columnar form; lines are only formatted when read
+     */
+    public HistoryColumns fetchRoomHistoryColumns(String roomId, int hours, String fromToken, long startTimestamp, long endTime) {
         long startTime = (startTimestamp > 0) ? startTimestamp : System.currentTimeMillis() - (long) hours * 3600L * 1000L;
         long calculatedEndTime = (endTime > 0) ? endTime : System.currentTimeMillis();
-        
-        String token = getPaginationToken(roomId, fromToken);
-        
-        while (token != null) {
-            try {
-                String messagesUrl = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8)
-                        + "/messages?from=" + URLEncoder.encode(token, StandardCharsets.UTF_8) + "&dir=b&limit=1000";
-                HttpRequest msgReq = HttpRequest.newBuilder()
-                        .uri(URI.create(messagesUrl))
-                        .header("Authorization", "Bearer " + accessToken)
-                        .GET()
-                        .build();
-                HttpResponse<String> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofString());
-                if (msgResp.statusCode() != 200) {
-                    System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + msgResp.body());
-                    break;
-                }
-                JsonNode root = mapper.readTree(msgResp.body());
-                JsonNode chunk = root.path("chunk");
-                if (!chunk.isArray() || chunk.size() == 0) break;
-
-                boolean reachedStart = false;
-                for (JsonNode ev : chunk) {
-                    if (!"m.room.message".equals(ev.path("type").asText(null))) continue;
-                    long originServerTs = ev.path("origin_server_ts").asLong(0);
-                    
-                    if (originServerTs > calculatedEndTime) {
-                        continue;
-                    }
 
-                    if (originServerTs < startTime) {
-                        reachedStart = true;
-                        break;
-                    }
-                    
-                    String body = ev.path("content").path("body").asText(null);
-                    String sender = ev.path("sender").asText(null);
-                    String eventId = ev.path("event_id").asText(null);
-                    if (body != null && sender != null && eventId != null) {
-                        String timestamp = Instant.ofEpochMilli(originServerTs)
-                                .atZone(zoneId)
-                                .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm z"));
-                        logs.add("[" + timestamp + "] <" + sender + "> " + body);
-                        eventIds.add(eventId);
-                    }
-                }
-                
-                if (reachedStart) {
-                    break;
-                }
-                
-                token = root.path("end").asText(null);
+        HistoryColumns.Builder columns = new HistoryColumns.Builder();
+        HistoryStream.Cursor events = chronological(roomId, fromToken, startTime, calculatedEndTime, null);
+        events.forEachRemaining(columns::add);
+        if (events.isTruncated()) {
+            System.out.println("History of " + roomId + " is partial: " + columns.size() + " messages could be fetched");
+        }
+        return columns.build();
+    }
 
-            } catch (Exception e) {
-                System.out.println("Error fetching room history: " + e.getMessage());
-                break;
+    /**
+     * Lazily iterate the messages of a room with startTime <= ts <= endTime. For stored rooms
+     * BACKWARD reads the event store newest first, backfilling each slice as it gets there;
+     * otherwise it seeks to endTime when it lies in the past, or pages from fromToken (or the
+     * latest known position). FORWARD pages onwards from fromToken when one is given; without one
+     * it reads the event store for stored rooms or seeks to startTime.
+     */
+    public HistoryStream.Cursor iterate(String roomId, String fromToken, HistoryStream.Direction direction, long startTime, long endTime) {
+        return iterate(roomId, fromToken, direction, startTime, endTime, null);
+    }
+
+    /**
+     * {@link #iterate} reporting the progress of any backfill needed before a stored room can be read
+     */
+    public HistoryStream.Cursor iterate(String roomId, String fromToken, HistoryStream.Direction direction, long startTime, long endTime,
+                                        BackfillCrawler.ProgressListener progress) {
+        if (direction == HistoryStream.Direction.FORWARD) {
+            if (fromToken != null) {
+                return HistoryStream.pages((token, dir) -> fetchPage(roomId, token, dir), fromToken, direction, startTime, endTime);
+            }
+            return chronological(roomId, null, startTime, endTime, progress);
+        }
+        if (eventStore.isStored(roomId)) {
+            HistoryStream.Cursor stored = HistoryStream.newestFirst((from, to) -> readStored(roomId, from, to, progress),
+                    startTime, Math.min(endTime, System.currentTimeMillis()));
+            // The first slice is read right away, so a store that can't answer at all falls back to paging
+            stored.hasNext();
+            if (!stored.isTruncated()) {
+                return stored;
             }
+            System.out.println("Event store can't answer for " + roomId + ", falling back to the homeserver");
         }
-        Collections.reverse(logs);
-        Collections.reverse(eventIds);
-        return new ChatLogsWithIds(logs, eventIds);
+        return pagesBackward(roomId, fromToken, startTime, endTime);
     }
 
     /**
-     * Fetch room history with first event ID tracking
+     * {@link #iterate} as a sequential Stream; pages are only fetched as far as the pipeline pulls
      */
-    public ChatLogsResult fetchRoomHistoryDetailed(String roomId, int hours, String fromToken, long startTimestamp, long endTime, ZoneId zoneId) {
-        List<String> lines = new ArrayList<>();
-        String firstEventId = null;
-        
-        long startTime = (startTimestamp > 0) ? startTimestamp : System.currentTimeMillis() - (long) hours * 3600L * 1000L;
-        long calculatedEndTime = (endTime > 0) ? endTime : System.currentTimeMillis();
-        
-        String token = getPaginationToken(roomId, fromToken);
-        
-        while (token != null) {
+    public Stream<EventStore.StoredEvent> stream(String roomId, String fromToken, HistoryStream.Direction direction, long startTime, long endTime) {
+        return HistoryStream.stream(iterate(roomId, fromToken, direction, startTime, endTime));
+    }
+
+    /**
+     * {@link #iterate} as a Flow.Publisher; each subscriber gets its own iterator, drained on a
+     * virtual thread only as far as it has requested
+     */
+    public Flow.Publisher<EventStore.StoredEvent> publisher(String roomId, String fromToken, HistoryStream.Direction direction, long startTime, long endTime) {
+        return HistoryStream.publisher(() -> iterate(roomId, fromToken, direction, startTime, endTime),
+                task -> Thread.ofVirtual().name("history-publisher").start(task));
+    }
+
+    /**
+     * Messages in [startTime, endTime] oldest first. Stored rooms are backfilled and then read
+     * lazily from the event store; otherwise the homeserver is paged forwards from startTime for
+     * past windows, or backwards from fromToken with the window buffered to reverse it.
+     */
+    private HistoryStream.Cursor chronological(String roomId, String fromToken, long startTime, long endTime, BackfillCrawler.ProgressListener progress) {
+        if (eventStore.isStored(roomId)) {
             try {
-                String messagesUrl = homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8)
-                        + "/messages?from=" + URLEncoder.encode(token, StandardCharsets.UTF_8) + "&dir=b&limit=1000";
-                HttpRequest msgReq = HttpRequest.newBuilder()
-                        .uri(URI.create(messagesUrl))
-                        .header("Authorization", "Bearer " + accessToken)
-                        .GET()
-                        .build();
-                HttpResponse<String> msgResp = httpClient.send(msgReq, HttpResponse.BodyHandlers.ofString());
-                if (msgResp.statusCode() != 200) {
-                    System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + msgResp.body());
-                    break;
-                }
-                JsonNode root = mapper.readTree(msgResp.body());
-                JsonNode chunk = root.path("chunk");
-                if (!chunk.isArray() || chunk.size() == 0) break;
-
-                boolean reachedStart = false;
-                for (JsonNode ev : chunk) {
-                    if (!"m.room.message".equals(ev.path("type").asText(null))) continue;
-                    long originServerTs = ev.path("origin_server_ts").asLong(0);
-                    
-                    if (originServerTs > calculatedEndTime) {
-                        continue;
-                    }
-                    if (originServerTs < startTime) {
-                        reachedStart = true;
-                        break;
-                    }
-                    
-                    String body = ev.path("content").path("body").asText(null);
-                    String sender = ev.path("sender").asText(null);
-                    String eventId = ev.path("event_id").asText(null);
-                    if (body != null && sender != null) {
-                        String timestamp = Instant.ofEpochMilli(originServerTs)
-                                .atZone(zoneId)
-                                .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm z"));
-                        lines.add("[" + timestamp + "] <" + sender + "> " + body);
-                        
-                        firstEventId = eventId;
-                    }
-                }
-                
-                if (reachedStart) {
-                    break;
+                if (backfillGaps(roomId, startTime, endTime, progress)) {
+                    return HistoryStream.records(eventStore.open(roomId, startTime, endTime));
                 }
-                
-                token = root.path("end").asText(null);
+            } catch (Exception e) {
+                System.out.println("Error reading event store, falling back to the homeserver: " + e.getMessage());
+            }
+        }
+        String startToken = endTime < System.currentTimeMillis() - SEEK_MIN_AGE_MS ? seekToken(roomId, startTime, HistoryStream.Direction.FORWARD) : null;
+        if (startToken != null) {
+            return HistoryStream.pages((token, dir) -> fetchPage(roomId, token, dir), startToken, HistoryStream.Direction.FORWARD, startTime, endTime);
+        }
+        List<EventStore.StoredEvent> events = new ArrayList<>();
+        HistoryStream.Cursor backward = pagesBackward(roomId, fromToken, startTime, endTime);
+        backward.forEachRemaining(events::add);
+        Collections.reverse(events);
+        return HistoryStream.cursor(events.iterator(), backward.isTruncated());
+    }
+
+    /**
+     * Page the homeserver newest first, from endTime when it lies in the past, else from fromToken or the latest known position
+     */
+    private HistoryStream.Cursor pagesBackward(String roomId, String fromToken, long startTime, long endTime) {
+        String token = endTime < System.currentTimeMillis() - SEEK_MIN_AGE_MS ? seekToken(roomId, endTime, HistoryStream.Direction.BACKWARD) : null;
+        if (token == null) {
+            token = getPaginationToken(roomId, fromToken);
+        }
+        return HistoryStream.pages((t, dir) -> fetchPage(roomId, t, dir), token, HistoryStream.Direction.BACKWARD, startTime, endTime);
+    }
 
+    /**
+     * A message from the local event store, for indexes that only keep IDs
+     * @return null if the room isn't stored or the message isn't there
+     */
+    public EventStore.StoredEvent findStored(String roomId, long ts, String eventId) {
+        if (!eventStore.isStored(roomId)) {
+            return null;
+        }
+        try {
+            return eventStore.find(roomId, ts, eventId);
+        } catch (IOException e) {
+            System.out.println("Error reading stored message " + eventId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stored messages with from <= ts <= to, oldest first, once the range is backfilled
+     */
+    private List<EventStore.StoredEvent> readStored(String roomId, long from, long to, BackfillCrawler.ProgressListener progress) throws Exception {
+        if (!backfillGaps(roomId, from, to, progress)) {
+            throw new IOException("couldn't backfill " + roomId + " between " + from + " and " + to);
+        }
+        return eventStore.read(roomId, from, to);
+    }
+
+    /**
+     * Pagination token right at ts: paging BACKWARD from it starts with the last event at or
+     * before ts, FORWARD with the first event at or after it.
+     * @return null if there is no such event or the homeserver can't seek, so the caller pages as before
+     */
+    private String seekToken(String roomId, long ts, HistoryStream.Direction direction) {
+        if (!timestampSeekSupported) {
+            return null;
+        }
+        try {
+            return seek(roomId, ts, direction);
+        } catch (Exception e) {
+            System.out.println("Error seeking room history: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * {@link #seekToken} that tells "no such event" (null) apart from failures (exception)
+     */
+    private String seek(String roomId, long ts, HistoryStream.Direction direction) throws Exception {
+        if (!timestampSeekSupported) {
+            throw new IOException("timestamp_to_event unsupported");
+        }
+        String encodedRoom = URLEncoder.encode(roomId, StandardCharsets.UTF_8);
+        HttpResponse<String> seekResp = get(homeserverUrl + "/_matrix/client/v1/rooms/" + encodedRoom
+                + "/timestamp_to_event?ts=" + ts + "&dir=" + direction.param);
+        if (seekResp.statusCode() != 200) {
+            String errcode = errcode(seekResp.body());
+            if ("M_NOT_FOUND".equals(errcode)) {
+                return null;
+            }
+            // Unrecognized endpoint (pre-v1.6 homeserver): stop trying
+            timestampSeekSupported = false;
+            throw new IOException("timestamp_to_event unsupported (" + seekResp.statusCode() + " " + errcode + "), paging history from the present");
+        }
+        String eventId = mapper.readTree(seekResp.body()).path("event_id").asText(null);
+        if (eventId == null) {
+            throw new IOException("timestamp_to_event returned no event_id");
+        }
+
+        // limit=0: only the tokens around the event. "end" pages back through the event itself, "start" forward through it
+        HttpResponse<String> contextResp = get(homeserverUrl + "/_matrix/client/v3/rooms/" + encodedRoom
+                + "/context/" + URLEncoder.encode(eventId, StandardCharsets.UTF_8) + "?limit=0");
+        if (contextResp.statusCode() != 200) {
+            throw new IOException("Failed to fetch event context: " + contextResp.statusCode() + " - " + contextResp.body());
+        }
+        String token = mapper.readTree(contextResp.body()).path(direction == HistoryStream.Direction.BACKWARD ? "end" : "start").asText(null);
+        if (token == null) {
+            throw new IOException("Event context has no pagination token");
+        }
+        return token;
+    }
+
+    private String errcode(String body) {
+        try {
+            return mapper.readTree(body).path("errcode").asText(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fetch one page of /messages from the token
+     * @return the response, or null if the homeserver refused
+     */
+    private JsonNode fetchPage(String roomId, String token, HistoryStream.Direction direction) throws Exception {
+        JsonNode cached = pageCache.get(roomId, token, direction);
+        if (cached != null) {
+            return cached;
+        }
+        HttpResponse<String> msgResp = get(homeserverUrl + "/_matrix/client/v3/rooms/" + URLEncoder.encode(roomId, StandardCharsets.UTF_8)
+                + "/messages?from=" + URLEncoder.encode(token, StandardCharsets.UTF_8) + "&dir=" + direction.param + "&limit=" + PAGE_LIMIT);
+        if (msgResp.statusCode() != 200) {
+            System.out.println("Failed to fetch messages: " + msgResp.statusCode() + " - " + msgResp.body());
+            return null;
+        }
+        JsonNode page = mapper.readTree(msgResp.body());
+        // Backward pages hold settled history; a short forward page ends at the live edge and would grow
+        if (direction == HistoryStream.Direction.BACKWARD || page.path("chunk").size() >= PAGE_LIMIT) {
+            pageCache.put(roomId, token, direction, page, msgResp.body().length());
+        }
+        return page;
+    }
+
+    private HttpResponse<String> get(String url) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .header("Authorization", "Bearer " + accessToken)
+                .GET()
+                .build();
+        return httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Backfill the uncovered ranges of [startTime, endTime] from the homeserver
+     * @param progress Receives the share of the gaps fetched so far, may be null
+     * @return false if any of them couldn't be fetched, so the store can't answer for the window
+     */
+    private boolean backfillGaps(String roomId, long startTime, long endTime, BackfillCrawler.ProgressListener progress) throws Exception {
+        List<long[]> gaps = eventStore.gaps(roomId, startTime, endTime);
+        long total = 0;
+        for (long[] gap : gaps) {
+            total += gap[1] - gap[0];
+        }
+        long done = 0;
+        for (long[] gap : gaps) {
+            long offset = done;
+            long all = total;
+            BackfillCrawler.ProgressListener gapProgress = progress == null ? null : (covered, gapTotal) -> progress.onProgress(offset + covered, all);
+            if (!backfill(roomId, gap[0], gap[1], gapProgress)) {
+                return false;
+            }
+            done += gap[1] - gap[0];
+        }
+        return true;
+    }
+
+    /**
+     * Page backwards from the top of the gap [from, to] until past its start, storing everything on the way.
+     * Long gaps in the past are split up and crawled concurrently.
+     */
+    private boolean backfill(String roomId, long from, long to, BackfillCrawler.ProgressListener progress) throws Exception {
+        if (to - from >= CRAWL_MIN_SPAN_MS && timestampSeekSupported) {
+            BackfillCrawler crawler = new BackfillCrawler((token, dir) -> fetchPage(roomId, token, dir),
+                    ts -> seek(roomId, ts, HistoryStream.Direction.BACKWARD), backfillConcurrency);
+            try {
+                long started = System.nanoTime();
+                BackfillCrawler.Result result = crawler.crawl(from, to, progress);
+                eventStore.addBackfill(roomId, result.events, result.coveredFrom, to, result.lowerToken);
+                System.out.println("Backfilled " + result.events.size() + " events for " + roomId + " in " + result.pages + " page(s) with "
+                        + backfillConcurrency + " workers in " + (System.nanoTime() - started) / 1000000 + " ms");
+                return true;
             } catch (Exception e) {
-                System.out.println("Error fetching room history: " + e.getMessage());
+                System.out.println("Parallel backfill failed, walking the gap sequentially: " + e.getMessage());
+            }
+        }
+
+        String token = eventStore.tokenBelow(roomId, to);
+        long upper = to;
+        if (token == null && to < System.currentTimeMillis() - SEEK_MIN_AGE_MS) {
+            // Nothing covered right above the gap: jump to its top rather than paging down from the present
+            token = seekToken(roomId, to, HistoryStream.Direction.BACKWARD);
+        }
+        if (token == null) {
+            // Nothing covered right above the gap, so start from the present
+            upper = Math.max(to, System.currentTimeMillis());
+            token = getPaginationToken(roomId, null);
+            if (token == null) {
+                return false;
+            }
+        }
+
+        List<EventStore.StoredEvent> events = new ArrayList<>();
+        long lowest = Long.MAX_VALUE;
+        int pages = 0;
+        while (token != null && lowest >= from) {
+            JsonNode root = fetchPage(roomId, token, HistoryStream.Direction.BACKWARD);
+            if (root == null) {
+                return false;
+            }
+            pages++;
+            JsonNode chunk = root.path("chunk");
+            if (!chunk.isArray() || chunk.size() == 0) {
+                token = null;
                 break;
             }
+            lowest = Math.min(lowest, HistoryStream.collect(chunk, events));
+            token = root.path("end").asText(null);
+            if (progress != null) {
+                progress.onProgress(Math.min(to - from, Math.max(0, to - lowest)), to - from);
+            }
         }
-        Collections.reverse(lines);
-        return new ChatLogsResult(lines, firstEventId);
+
+        // Whole pages were stored, so everything down to the oldest event seen is covered; all of it once history ran out
+        long coveredFrom = token == null ? 0 : lowest;
+        eventStore.addBackfill(roomId, events, coveredFrom, upper, token);
+        System.out.println("Backfilled " + events.size() + " events for " + roomId + " in " + pages + " page(s)");
+        return true;
+    }
+
+    static String formatLine(long ts, String sender, String body, ZoneId zoneId) {
+        String timestamp = Instant.ofEpochMilli(ts).atZone(zoneId).format(LOG_TIME_FORMAT);
+        return "[" + timestamp + "] <" + sender + "> " + body;
     }
 
     /**
@@ -278,16 +501,20 @@ public class RoomHistoryManager {
     }
 
     /**
-     * Get pagination token from sync response
+     * Get pagination token from the sync checkpoint, falling back to a sync response
      */
     private String getPaginationToken(String roomId, String providedToken) {
         if (providedToken != null) {
             return providedToken;
         }
+        String checkpointToken = checkpoint.getPrevBatch(roomId);
+        if (checkpointToken != null) {
+            return checkpointToken;
+        }
         
         try {
             HttpRequest syncReq = HttpRequest.newBuilder()
-                    .uri(URI.create(homeserverUrl + "/_matrix/client/v3/sync?timeout=0"))
+                    .uri(URI.create(syncFilter.apply(homeserverUrl + "/_matrix/client/v3/sync?timeout=0")))
                     .header("Authorization", "Bearer " + accessToken)
                     .GET()
                     .build();
@@ -0,0 +1,128 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Head of each joined room's timeline, kept current from the sync stream: the latest message,
+ * and the last message and read receipt of recently active users. Lets !last answer from memory
+ * instead of paging /messages and re-running /sync. Misses (users not seen since startup, or
+ * evicted from the per-room LRU) fall back to the homeserver.
+ */
+public class RoomIndex {
+    /** Users remembered per room, least recently active evicted first */
+    private static final int MAX_USERS_PER_ROOM = 1024;
+
+    private static class RoomHead {
+        String latestEventId;
+        final Map<String, String> lastEventBySender = lru();
+        final Map<String, SyncBatch.Receipt> lastReceiptByUser = lru();
+    }
+
+    private final Map<String, RoomHead> rooms = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Fold a sync batch in; must see batches in order
+     */
+    public void apply(SyncBatch batch) {
+        for (String roomId : batch.leftRoomIds) {
+            rooms.remove(roomId);
+        }
+        for (SyncBatch.JoinedRoom room : batch.joinedRooms) {
+            if (room.timeline.isEmpty() && room.receipts.isEmpty() && !room.limited) {
+                continue;
+            }
+            RoomHead head = rooms.computeIfAbsent(room.roomId, id -> new RoomHead());
+            synchronized (head) {
+                if (room.limited) {
+                    // Users may have sent messages in the skipped part, so what we remember may be stale
+                    head.lastEventBySender.clear();
+                }
+                for (SyncBatch.TimelineEvent ev : room.timeline) {
+                    head.latestEventId = ev.eventId;
+                    touch(head.lastEventBySender, ev.sender, ev.eventId);
+                }
+                for (SyncBatch.Receipt receipt : room.receipts) {
+                    SyncBatch.Receipt previous = head.lastReceiptByUser.get(receipt.userId);
+                    if (previous == null || receipt.ts >= previous.ts) {
+                        touch(head.lastReceiptByUser, receipt.userId, receipt);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the event ID of the newest message seen in the room, or null if none was seen yet
+     */
+    public String latestMessage(String roomId) {
+        RoomHead head = rooms.get(roomId);
+        if (head == null) {
+            return count(null);
+        }
+        synchronized (head) {
+            return count(head.latestEventId);
+        }
+    }
+
+    /**
+     * @return the event ID of the user's newest message, or null if not known
+     */
+    public String lastMessageFrom(String roomId, String sender) {
+        RoomHead head = rooms.get(roomId);
+        if (head == null) {
+            return count(null);
+        }
+        synchronized (head) {
+            return count(head.lastEventBySender.get(sender));
+        }
+    }
+
+    /**
+     * @return the event ID of the user's newest read receipt, or null if not known
+     */
+    public String lastReadBy(String roomId, String userId) {
+        RoomHead head = rooms.get(roomId);
+        if (head == null) {
+            return count(null);
+        }
+        synchronized (head) {
+            SyncBatch.Receipt receipt = head.lastReceiptByUser.get(userId);
+            return count(receipt == null ? null : receipt.eventId);
+        }
+    }
+
+    /**
+     * Lookup counters for the !stats report
+     */
+    public String formatStats() {
+        return "**Room index** (rooms: " + rooms.size() + ")\n\n"
+                + "- hits=" + hits.get() + " misses=" + misses.get() + "\n";
+    }
+
+    private String count(String result) {
+        (result != null ? hits : misses).incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Insert or move the user to the most recently active end
+     */
+    private static <V> void touch(Map<String, V> map, String userId, V value) {
+        map.remove(userId);
+        map.put(userId, value);
+    }
+
+    private static <V> Map<String, V> lru() {
+        return new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > MAX_USERS_PER_ROOM;
+            }
+        };
+    }
+}
@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Handles room management: joining, leaving, and checking member status.
@@ -29,17 +30,19 @@ public class RoomManagementService {
      * Handle auto-join for invited rooms and send encryption warning if needed
      */
     public void handleInvitedRoom(String roomId) {
-        if (!matrixClient.joinRoom(roomId)) {
-            return;
-        }
-
-        // Check if room is encrypted
-        if (matrixClient.isRoomEncrypted(roomId)) {
-            String warningMessage = "⚠️ **Warning**: This room is end-to-end encrypted. " +
-                "I cannot read encrypted messages, so commands will not work. " +
-                "Please create an unencrypted room with me for the bot to function properly.";
-            matrixClient.sendMarkdown(roomId, warningMessage);
-        }
+        // Runs asynchronously so a slow homeserver doesn't hold up the sync dispatch stage
+        matrixClient.joinRoomAsync(roomId)
+                .thenCompose(joined -> joined
+                        ? matrixClient.isRoomEncryptedAsync(roomId)
+                        : CompletableFuture.completedFuture(false))
+                .thenAccept(encrypted -> {
+                    if (encrypted) {
+                        String warningMessage = "⚠️ **Warning**: This room is end-to-end encrypted. " +
+                            "I cannot read encrypted messages, so commands will not work. " +
+                            "Please create an unencrypted room with me for the bot to function properly.";
+                        matrixClient.sendMarkdownAsync(roomId, warningMessage);
+                    }
+                });
     }
 
     /**
@@ -53,7 +56,7 @@ public class RoomManagementService {
         }
 
         System.out.println("User left room " + roomId + ", bot is leaving...");
-        matrixClient.leaveRoom(roomId);
+        matrixClient.leaveRoomAsync(roomId);
     }
 
     /**
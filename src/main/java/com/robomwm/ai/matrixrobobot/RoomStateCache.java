@@ -0,0 +1,237 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory room state shared by all services: encryption, member counts, known members
+ * and DM rooms. Filled and invalidated from the sync stream (state, timeline, room summaries
+ * and m.direct account data) and from read-through lookups that had to hit the network,
+ * so repeated lookups are answered without HTTP round-trips.
+ * <p>
+ * Sync lazy-loads members, so the members it reports for a room are only the ones it happened
+ * to mention. A room's member set is trusted for DM detection only after a full member list
+ * was stored with {@link #putMembers}, and stops being trusted when a limited timeline may
+ * have hidden membership changes. Summary heroes are only a hint for where to look: they may
+ * be invited, or have left, so they never count as members.
+ */
+public class RoomStateCache implements SyncFilter.Contributor {
+
+    private static class RoomState {
+        Boolean encrypted;
+        int joinedCount = -1;
+        int invitedCount = -1;
+        final Set<String> members = new HashSet<>();
+        boolean membersComplete;
+        /** From the latest room summary; may include invited or departed users */
+        List<String> heroes = List.of();
+    }
+
+    private final Map<String, RoomState> rooms = new HashMap<>();
+    private final Map<String, Set<String>> roomsByMember = new HashMap<>();
+    private final Map<String, List<String>> directRooms = new HashMap<>();
+    private final Map<String, String> knownDmRooms = new HashMap<>();
+
+    /**
+     * Membership and encryption state plus m.direct account data
+     */
+    @Override
+    public void contributeSyncFilter(SyncFilter filter) {
+        filter.includeStateType("m.room.member");
+        filter.includeStateType("m.room.encryption");
+        filter.includeTimelineType("m.room.member");
+        filter.includeTimelineType("m.room.encryption");
+        filter.includeAccountDataType("m.direct");
+    }
+
+    /**
+     * Apply the state carried by a sync batch
+     */
+    public synchronized void apply(SyncBatch batch) {
+        if (batch.directRooms != null) {
+            directRooms.clear();
+            directRooms.putAll(batch.directRooms);
+        }
+        for (String roomId : batch.leftRoomIds) {
+            removeRoom(roomId);
+        }
+        for (SyncBatch.JoinedRoom room : batch.joinedRooms) {
+            RoomState state = rooms.computeIfAbsent(room.roomId, k -> new RoomState());
+            if (room.joinedMemberCount >= 0) {
+                state.joinedCount = room.joinedMemberCount;
+            }
+            if (room.invitedMemberCount >= 0) {
+                state.invitedCount = room.invitedMemberCount;
+            }
+            if (room.heroes != null) {
+                state.heroes = List.copyOf(room.heroes);
+            }
+            // Lazy-loaded state across a gap only covers members who sent something after it
+            if (room.limited) {
+                state.membersComplete = false;
+            }
+            boolean membershipChanged = false;
+            for (SyncBatch.StateEvent ev : room.stateEvents) {
+                if ("m.room.encryption".equals(ev.type)) {
+                    state.encrypted = ev.algorithm != null;
+                } else if ("join".equals(ev.membership)) {
+                    membershipChanged |= addMember(room.roomId, state, ev.stateKey);
+                } else if (ev.membership != null) {
+                    membershipChanged |= removeMember(room.roomId, state, ev.stateKey);
+                }
+            }
+            // Counts are only trusted from a summary in the same batch as the membership change
+            if (membershipChanged && room.joinedMemberCount < 0) {
+                state.joinedCount = -1;
+                state.invitedCount = -1;
+            }
+        }
+    }
+
+    /**
+     * @return whether the room is encrypted, or null if unknown
+     */
+    public synchronized Boolean isEncrypted(String roomId) {
+        RoomState state = rooms.get(roomId);
+        return state == null ? null : state.encrypted;
+    }
+
+    public synchronized void putEncrypted(String roomId, boolean encrypted) {
+        rooms.computeIfAbsent(roomId, k -> new RoomState()).encrypted = encrypted;
+    }
+
+    /**
+     * @return joined plus invited members, or -1 if unknown
+     */
+    public synchronized int getMemberCount(String roomId) {
+        RoomState state = rooms.get(roomId);
+        if (state == null || state.joinedCount < 0) {
+            return -1;
+        }
+        return state.joinedCount + Math.max(0, state.invitedCount);
+    }
+
+    public synchronized void putMemberCount(String roomId, int joinedCount, int invitedCount) {
+        RoomState state = rooms.computeIfAbsent(roomId, k -> new RoomState());
+        state.joinedCount = joinedCount;
+        state.invitedCount = invitedCount;
+    }
+
+    /**
+     * Record the full joined member list of a room, e.g. from /joined_members
+     */
+    public synchronized void putMembers(String roomId, Set<String> members) {
+        RoomState state = rooms.computeIfAbsent(roomId, k -> new RoomState());
+        for (String member : new HashSet<>(state.members)) {
+            removeMember(roomId, state, member);
+        }
+        for (String member : members) {
+            addMember(roomId, state, member);
+        }
+        state.joinedCount = members.size();
+        // Invites aren't part of the list; a count from an older summary would no longer match it
+        state.invitedCount = -1;
+        state.membersComplete = true;
+    }
+
+    /**
+     * Find a joined two-member room shared with the user: a previously discovered DM,
+     * then m.direct rooms, then any known room where the user is the only other member.
+     * Only rooms with a complete member list count.
+     * @return the room ID, or null if nothing in memory matches
+     */
+    public synchronized String findDirectRoom(String userId) {
+        String known = knownDmRooms.get(userId);
+        if (known != null && isDmWith(known, userId)) {
+            return known;
+        }
+        List<String> direct = directRooms.get(userId);
+        if (direct != null) {
+            for (String roomId : direct) {
+                if (isDmWith(roomId, userId)) {
+                    return roomId;
+                }
+            }
+        }
+        Set<String> shared = roomsByMember.get(userId);
+        if (shared != null) {
+            for (String roomId : shared) {
+                if (isDmWith(roomId, userId)) {
+                    return roomId;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the rooms m.direct lists for the user, whether or not their members are known
+     */
+    public synchronized List<String> getDirectRooms(String userId) {
+        List<String> direct = directRooms.get(userId);
+        return direct == null ? List.of() : List.copyOf(direct);
+    }
+
+    /**
+     * @return rooms whose latest summary names the user as a hero, worth checking early for a DM
+     */
+    public synchronized List<String> getHeroRooms(String userId) {
+        List<String> found = new ArrayList<>();
+        for (Map.Entry<String, RoomState> entry : rooms.entrySet()) {
+            if (entry.getValue().heroes.contains(userId)) {
+                found.add(entry.getKey());
+            }
+        }
+        return found;
+    }
+
+    public synchronized void putDirectRoom(String userId, String roomId) {
+        knownDmRooms.put(userId, roomId);
+    }
+
+    private boolean isDmWith(String roomId, String userId) {
+        RoomState state = rooms.get(roomId);
+        if (state == null || !state.membersComplete) {
+            return false;
+        }
+        // A DM usually has exactly 2 members: the bot and the target user
+        return state.members.size() == 2 && state.members.contains(userId);
+    }
+
+    private boolean addMember(String roomId, RoomState state, String userId) {
+        if (userId == null || !state.members.add(userId)) {
+            return false;
+        }
+        roomsByMember.computeIfAbsent(userId, k -> new HashSet<>()).add(roomId);
+        return true;
+    }
+
+    private boolean removeMember(String roomId, RoomState state, String userId) {
+        if (userId == null || !state.members.remove(userId)) {
+            return false;
+        }
+        Set<String> memberRooms = roomsByMember.get(userId);
+        if (memberRooms != null) {
+            memberRooms.remove(roomId);
+            if (memberRooms.isEmpty()) {
+                roomsByMember.remove(userId);
+            }
+        }
+        knownDmRooms.remove(userId, roomId);
+        return true;
+    }
+
+    private void removeRoom(String roomId) {
+        RoomState state = rooms.remove(roomId);
+        if (state != null) {
+            for (String member : new HashSet<>(state.members)) {
+                removeMember(roomId, state, member);
+            }
+        }
+        knownDmRooms.values().removeIf(roomId::equals);
+    }
+}
@@ -0,0 +1,234 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Range scans over {@link EventStore} segments through memory-mapped buffers. Each segment is
+ * entered at the sparse index block covering the start of the window and merged with the others
+ * by timestamp. Records are handed out as a reusable {@link RecordView} over the mapped bytes,
+ * so filtering and formatting only decode the fields they touch. {@link #scan} pushes records to
+ * a visitor; {@link Merge} hands them out one at a time for lazy iteration.
+ */
+public class SegmentReader {
+
+    /**
+     * Receives records in timestamp order
+     */
+    public interface RecordVisitor {
+        /**
+         * @return false to stop the scan
+         */
+        boolean visit(RecordView record) throws IOException;
+    }
+
+    /**
+     * Flyweight over one record of a mapped segment. Only valid during the visit call;
+     * copy out whatever needs to be kept.
+     */
+    public static final class RecordView {
+        private ByteBuffer buffer;
+        private int offset;
+        private long ts;
+        private int eventIdOffset;
+        private int eventIdLength;
+        private int senderOffset;
+        private int senderLength;
+        private int bodyOffset;
+        private int bodyLength;
+
+        void moveTo(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+            ts = buffer.getLong(offset + 4);
+            eventIdLength = Short.toUnsignedInt(buffer.getShort(offset + 12));
+            eventIdOffset = offset + 14;
+            senderLength = Short.toUnsignedInt(buffer.getShort(eventIdOffset + eventIdLength));
+            senderOffset = eventIdOffset + eventIdLength + 2;
+            bodyLength = buffer.getInt(senderOffset + senderLength);
+            bodyOffset = senderOffset + senderLength + 4;
+        }
+
+        int size() {
+            return 4 + buffer.getInt(offset);
+        }
+
+        public long ts() {
+            return ts;
+        }
+
+        public String eventId() {
+            return decode(eventIdOffset, eventIdLength);
+        }
+
+        public String sender() {
+            return decode(senderOffset, senderLength);
+        }
+
+        public String body() {
+            return decode(bodyOffset, bodyLength);
+        }
+
+        /**
+         * Compare the sender against a UTF-8 encoded user ID without decoding it
+         */
+        public boolean senderEquals(byte[] utf8) {
+            return bytesEqual(buffer, senderOffset, senderLength, utf8);
+        }
+
+        /**
+         * Read-only view of the UTF-8 body bytes; no copy
+         */
+        public ByteBuffer bodyBytes() {
+            return buffer.slice(bodyOffset, bodyLength).asReadOnlyBuffer();
+        }
+
+        /**
+         * The encoded record, for copying it to another segment as is
+         */
+        ByteBuffer rawRecord() {
+            return buffer.slice(offset, size());
+        }
+
+        private String decode(int from, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(from, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class Cursor {
+        final ByteBuffer buffer;
+        final int limit;
+        final long to;
+        final RecordView current = new RecordView();
+        int position;
+        boolean valid;
+
+        Cursor(EventStore.SegmentSnapshot segment, long from, long to) throws IOException {
+            try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+                // The mapping stays valid after the channel is closed
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.length);
+            }
+            this.limit = (int) segment.length;
+            this.to = to;
+            this.position = (int) segment.index.seek(from, segment.indexEntries);
+            do {
+                advance();
+            } while (valid && current.ts < from);
+        }
+
+        void advance() {
+            if (position >= limit) {
+                valid = false;
+                return;
+            }
+            current.moveTo(buffer, position);
+            position += current.size();
+            valid = current.ts <= to;
+        }
+    }
+
+    /**
+     * Pull-based merge of the segments: records with from <= ts <= to in timestamp order, skipping
+     * repeated event IDs (duplicates always share a timestamp)
+     */
+    static final class Merge {
+        private final PriorityQueue<Cursor> heap;
+        // Event IDs already returned at the current timestamp, as (buffer, offset) of their records
+        private ByteBuffer[] groupBuffers = new ByteBuffer[4];
+        private int[] groupOffsets = new int[4];
+        private int groupSize;
+        private long groupTs = Long.MIN_VALUE;
+        private final RecordView seen = new RecordView();
+        private Cursor last;
+
+        Merge(List<EventStore.SegmentSnapshot> segments, long from, long to) throws IOException {
+            heap = new PriorityQueue<>(Math.max(1, segments.size()), (a, b) -> Long.compare(a.current.ts, b.current.ts));
+            for (EventStore.SegmentSnapshot segment : segments) {
+                Cursor cursor = new Cursor(segment, from, to);
+                if (cursor.valid) {
+                    heap.add(cursor);
+                }
+            }
+        }
+
+        /**
+         * @return the next record, valid until the following call, or null once the range is exhausted
+         */
+        RecordView next() {
+            if (last != null) {
+                last.advance();
+                if (last.valid) {
+                    heap.add(last);
+                }
+                last = null;
+            }
+            while (!heap.isEmpty()) {
+                Cursor cursor = heap.poll();
+                RecordView record = cursor.current;
+                if (record.ts != groupTs) {
+                    groupTs = record.ts;
+                    groupSize = 0;
+                }
+                boolean duplicate = false;
+                for (int i = 0; i < groupSize && !duplicate; i++) {
+                    seen.moveTo(groupBuffers[i], groupOffsets[i]);
+                    duplicate = sameEventId(seen, record);
+                }
+                if (!duplicate) {
+                    if (groupSize == groupBuffers.length) {
+                        groupBuffers = Arrays.copyOf(groupBuffers, groupSize * 2);
+                        groupOffsets = Arrays.copyOf(groupOffsets, groupSize * 2);
+                    }
+                    groupBuffers[groupSize] = record.buffer;
+                    groupOffsets[groupSize] = record.offset;
+                    groupSize++;
+                    last = cursor;
+                    return record;
+                }
+                cursor.advance();
+                if (cursor.valid) {
+                    heap.add(cursor);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Visit the records of the segments with from <= ts <= to in timestamp order, skipping
+     * repeated event IDs
+     */
+    static void scan(List<EventStore.SegmentSnapshot> segments, long from, long to, RecordVisitor visitor) throws IOException {
+        Merge merge = new Merge(segments, from, to);
+        for (RecordView record = merge.next(); record != null; record = merge.next()) {
+            if (!visitor.visit(record)) {
+                return;
+            }
+        }
+    }
+
+    private static boolean sameEventId(RecordView a, RecordView b) {
+        return a.eventIdLength == b.eventIdLength
+                && a.buffer.slice(a.eventIdOffset, a.eventIdLength).equals(b.buffer.slice(b.eventIdOffset, b.eventIdLength));
+    }
+
+    private static boolean bytesEqual(ByteBuffer buffer, int offset, int length, byte[] bytes) {
+        if (length != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
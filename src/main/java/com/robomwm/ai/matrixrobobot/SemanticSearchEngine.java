@@ -1,12 +1,24 @@
 package com.robomwm.ai.matrixrobobot;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntToDoubleFunction;
 
 /**
  * AI-free semantic search engine using local text similarity
- * Uses Jaccard similarity and word overlap for ranking
+ * Uses Jaccard similarity and word overlap for ranking, or BM25 over an {@link InvertedIndex},
+ * or cosine similarity of local {@link HashedEmbedder} vectors
  */
 public class SemanticSearchEngine {
+    /** Shared by every index so term IDs mean the same everywhere */
+    static final TermDictionary TERMS = new TermDictionary();
+    static final Tokenizer TOKENIZER = new Tokenizer(TERMS);
+    /** Jaccard score a message must exceed to be a result */
+    static final double JACCARD_THRESHOLD = 0.1;
+    /** Chance that LSH search finds a message scoring exactly the threshold; more similar ones are found more often */
+    static final double DEFAULT_RECALL_TARGET = 0.95;
+    private static final int MINHASH_MAX_HASHES = 128;
     
     public static class MessageEmbedding {
         public String eventId;
@@ -14,6 +26,10 @@ public class SemanticSearchEngine {
         public String timestamp;
         public String sender;
         public double[] embedding;
+        /** {@link HashedEmbedder} vector of the message, filled in by {@link #embed} */
+        public float[] vector;
+        /** Sorted term IDs of the message, filled in by {@link #terms} */
+        public int[] terms;
         
         public MessageEmbedding(String eventId, String message, String timestamp, String sender, double[] embedding) {
             this.eventId = eventId;
@@ -29,29 +45,19 @@ public class SemanticSearchEngine {
      * Returns score between 0.0 and 1.0
      */
     public static double calculateTextSimilarity(String query, String message) {
-        String[] queryWords = query.toLowerCase().split("\\W+");
-        String[] messageWords = message.toLowerCase().split("\\W+");
-        
-        Set<String> querySet = new HashSet<>();
-        for (String word : queryWords) {
-            if (word.length() > 2) querySet.add(word);
-        }
-        
-        Set<String> messageSet = new HashSet<>();
-        for (String word : messageWords) {
-            if (word.length() > 2) messageSet.add(word);
+        return Tokenizer.jaccard(TOKENIZER.termSet(query), TOKENIZER.termSet(message));
+    }
+
+    /**
+     * The message's sorted term IDs, computed on first use and cached on the message
+     */
+    public static int[] terms(MessageEmbedding message) {
+        int[] terms = message.terms;
+        if (terms == null) {
+            terms = TOKENIZER.termSet(message.message);
+            message.terms = terms;
         }
-        
-        if (querySet.isEmpty() || messageSet.isEmpty()) return 0.0;
-        
-        // Jaccard similarity: intersection / union
-        Set<String> intersection = new HashSet<>(querySet);
-        intersection.retainAll(messageSet);
-        
-        Set<String> union = new HashSet<>(querySet);
-        union.addAll(messageSet);
-        
-        return (double) intersection.size() / union.size();
+        return terms;
     }
     
     /**
@@ -62,32 +68,123 @@ public class SemanticSearchEngine {
      * @return List of matching messages sorted by relevance
      */
     public static List<MessageEmbedding> search(String query, List<MessageEmbedding> embeddings, int topK) {
-        if (embeddings.isEmpty()) return new ArrayList<>();
-        
-        List<MessageEmbedding> results = new ArrayList<>();
-        
-        // Calculate similarity for each message
-        for (MessageEmbedding embedding : embeddings) {
-            double similarity = calculateTextSimilarity(query, embedding.message);
-            if (similarity > 0.1) { // Threshold filter
-                // Store similarity in the embedding array for sorting
-                results.add(new MessageEmbedding(
-                    embedding.eventId, 
-                    embedding.message, 
-                    embedding.timestamp, 
-                    embedding.sender, 
-                    new double[]{similarity}
-                ));
+        if (embeddings.isEmpty() || topK <= 0) return new ArrayList<>();
+        return search(query, InvertedIndex.of(embeddings), topK);
+    }
+
+    /**
+     * Search an index kept across queries; same results as the list version over the indexed messages,
+     * but only messages sharing a word with the query are looked at
+     */
+    public static List<MessageEmbedding> search(String query, InvertedIndex index, int topK) {
+        return index.searchJaccard(query, topK, JACCARD_THRESHOLD);
+    }
+
+    /**
+     * LSH index over the messages with the same threshold as the exact search
+     * @param recallTarget Chance of finding a message scoring exactly the threshold, e.g. {@link #DEFAULT_RECALL_TARGET}
+     */
+    public static MinHashIndex minHashIndex(List<MessageEmbedding> messages, double recallTarget) {
+        return MinHashIndex.of(messages, JACCARD_THRESHOLD, recallTarget, MINHASH_MAX_HASHES);
+    }
+
+    /**
+     * Jaccard search that only scores the messages sharing an LSH bucket with the query; the same
+     * scores and order as the list version, but a message at the threshold may be missed with
+     * probability 1 - recall target
+     */
+    public static List<MessageEmbedding> search(String query, MinHashIndex index, int topK) {
+        return index.search(query, topK);
+    }
+
+    /**
+     * Rank indexed messages by BM25 instead of word overlap, so rare words count for more
+     */
+    public static List<MessageEmbedding> searchRanked(String query, InvertedIndex index, int topK) {
+        return index.searchBm25(query, topK);
+    }
+
+    /**
+     * Compute the message's vector if it has none yet; done once when a message is collected
+     */
+    public static MessageEmbedding embed(MessageEmbedding message) {
+        if (message.vector == null) {
+            message.vector = HashedEmbedder.embed(message.message);
+        }
+        return message;
+    }
+
+    /**
+     * Rank messages by cosine similarity of their vectors with the query's
+     * @return up to topK messages above the threshold, best first, with the similarity in embedding[0]
+     */
+    public static List<MessageEmbedding> searchSemantic(String query, List<MessageEmbedding> embeddings, int topK, double threshold) {
+        if (embeddings.isEmpty() || topK <= 0) return new ArrayList<>();
+        List<MessageEmbedding> messages = embeddings instanceof RandomAccess ? embeddings : new ArrayList<>(embeddings);
+        float[] queryVector = HashedEmbedder.embed(query);
+        TopK best = ForkJoinPool.commonPool().invoke(new ScoreTask(
+                i -> VectorSimilarity.cosine(queryVector, embed(messages.get(i)).vector), threshold, 0, messages.size(), topK));
+        return results(best, messages);
+    }
+
+    /**
+     * Scores a range of the messages, splitting it in half until it is small enough for one worker.
+     * Each worker keeps only its own best K, which are merged on the way back up.
+     */
+    private static class ScoreTask extends RecursiveTask<TopK> {
+        private static final long serialVersionUID = 1L;
+        private static final int LEAF_SIZE = 2048;
+
+        /** Tasks are never serialized; the scorer is a lambda over the caller's messages */
+        private final transient IntToDoubleFunction scorer;
+        private final double threshold;
+        private final int from;
+        private final int to;
+        private final int topK;
+
+        ScoreTask(IntToDoubleFunction scorer, double threshold, int from, int to, int topK) {
+            this.scorer = scorer;
+            this.threshold = threshold;
+            this.from = from;
+            this.to = to;
+            this.topK = topK;
+        }
+
+        @Override
+        protected TopK compute() {
+            if (to - from > LEAF_SIZE) {
+                int middle = (from + to) >>> 1;
+                ScoreTask upper = new ScoreTask(scorer, threshold, middle, to, topK);
+                upper.fork();
+                TopK lower = new ScoreTask(scorer, threshold, from, middle, topK).compute();
+                return lower.merge(upper.join());
             }
+            TopK best = new TopK(topK);
+            for (int i = from; i < to; i++) {
+                double similarity = scorer.applyAsDouble(i);
+                if (similarity > threshold) { // Threshold filter
+                    best.offer(i, similarity);
+                }
+            }
+            return best;
         }
-        
-        // Sort by similarity (descending)
-        results.sort((a, b) -> Double.compare(b.embedding[0], a.embedding[0]));
-        
-        // Return top K results
-        return results.subList(0, Math.min(topK, results.size()));
     }
-    
+
+    /**
+     * Copies of the winning messages, best first, with the similarity in embedding[0]
+     */
+    static List<MessageEmbedding> results(TopK best, List<MessageEmbedding> messages) {
+        int[] ordinals = new int[best.size()];
+        double[] scores = new double[best.size()];
+        int n = best.drain(ordinals, scores);
+        List<MessageEmbedding> results = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            MessageEmbedding embedding = messages.get(ordinals[i]);
+            results.add(new MessageEmbedding(embedding.eventId, embedding.message, embedding.timestamp, embedding.sender, new double[]{scores[i]}));
+        }
+        return results;
+    }
+
     /**
      * Get a simple similarity score for debugging/analysis
      */
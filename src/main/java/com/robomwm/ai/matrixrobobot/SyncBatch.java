@@ -0,0 +1,89 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lightweight, typed view of a single /sync response.
+ * Only the parts the bot actually consumes are kept; everything else is skipped by {@link SyncDecoder}.
+ */
+public class SyncBatch {
+    public String nextBatch;
+    public List<String> invitedRoomIds = new ArrayList<>();
+    public List<String> leftRoomIds = new ArrayList<>();
+    public List<JoinedRoom> joinedRooms = new ArrayList<>();
+    /** m.direct account data (user ID to DM room IDs), or null if it did not change in this batch */
+    public Map<String, List<String>> directRooms;
+
+    public static class JoinedRoom {
+        public String roomId;
+        public String prevBatch;
+        /** The timeline skipped events between the previous batch and this one */
+        public boolean limited;
+        public List<TimelineEvent> timeline = new ArrayList<>();
+        /** Earlier events redacted or edited (m.replace) by events in this timeline */
+        public List<String> modifiedEventIds = new ArrayList<>();
+        public List<Receipt> receipts = new ArrayList<>();
+        /** Membership and encryption state, from both the state section and the timeline */
+        public List<StateEvent> stateEvents = new ArrayList<>();
+        /** Room summary counts, or -1 when not sent in this batch */
+        public int joinedMemberCount = -1;
+        public int invitedMemberCount = -1;
+        /** Room summary heroes, or null when not sent in this batch */
+        public List<String> heroes;
+
+        public JoinedRoom(String roomId) {
+            this.roomId = roomId;
+        }
+    }
+
+    /**
+     * An m.room.message event from a room timeline
+     */
+    public static class TimelineEvent {
+        public String eventId;
+        public String sender;
+        public String body;
+        public long originServerTs;
+
+        public TimelineEvent(String eventId, String sender, String body, long originServerTs) {
+            this.eventId = eventId;
+            this.sender = sender;
+            this.body = body;
+            this.originServerTs = originServerTs;
+        }
+    }
+
+    /**
+     * An m.room.member or m.room.encryption state event
+     */
+    public static class StateEvent {
+        public String type;
+        public String stateKey;
+        public String membership;
+        public String algorithm;
+
+        public StateEvent(String type, String stateKey, String membership, String algorithm) {
+            this.type = type;
+            this.stateKey = stateKey;
+            this.membership = membership;
+            this.algorithm = algorithm;
+        }
+    }
+
+    /**
+     * A single m.read entry from an m.receipt ephemeral event
+     */
+    public static class Receipt {
+        public String eventId;
+        public String userId;
+        public long ts;
+
+        public Receipt(String eventId, String userId, long ts) {
+            this.eventId = eventId;
+            this.userId = userId;
+            this.ts = ts;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Crash-safe checkpoint of the sync position: the last processed next_batch token
+ * and the latest timeline prev_batch of every joined room.
+ * Written atomically (temp file + rename) after each processed batch so a restart can resume
+ * from where it stopped instead of running a full initial sync.
+ */
+public class SyncCheckpoint {
+
+    public static class State {
+        public String nextBatch;
+        public Map<String, String> prevBatches = new ConcurrentHashMap<>();
+    }
+
+    private final ObjectMapper mapper;
+    private final Path persistenceFile;
+    private State state = new State();
+
+    public SyncCheckpoint(ObjectMapper mapper, Path persistenceFile) {
+        this.mapper = mapper;
+        this.persistenceFile = persistenceFile;
+        load();
+    }
+
+    public String getNextBatch() {
+        return state.nextBatch;
+    }
+
+    public String getPrevBatch(String roomId) {
+        return state.prevBatches.get(roomId);
+    }
+
+    /**
+     * Record a fully processed batch and persist it
+     */
+    public synchronized void update(SyncBatch batch) {
+        if (batch.nextBatch != null) {
+            state.nextBatch = batch.nextBatch;
+        }
+        for (SyncBatch.JoinedRoom room : batch.joinedRooms) {
+            if (room.prevBatch != null) {
+                state.prevBatches.put(room.roomId, room.prevBatch);
+            }
+        }
+        for (String roomId : batch.leftRoomIds) {
+            state.prevBatches.remove(roomId);
+        }
+        save();
+    }
+
+    private void load() {
+        if (!Files.exists(persistenceFile)) {
+            return;
+        }
+        try {
+            State loaded = mapper.readValue(Files.readAllBytes(persistenceFile), State.class);
+            if (loaded.prevBatches == null) {
+                loaded.prevBatches = new ConcurrentHashMap<>();
+            } else {
+                loaded.prevBatches = new ConcurrentHashMap<>(loaded.prevBatches);
+            }
+            state = loaded;
+            System.out.println("Loaded sync checkpoint: " + state.nextBatch + " (" + state.prevBatches.size() + " rooms)");
+        } catch (IOException e) {
+            System.err.println("Error loading sync checkpoint: " + e.getMessage());
+        }
+    }
+
+    private void save() {
+        Path tmp = persistenceFile.resolveSibling(persistenceFile.getFileName() + ".tmp");
+        try {
+            byte[] content = mapper.writeValueAsBytes(state);
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, persistenceFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error saving sync checkpoint: " + e.getMessage());
+        }
+    }
+}
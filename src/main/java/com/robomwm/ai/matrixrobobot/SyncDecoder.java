@@ -0,0 +1,390 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental /sync decoder built on Jackson's streaming {@link JsonParser}.
+ * Reads the response body as a stream and never materializes a JsonNode tree;
+ * subtrees the bot does not use are skipped without being buffered.
+ */
+public class SyncDecoder {
+    private final JsonFactory factory;
+
+    public SyncDecoder(JsonFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Decode a /sync response body. The stream is closed once the body has been read.
+     */
+    public SyncBatch decode(InputStream in) throws IOException {
+        SyncBatch batch = new SyncBatch();
+        try (JsonParser p = factory.createParser(in)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected sync response to be a JSON object");
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                p.nextToken();
+                if ("next_batch".equals(field)) {
+                    batch.nextBatch = p.getValueAsString();
+                } else if ("rooms".equals(field) && p.currentToken() == JsonToken.START_OBJECT) {
+                    readRooms(p, batch);
+                } else if ("account_data".equals(field) && p.currentToken() == JsonToken.START_OBJECT) {
+                    readAccountData(p, batch);
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+        return batch;
+    }
+
+    private void readRooms(JsonParser p, SyncBatch batch) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String section = p.getCurrentName();
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                continue;
+            }
+            switch (section) {
+                case "join":
+                    while (p.nextToken() == JsonToken.FIELD_NAME) {
+                        SyncBatch.JoinedRoom room = new SyncBatch.JoinedRoom(p.getCurrentName());
+                        if (p.nextToken() == JsonToken.START_OBJECT) {
+                            readJoinedRoom(p, room);
+                        } else {
+                            p.skipChildren();
+                        }
+                        batch.joinedRooms.add(room);
+                    }
+                    break;
+                case "invite":
+                    readRoomIds(p, batch.invitedRoomIds);
+                    break;
+                case "leave":
+                    readRoomIds(p, batch.leftRoomIds);
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+    }
+
+    private void readRoomIds(JsonParser p, List<String> roomIds) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            roomIds.add(p.getCurrentName());
+            p.nextToken();
+            p.skipChildren();
+        }
+    }
+
+    private void readJoinedRoom(JsonParser p, SyncBatch.JoinedRoom room) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            if ("timeline".equals(field) && value == JsonToken.START_OBJECT) {
+                readTimeline(p, room);
+            } else if ("ephemeral".equals(field) && value == JsonToken.START_OBJECT) {
+                readEphemeral(p, room);
+            } else if ("state".equals(field) && value == JsonToken.START_OBJECT) {
+                readState(p, room);
+            } else if ("summary".equals(field) && value == JsonToken.START_OBJECT) {
+                readSummary(p, room);
+            } else {
+                p.skipChildren();
+            }
+        }
+    }
+
+    private void readTimeline(JsonParser p, SyncBatch.JoinedRoom room) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            if ("prev_batch".equals(field)) {
+                room.prevBatch = p.getValueAsString();
+            } else if ("limited".equals(field)) {
+                room.limited = p.getValueAsBoolean();
+            } else if ("events".equals(field) && value == JsonToken.START_ARRAY) {
+                while (p.nextToken() != JsonToken.END_ARRAY) {
+                    if (p.currentToken() != JsonToken.START_OBJECT) {
+                        p.skipChildren();
+                        continue;
+                    }
+                    readRoomEvent(p, room, true);
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Read one room event object. m.room.message events with a body go to the timeline (if requested),
+     * and the targets of redactions and edits there to the modified IDs; membership and encryption
+     * state events go to the room state.
+     */
+    private void readRoomEvent(JsonParser p, SyncBatch.JoinedRoom room, boolean timeline) throws IOException {
+        String type = null;
+        String eventId = null;
+        String sender = null;
+        String stateKey = null;
+        String body = null;
+        String membership = null;
+        String algorithm = null;
+        String redacts = null;
+        String replaces = null;
+        long ts = 0;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            switch (field) {
+                case "type":
+                    type = p.getValueAsString();
+                    break;
+                case "event_id":
+                    eventId = p.getValueAsString();
+                    break;
+                case "sender":
+                    sender = p.getValueAsString();
+                    break;
+                case "state_key":
+                    stateKey = p.getValueAsString();
+                    break;
+                case "origin_server_ts":
+                    ts = p.getValueAsLong(0);
+                    break;
+                case "redacts":
+                    redacts = p.getValueAsString();
+                    break;
+                case "content":
+                    if (value != JsonToken.START_OBJECT) {
+                        p.skipChildren();
+                        break;
+                    }
+                    while (p.nextToken() == JsonToken.FIELD_NAME) {
+                        String contentField = p.getCurrentName();
+                        JsonToken contentValue = p.nextToken();
+                        if ("m.relates_to".equals(contentField) && contentValue == JsonToken.START_OBJECT) {
+                            replaces = readReplacedEventId(p);
+                        } else if (contentValue != JsonToken.VALUE_STRING) {
+                            p.skipChildren();
+                        } else if ("body".equals(contentField)) {
+                            body = p.getText();
+                        } else if ("membership".equals(contentField)) {
+                            membership = p.getText();
+                        } else if ("algorithm".equals(contentField)) {
+                            algorithm = p.getText();
+                        } else if ("redacts".equals(contentField)) {
+                            // Room version 11 moved redacts into the content
+                            redacts = p.getText();
+                        }
+                    }
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+        if (timeline && "m.room.redaction".equals(type) && redacts != null) {
+            room.modifiedEventIds.add(redacts);
+        } else if (timeline && "m.room.message".equals(type) && body != null) {
+            if (replaces != null) {
+                room.modifiedEventIds.add(replaces);
+            }
+            room.timeline.add(new SyncBatch.TimelineEvent(eventId, sender, body, ts));
+        } else if (stateKey != null && ("m.room.member".equals(type) || "m.room.encryption".equals(type))) {
+            room.stateEvents.add(new SyncBatch.StateEvent(type, stateKey, membership, algorithm));
+        }
+    }
+
+    /**
+     * @return the target of an m.replace relation, or null for other relations
+     */
+    private String readReplacedEventId(JsonParser p) throws IOException {
+        String relType = null;
+        String eventId = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            if (value != JsonToken.VALUE_STRING) {
+                p.skipChildren();
+            } else if ("rel_type".equals(field)) {
+                relType = p.getText();
+            } else if ("event_id".equals(field)) {
+                eventId = p.getText();
+            }
+        }
+        return "m.replace".equals(relType) ? eventId : null;
+    }
+
+    private void readState(JsonParser p, SyncBatch.JoinedRoom room) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            if (!"events".equals(field) || value != JsonToken.START_ARRAY) {
+                p.skipChildren();
+                continue;
+            }
+            while (p.nextToken() != JsonToken.END_ARRAY) {
+                if (p.currentToken() == JsonToken.START_OBJECT) {
+                    readRoomEvent(p, room, false);
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void readSummary(JsonParser p, SyncBatch.JoinedRoom room) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            if ("m.joined_member_count".equals(field)) {
+                room.joinedMemberCount = p.getValueAsInt(-1);
+            } else if ("m.invited_member_count".equals(field)) {
+                room.invitedMemberCount = p.getValueAsInt(-1);
+            } else if ("m.heroes".equals(field) && value == JsonToken.START_ARRAY) {
+                room.heroes = readStringArray(p);
+            } else {
+                p.skipChildren();
+            }
+        }
+    }
+
+    private List<String> readStringArray(JsonParser p) throws IOException {
+        List<String> values = new ArrayList<>();
+        while (p.nextToken() != JsonToken.END_ARRAY) {
+            if (p.currentToken() == JsonToken.VALUE_STRING) {
+                values.add(p.getText());
+            } else {
+                p.skipChildren();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Global account data; only m.direct is kept
+     */
+    private void readAccountData(JsonParser p, SyncBatch batch) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            if (!"events".equals(field) || value != JsonToken.START_ARRAY) {
+                p.skipChildren();
+                continue;
+            }
+            while (p.nextToken() != JsonToken.END_ARRAY) {
+                if (p.currentToken() != JsonToken.START_OBJECT) {
+                    p.skipChildren();
+                    continue;
+                }
+                String type = null;
+                Map<String, List<String>> direct = new HashMap<>();
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String evField = p.getCurrentName();
+                    JsonToken evValue = p.nextToken();
+                    if ("type".equals(evField)) {
+                        type = p.getValueAsString();
+                    } else if ("content".equals(evField) && evValue == JsonToken.START_OBJECT) {
+                        // Content structure: { "@user_id": [ "!room_id", ... ] }
+                        while (p.nextToken() == JsonToken.FIELD_NAME) {
+                            String userId = p.getCurrentName();
+                            if (p.nextToken() == JsonToken.START_ARRAY) {
+                                direct.put(userId, readStringArray(p));
+                            } else {
+                                p.skipChildren();
+                            }
+                        }
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                if ("m.direct".equals(type)) {
+                    batch.directRooms = direct;
+                }
+            }
+        }
+    }
+
+    private void readEphemeral(JsonParser p, SyncBatch.JoinedRoom room) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            if (!"events".equals(field) || value != JsonToken.START_ARRAY) {
+                p.skipChildren();
+                continue;
+            }
+            while (p.nextToken() != JsonToken.END_ARRAY) {
+                if (p.currentToken() != JsonToken.START_OBJECT) {
+                    p.skipChildren();
+                    continue;
+                }
+                // "type" may come after "content", so receipts are collected tentatively
+                String type = null;
+                List<SyncBatch.Receipt> receipts = new ArrayList<>();
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String evField = p.getCurrentName();
+                    JsonToken evValue = p.nextToken();
+                    if ("type".equals(evField)) {
+                        type = p.getValueAsString();
+                    } else if ("content".equals(evField) && evValue == JsonToken.START_OBJECT) {
+                        readReceiptContent(p, receipts);
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                if ("m.receipt".equals(type)) {
+                    room.receipts.addAll(receipts);
+                }
+            }
+        }
+    }
+
+    /**
+     * Content structure: { "$event_id": { "m.read": { "@user_id": { "ts": 1234 } } } }
+     */
+    private void readReceiptContent(JsonParser p, List<SyncBatch.Receipt> receipts) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String eventId = p.getCurrentName();
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                continue;
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String receiptType = p.getCurrentName();
+                if (p.nextToken() != JsonToken.START_OBJECT || !"m.read".equals(receiptType)) {
+                    p.skipChildren();
+                    continue;
+                }
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String userId = p.getCurrentName();
+                    long ts = 0;
+                    if (p.nextToken() == JsonToken.START_OBJECT) {
+                        while (p.nextToken() == JsonToken.FIELD_NAME) {
+                            String tsField = p.getCurrentName();
+                            p.nextToken();
+                            if ("ts".equals(tsField)) {
+                                ts = p.getValueAsLong(0);
+                            } else {
+                                p.skipChildren();
+                            }
+                        }
+                    } else {
+                        ts = p.getValueAsLong(0);
+                    }
+                    receipts.add(new SyncBatch.Receipt(eventId, userId, ts));
+                }
+            }
+        }
+    }
+}
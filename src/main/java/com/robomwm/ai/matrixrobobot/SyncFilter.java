@@ -0,0 +1,150 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Server-side /sync filter built from what the registered services declare they consume.
+ * Once uploaded, every sync URL references the filter ID so the homeserver only sends those events.
+ */
+public class SyncFilter {
+
+    /**
+     * Implemented by services that read events out of /sync responses
+     */
+    public interface Contributor {
+        void contributeSyncFilter(SyncFilter filter);
+    }
+
+    private final HttpClient httpClient;
+    private final ObjectMapper mapper;
+    private final String homeserverUrl;
+    private final String accessToken;
+
+    private final Set<String> timelineTypes = new LinkedHashSet<>();
+    private final Set<String> ephemeralTypes = new LinkedHashSet<>();
+    private final Set<String> stateTypes = new LinkedHashSet<>();
+    private final Set<String> accountDataTypes = new LinkedHashSet<>();
+    private volatile String filterId;
+
+    public SyncFilter(HttpClient httpClient, ObjectMapper mapper, String homeserverUrl, String accessToken) {
+        this.httpClient = httpClient;
+        this.mapper = mapper;
+        this.homeserverUrl = homeserverUrl;
+        this.accessToken = accessToken;
+    }
+
+    public SyncFilter includeTimelineType(String type) {
+        timelineTypes.add(type);
+        return this;
+    }
+
+    public SyncFilter includeEphemeralType(String type) {
+        ephemeralTypes.add(type);
+        return this;
+    }
+
+    public SyncFilter includeStateType(String type) {
+        stateTypes.add(type);
+        return this;
+    }
+
+    public SyncFilter includeAccountDataType(String type) {
+        accountDataTypes.add(type);
+        return this;
+    }
+
+    /**
+     * Build the filter definition. Sections nobody declared are excluded entirely;
+     * member state is always lazy-loaded, so {@link RoomStateCache} does not take the members
+     * sync reports as a room's full member list.
+     */
+    public ObjectNode toJson() {
+        ObjectNode filter = mapper.createObjectNode();
+        filter.set("presence", eventFilter(Set.of()));
+        filter.set("account_data", eventFilter(accountDataTypes));
+
+        ObjectNode room = filter.putObject("room");
+        ObjectNode timeline = eventFilter(timelineTypes);
+        timeline.put("lazy_load_members", true);
+        room.set("timeline", timeline);
+        ObjectNode state = eventFilter(stateTypes);
+        state.put("lazy_load_members", true);
+        room.set("state", state);
+        room.set("ephemeral", eventFilter(ephemeralTypes));
+        room.set("account_data", eventFilter(Set.of()));
+        return filter;
+    }
+
+    private ObjectNode eventFilter(Set<String> types) {
+        ObjectNode node = mapper.createObjectNode();
+        if (types.isEmpty()) {
+            node.putArray("not_types").add("*");
+        } else {
+            ArrayNode array = node.putArray("types");
+            types.forEach(array::add);
+        }
+        return node;
+    }
+
+    /**
+     * Collect declarations from the given services and upload the filter for this user.
+     * On failure syncs stay unfiltered.
+     */
+    public void register(String userId, List<? extends Contributor> contributors) {
+        for (Contributor contributor : contributors) {
+            contributor.contributeSyncFilter(this);
+        }
+        if (userId == null) {
+            System.out.println("Skipping sync filter upload: unknown user id");
+            return;
+        }
+        try {
+            String filterUrl = homeserverUrl + "/_matrix/client/v3/user/" + URLEncoder.encode(userId, StandardCharsets.UTF_8) + "/filter";
+            String json = mapper.writeValueAsString(toJson());
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(filterUrl))
+                    .header("Authorization", "Bearer " + accessToken)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(json))
+                    .build();
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 200) {
+                JsonNode root = mapper.readTree(response.body());
+                filterId = root.path("filter_id").asText(null);
+                System.out.println("Registered sync filter " + filterId + ": " + json);
+            } else {
+                System.out.println("Failed to register sync filter: " + response.statusCode() + " - " + response.body());
+            }
+        } catch (Exception e) {
+            System.out.println("Error registering sync filter: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Append the filter parameter to a /sync URL that already has a query string
+     */
+    public String apply(String syncUrl) {
+        String id = filterId;
+        if (id == null) {
+            return syncUrl;
+        }
+        return syncUrl + "&filter=" + URLEncoder.encode(id, StandardCharsets.UTF_8);
+    }
+
+    public String getFilterId() {
+        return filterId;
+    }
+}
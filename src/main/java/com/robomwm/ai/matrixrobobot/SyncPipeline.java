@@ -0,0 +1,277 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Staged /sync loop. The fetch stage starts the next long-poll as soon as next_batch is known,
+ * while batches flow in order through the registered processing stages, each on its own thread
+ * and connected by bounded queues. A slow stage only delays the stages after it; once its queue
+ * fills up the fetch stage blocks, which keeps memory bounded.
+ * <p>
+ * A stage that throws is retried on the same batch a few times. If it still fails, the stage's
+ * loss handler records that the batch was skipped (e.g. a gap in an index) and the batch moves
+ * on, so one bad batch never holds the checkpoint back and replays every later command on restart.
+ */
+public class SyncPipeline {
+
+    /**
+     * A processing step applied to every batch, in sync order
+     */
+    public interface Stage {
+        void process(SyncBatch batch) throws Exception;
+    }
+
+    /** Attempts per batch for stages that are safe to run twice on the same batch */
+    public static final int DEFAULT_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 100;
+
+    private static class Queued {
+        final SyncBatch batch;
+        final long enqueuedAt;
+
+        Queued(SyncBatch batch, long enqueuedAt) {
+            this.batch = batch;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private static class StageRunner {
+        final String name;
+        final Stage stage;
+        final int attempts;
+        final Stage onLoss;
+        final BlockingQueue<Queued> input;
+        final LatencyStats queueWait = new LatencyStats();
+        final LatencyStats processing = new LatencyStats();
+        volatile long retried;
+        volatile long lost;
+        StageRunner next;
+
+        StageRunner(String name, Stage stage, int attempts, Stage onLoss, int queueCapacity) {
+            this.name = name;
+            this.stage = stage;
+            this.attempts = attempts;
+            this.onLoss = onLoss;
+            this.input = new ArrayBlockingQueue<>(queueCapacity);
+        }
+    }
+
+    private final HttpClient httpClient;
+    private final SyncDecoder decoder;
+    private final SyncFilter syncFilter;
+    private final String homeserverUrl;
+    private final String accessToken;
+    private final int queueCapacity;
+    private final List<StageRunner> stages = new ArrayList<>();
+    private final LatencyStats fetchLatency = new LatencyStats();
+    private volatile String since;
+    private volatile String lastLoss;
+
+    public SyncPipeline(HttpClient httpClient, SyncDecoder decoder, SyncFilter syncFilter, String homeserverUrl, String accessToken,
+                        String since, int queueCapacity) {
+        this.httpClient = httpClient;
+        this.decoder = decoder;
+        this.syncFilter = syncFilter;
+        this.homeserverUrl = homeserverUrl;
+        this.accessToken = accessToken;
+        this.since = since;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Append a stage that is tried up to {@link #DEFAULT_ATTEMPTS} times per batch; stages see
+     * each batch in the order they were added
+     */
+    public SyncPipeline addStage(String name, Stage stage) {
+        return addStage(name, stage, DEFAULT_ATTEMPTS, null);
+    }
+
+    /**
+     * Append a stage
+     * @param attempts Tries per batch; 1 for stages whose side effects mustn't repeat
+     * @param onLoss Called with the batch once every attempt failed, to record what was skipped; may be null
+     */
+    public SyncPipeline addStage(String name, Stage stage, int attempts, Stage onLoss) {
+        StageRunner runner = new StageRunner(name, stage, attempts, onLoss, queueCapacity);
+        if (!stages.isEmpty()) {
+            stages.get(stages.size() - 1).next = runner;
+        }
+        stages.add(runner);
+        return this;
+    }
+
+    /**
+     * Start the stage threads and run the fetch stage on the calling thread until interrupted
+     */
+    public void run() {
+        List<Thread> threads = startStages();
+        try {
+            fetchLoop();
+        } finally {
+            threads.forEach(Thread::interrupt);
+        }
+    }
+
+    /**
+     * Start one thread per stage; batches are fed in with {@link #submit}
+     */
+    List<Thread> startStages() {
+        List<Thread> threads = new ArrayList<>();
+        for (StageRunner runner : stages) {
+            threads.add(Thread.ofPlatform().daemon().name("sync-" + runner.name).start(() -> runStage(runner)));
+        }
+        return threads;
+    }
+
+    private void fetchLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                String syncUrl = syncFilter.apply(homeserverUrl + "/_matrix/client/v3/sync?timeout=30000"
+                    + (since != null ? "&since=" + URLEncoder.encode(since, StandardCharsets.UTF_8) : ""));
+
+                HttpRequest syncReq = HttpRequest.newBuilder()
+                        .uri(URI.create(syncUrl))
+                        .header("Authorization", "Bearer " + accessToken)
+                        .GET()
+                        .build();
+
+                long started = System.nanoTime();
+                HttpResponse<InputStream> syncResp = httpClient.send(syncReq, HttpResponse.BodyHandlers.ofInputStream());
+                SyncBatch batch;
+                try (InputStream body = syncResp.body()) {
+                    if (syncResp.statusCode() != 200) {
+                        System.out.println("/sync returned: " + syncResp.statusCode());
+                        Thread.sleep(2000);
+                        continue;
+                    }
+                    batch = decoder.decode(body);
+                }
+                fetchLatency.record(System.nanoTime() - started);
+
+                // Start the next long-poll right away; processing happens on the stage threads
+                if (batch.nextBatch != null) {
+                    since = batch.nextBatch;
+                }
+                submit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                System.out.println("Error during sync loop: " + e.getMessage());
+                e.printStackTrace();
+                try { Thread.sleep(2000); } catch (InterruptedException ex) { Thread.currentThread().interrupt(); break; }
+            }
+        }
+    }
+
+    /**
+     * Hand a batch to the first stage, blocking while its queue is full
+     */
+    void submit(SyncBatch batch) throws InterruptedException {
+        if (!stages.isEmpty()) {
+            stages.get(0).input.put(new Queued(batch, System.nanoTime()));
+        }
+    }
+
+    private void runStage(StageRunner runner) {
+        while (!Thread.currentThread().isInterrupted()) {
+            Queued item;
+            try {
+                item = runner.input.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            long started = System.nanoTime();
+            runner.queueWait.record(started - item.enqueuedAt);
+            try {
+                process(runner, item.batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            long finished = System.nanoTime();
+            runner.processing.record(finished - started);
+
+            if (runner.next != null) {
+                try {
+                    runner.next.input.put(new Queued(item.batch, finished));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the stage on the batch, retrying failures, and report the batch as lost if it never succeeds
+     */
+    private void process(StageRunner runner, SyncBatch batch) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                runner.stage.process(batch);
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                System.out.println("Error in sync stage " + runner.name + " (attempt " + attempt + " of " + runner.attempts + "): " + e.getMessage());
+                e.printStackTrace();
+                if (attempt >= runner.attempts) {
+                    break;
+                }
+                runner.retried++;
+                Thread.sleep(RETRY_DELAY_MS * attempt);
+            }
+        }
+        runner.lost++;
+        lastLoss = "stage " + runner.name + " skipped batch " + batch.nextBatch;
+        System.out.println("Sync " + lastLoss + " after " + runner.attempts + " attempt(s)");
+        if (runner.onLoss != null) {
+            try {
+                runner.onLoss.process(batch);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                System.out.println("Error recording the skipped batch in " + runner.name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public String getSince() {
+        return since;
+    }
+
+    /**
+     * Human-readable per-stage latency and queue depth
+     */
+    public String formatStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("**Sync pipeline**\n\n");
+        String loss = lastLoss;
+        if (loss != null) {
+            sb.append("Last lost batch: ").append(loss).append("\n\n");
+        }
+        sb.append("- `fetch` [").append(fetchLatency.summary()).append("]\n");
+        for (StageRunner runner : stages) {
+            sb.append("- `").append(runner.name).append("` queued=").append(runner.input.size()).append("/").append(queueCapacity)
+                    .append(" wait[").append(runner.queueWait.summary()).append("]")
+                    .append(" process[").append(runner.processing.summary()).append("]");
+            if (runner.retried > 0 || runner.lost > 0) {
+                sb.append(" retried=").append(runner.retried).append(" lost=").append(runner.lost);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
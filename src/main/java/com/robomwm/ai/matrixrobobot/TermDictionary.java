@@ -0,0 +1,86 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assigns each distinct term a dense int ID, in the order terms are first seen. Terms are looked
+ * up straight from a char buffer through a reused per-thread key, so looking up a known term
+ * allocates nothing and takes no lock. IDs are never reused or removed.
+ */
+public class TermDictionary {
+    /** Returned by {@link #lookup} for a term that was never interned */
+    public static final int ABSENT = -1;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * A term as map key. Stored keys own a copy of the chars; the per-thread probe points at the
+     * caller's buffer and is never stored.
+     */
+    private static final class Term {
+        char[] chars;
+        int length;
+        int hash;
+
+        Term set(char[] chars, int length) {
+            long h = TermDictionary.hash(chars, length);
+            this.chars = chars;
+            this.length = length;
+            this.hash = (int) (h ^ (h >>> 32));
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Term other && other.hash == hash
+                    && Arrays.equals(chars, 0, length, other.chars, 0, other.length);
+        }
+    }
+
+    private static final ThreadLocal<Term> PROBE = ThreadLocal.withInitial(Term::new);
+
+    private final ConcurrentHashMap<Term, Integer> ids = new ConcurrentHashMap<>(1 << 12);
+    private final AtomicInteger size = new AtomicInteger();
+
+    public static long hash(char[] buffer, int length) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ buffer[i]) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * @return the ID of the term in buffer[0, length), adding it if new
+     */
+    public int intern(char[] buffer, int length) {
+        int id = lookup(buffer, length);
+        if (id != ABSENT) {
+            return id;
+        }
+        // The mapping function runs once per new term, so IDs stay dense
+        return ids.computeIfAbsent(new Term().set(Arrays.copyOf(buffer, length), length), term -> size.getAndIncrement());
+    }
+
+    /**
+     * @return the ID of the term in buffer[0, length), or {@link #ABSENT} without adding it
+     */
+    public int lookup(char[] buffer, int length) {
+        Term probe = PROBE.get().set(buffer, length);
+        Integer id = ids.get(probe);
+        probe.chars = null;
+        return id == null ? ABSENT : id;
+    }
+
+    public int size() {
+        return size.get();
+    }
+}
@@ -0,0 +1,128 @@
+package com.robomwm.ai.matrixrobobot;
+
+import java.util.Arrays;
+
+/**
+ * Splits text into lower-cased words the way {@code toLowerCase().split("\\W+")} does (runs of
+ * ASCII letters, digits and underscores), drops words of two characters or less, and maps the rest
+ * to IDs in a {@link TermDictionary}. Walks the text once without regex; the only allocation is
+ * the returned array.
+ */
+public class Tokenizer {
+    /** Shortest word kept, as in {@link SemanticSearchEngine#calculateTextSimilarity} */
+    public static final int MIN_TERM_LENGTH = 3;
+
+    private static class Scratch {
+        char[] word = new char[64];
+        int[] ids = new int[256];
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final TermDictionary dictionary;
+
+    public Tokenizer(TermDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Term IDs of the words in text order, repeats included
+     */
+    public int[] terms(CharSequence text) {
+        Scratch scratch = SCRATCH.get();
+        return Arrays.copyOf(scratch.ids, collect(text, scratch, false, true));
+    }
+
+    /**
+     * Term ID and word position pairs in text order: {id0, position0, id1, position1, ...}.
+     * Positions count every word, short ones included, so words dropped for being short still
+     * keep their neighbours apart.
+     */
+    public int[] termPositions(CharSequence text) {
+        Scratch scratch = SCRATCH.get();
+        return Arrays.copyOf(scratch.ids, collect(text, scratch, true, true));
+    }
+
+    /**
+     * Like {@link #termPositions}, but words are only looked up: one not in the dictionary comes
+     * back as {@link TermDictionary#ABSENT} instead of being added. For queries against an index
+     * whose messages were interned, so searching for unseen words doesn't grow the dictionary.
+     */
+    public int[] knownTermPositions(CharSequence text) {
+        Scratch scratch = SCRATCH.get();
+        return Arrays.copyOf(scratch.ids, collect(text, scratch, true, false));
+    }
+
+    /**
+     * Distinct term IDs, sorted ascending
+     */
+    public int[] termSet(CharSequence text) {
+        Scratch scratch = SCRATCH.get();
+        int count = collect(text, scratch, false, true);
+        int[] ids = scratch.ids;
+        Arrays.sort(ids, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || ids[i] != ids[distinct - 1]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, distinct);
+    }
+
+    /**
+     * Jaccard similarity of two sorted term sets by merging them; 0 if either is empty
+     */
+    public static double jaccard(int[] a, int[] b) {
+        if (a.length == 0 || b.length == 0) {
+            return 0.0;
+        }
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                shared++;
+                i++;
+                j++;
+            }
+        }
+        return (double) shared / (a.length + b.length - shared);
+    }
+
+    private int collect(CharSequence text, Scratch scratch, boolean positions, boolean intern) {
+        int count = 0;
+        int length = 0;
+        int position = 0;
+        int n = text.length();
+        for (int i = 0; i <= n; i++) {
+            // Lower-casing first matches toLowerCase(), e.g. the Kelvin sign becomes 'k'
+            char c = i < n ? Character.toLowerCase(text.charAt(i)) : ' ';
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_') {
+                if (length == scratch.word.length) {
+                    scratch.word = Arrays.copyOf(scratch.word, length * 2);
+                }
+                scratch.word[length++] = c;
+                continue;
+            }
+            if (length >= MIN_TERM_LENGTH) {
+                if (count + 2 > scratch.ids.length) {
+                    scratch.ids = Arrays.copyOf(scratch.ids, scratch.ids.length * 2);
+                }
+                scratch.ids[count++] = intern ? dictionary.intern(scratch.word, length) : dictionary.lookup(scratch.word, length);
+                if (positions) {
+                    scratch.ids[count++] = position;
+                }
+            }
+            if (length > 0) {
+                position++;
+            }
+            length = 0;
+        }
+        return count;
+    }
+}
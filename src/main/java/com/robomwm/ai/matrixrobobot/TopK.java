@@ -0,0 +1,124 @@
+package com.robomwm.ai.matrixrobobot;
+
+/**
+ * The K best (ordinal, score) pairs seen so far, in a min-heap of two primitive arrays. Higher
+ * scores win; among equal scores the lower ordinal wins, so results come out in the same order as
+ * a stable sort of the input by descending score.
+ */
+final class TopK {
+    private final int k;
+    private final int[] ordinals;
+    private final double[] scores;
+    private int size;
+
+    TopK(int k) {
+        this.k = k;
+        this.ordinals = new int[k];
+        this.scores = new double[k];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == k;
+    }
+
+    /**
+     * Score of the worst pair kept; only meaningful when not empty
+     */
+    double worstScore() {
+        return scores[0];
+    }
+
+    /**
+     * @return whether the pair is among the best K now
+     */
+    boolean offer(int ordinal, double score) {
+        if (size < k) {
+            ordinals[size] = ordinal;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (k == 0 || !better(ordinal, score, 0)) {
+            return false;
+        }
+        ordinals[0] = ordinal;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Add another worker's pairs to this one
+     */
+    TopK merge(TopK other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ordinals[i], other.scores[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Empty the heap into ordinals best first; scores[i] of the same index goes along with it
+     * @return the number of pairs written
+     */
+    int drain(int[] ordinalsOut, double[] scoresOut) {
+        int n = size;
+        while (size > 0) {
+            size--;
+            ordinalsOut[size] = ordinals[0];
+            scoresOut[size] = scores[0];
+            ordinals[0] = ordinals[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        return n;
+    }
+
+    /**
+     * Is (ordinal, score) better than the pair at heap slot i
+     */
+    private boolean better(int ordinal, double score, int i) {
+        return score > scores[i] || (score == scores[i] && ordinal < ordinals[i]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(ordinals[parent], scores[parent], i)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && better(ordinals[child], scores[child], child + 1)) {
+                child++;
+            }
+            if (!better(ordinals[i], scores[i], child)) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int ordinal = ordinals[a];
+        ordinals[a] = ordinals[b];
+        ordinals[b] = ordinal;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
@@ -0,0 +1,103 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates transaction IDs for /send: a random per-process prefix plus an atomic sequence,
+ * so concurrent sends never share an ID (the homeserver would treat the second as a retry of
+ * the first and drop it). The sequence high-water mark is reserved in blocks and persisted, so
+ * IDs keep increasing across restarts even if a prefix were ever to repeat.
+ */
+public class TxnIdAllocator {
+    private static final int RESERVE_BLOCK = 1024;
+    private static final int PREFIX_LENGTH = 8;
+
+    public static class State {
+        public long highWaterMark;
+    }
+
+    private final ObjectMapper mapper;
+    private final Path persistenceFile;
+    private final String prefix;
+    private final AtomicLong sequence;
+    private volatile long reservedUpTo;
+
+    public TxnIdAllocator(ObjectMapper mapper, Path persistenceFile) {
+        this.mapper = mapper;
+        this.persistenceFile = persistenceFile;
+        this.prefix = randomPrefix();
+        long start = load();
+        this.sequence = new AtomicLong(start);
+        this.reservedUpTo = start;
+        System.out.println("Transaction IDs: prefix " + prefix + ", starting at " + start);
+    }
+
+    /**
+     * Allocate a new transaction ID; callers retrying a send must reuse the ID they got the first time
+     */
+    public String next() {
+        long seq = sequence.getAndIncrement();
+        if (seq >= reservedUpTo) {
+            reserve(seq);
+        }
+        return prefix + "." + Long.toString(seq, 36);
+    }
+
+    private synchronized void reserve(long seq) {
+        if (seq < reservedUpTo) {
+            return;
+        }
+        State state = new State();
+        state.highWaterMark = seq + RESERVE_BLOCK;
+        save(state);
+        reservedUpTo = state.highWaterMark;
+    }
+
+    private static String randomPrefix() {
+        SecureRandom random = new SecureRandom();
+        StringBuilder sb = new StringBuilder(PREFIX_LENGTH);
+        for (int i = 0; i < PREFIX_LENGTH; i++) {
+            sb.append(Character.forDigit(random.nextInt(36), 36));
+        }
+        return sb.toString();
+    }
+
+    private long load() {
+        if (!Files.exists(persistenceFile)) {
+            return 0;
+        }
+        try {
+            return Math.max(0, mapper.readValue(Files.readAllBytes(persistenceFile), State.class).highWaterMark);
+        } catch (IOException e) {
+            System.err.println("Error loading transaction ID high-water mark: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private void save(State state) {
+        Path tmp = persistenceFile.resolveSibling(persistenceFile.getFileName() + ".tmp");
+        try {
+            byte[] content = mapper.writeValueAsBytes(state);
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, persistenceFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error saving transaction ID high-water mark: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.robomwm.ai.matrixrobobot;
+
+/**
+ * Dot products of float vectors. Uses the incubating Vector API when the JVM was started with
+ * {@code --add-modules jdk.incubator.vector}, and a plain loop otherwise; the SIMD class is only
+ * loaded by name, so a JVM without the module never touches it.
+ */
+public final class VectorSimilarity {
+
+    interface Dot {
+        float dot(float[] a, float[] b);
+    }
+
+    private static final Dot DOT = load();
+
+    private VectorSimilarity() {
+    }
+
+    /**
+     * Cosine similarity of two L2-normalized vectors of the same length
+     */
+    public static float cosine(float[] a, float[] b) {
+        return DOT.dot(a, b);
+    }
+
+    /**
+     * Dot product of two int8 vectors of the same length; exact, since 512 products of at most
+     * 127 * 127 each fit easily in an int
+     */
+    public static int dot(byte[] a, byte[] b) {
+        int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 4 <= a.length; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < a.length; i++) {
+            s0 += a[i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * "SIMD (N lanes)" or "scalar", for the startup log
+     */
+    public static String implementation() {
+        return DOT.toString();
+    }
+
+    static Dot scalar() {
+        return new Dot() {
+            @Override
+            public float dot(float[] a, float[] b) {
+                // Four accumulators so the adds don't wait on each other
+                float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                int i = 0;
+                for (; i + 4 <= a.length; i += 4) {
+                    s0 += a[i] * b[i];
+                    s1 += a[i + 1] * b[i + 1];
+                    s2 += a[i + 2] * b[i + 2];
+                    s3 += a[i + 3] * b[i + 3];
+                }
+                for (; i < a.length; i++) {
+                    s0 += a[i] * b[i];
+                }
+                return (s0 + s1) + (s2 + s3);
+            }
+
+            @Override
+            public String toString() {
+                return "scalar";
+            }
+        };
+    }
+
+    private static Dot load() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (Dot) Class.forName("com.robomwm.ai.matrixrobobot.SimdDot").getDeclaredConstructor().newInstance();
+            } catch (Throwable e) {
+                System.out.println("Vector API unavailable, using scalar similarity: " + e);
+            }
+        }
+        return scalar();
+    }
+}
@@ -0,0 +1,142 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackfillCrawlerTest {
+    private static final long MINUTE = 60_000L;
+    private static final long DAY = 24 * 60 * MINUTE;
+    private static final int PAGE_SIZE = 50;
+    /** One message a minute for four days */
+    private static final int EVENTS = (int) (4 * DAY / MINUTE);
+    private static final long START = 1_700_000_000_000L;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void slicesAreStitchedWithoutRepeats() throws Exception {
+        AtomicInteger seeks = new AtomicInteger();
+        BackfillCrawler crawler = new BackfillCrawler(this::page, ts -> {
+            seeks.incrementAndGet();
+            return seek(ts);
+        }, 2);
+        long from = ts(1000);
+        long to = ts(EVENTS - 1);
+        AtomicLong lastCovered = new AtomicLong();
+        AtomicLong lastTotal = new AtomicLong();
+        BackfillCrawler.Result result = crawler.crawl(from, to, (covered, total) -> {
+            assertTrue(covered <= total, covered + " > " + total);
+            lastCovered.set(covered);
+            lastTotal.set(total);
+        });
+
+        // Two workers get four slices each, every one entered with its own seek
+        assertEquals(8, seeks.get());
+        assertEquals(lastTotal.get(), lastCovered.get());
+
+        // The slices' pages overlap at the seams, but every event comes back once, oldest first
+        Set<String> ids = new HashSet<>();
+        long previous = Long.MIN_VALUE;
+        for (EventStore.StoredEvent event : result.events) {
+            assertTrue(ids.add(event.eventId), "repeated " + event.eventId);
+            assertTrue(event.ts >= previous);
+            previous = event.ts;
+        }
+        for (int i = 1000; i < EVENTS; i++) {
+            assertTrue(ids.contains(id(i)), "missing " + id(i));
+        }
+        assertTrue(result.pages > (EVENTS - 1000) / PAGE_SIZE);
+    }
+
+    @Test
+    void lowerEdgeComesFromTheBottomSlice() throws Exception {
+        BackfillCrawler crawler = new BackfillCrawler(this::page, this::seek, 2);
+        long from = ts(1000) + 30_000;
+        BackfillCrawler.Result result = crawler.crawl(from, ts(EVENTS - 1), null);
+
+        // The bottom slice stopped on the first page that went below from
+        assertTrue(result.coveredFrom < from);
+        assertTrue(result.coveredFrom > from - PAGE_SIZE * MINUTE);
+        assertEquals(result.coveredFrom, result.events.get(0).ts);
+        // Its token continues right below what was covered
+        JsonNode next = page(result.lowerToken, HistoryStream.Direction.BACKWARD);
+        assertEquals(result.coveredFrom - MINUTE, next.path("chunk").get(0).path("origin_server_ts").asLong());
+    }
+
+    @Test
+    void historyRunningOutCoversEverything() throws Exception {
+        BackfillCrawler crawler = new BackfillCrawler(this::page, this::seek, 2);
+        BackfillCrawler.Result result = crawler.crawl(START - DAY, ts(EVENTS - 1), null);
+        assertEquals(0, result.coveredFrom);
+        assertNull(result.lowerToken);
+        assertEquals(EVENTS, result.events.size());
+    }
+
+    @Test
+    void failedSliceFailsTheCrawlSoTheCallerFallsBack() {
+        // The pages around the middle of the range are refused
+        BackfillCrawler pageFails = new BackfillCrawler((token, direction) -> {
+            int index = Integer.parseInt(token.substring(1));
+            return index <= EVENTS / 2 && index > EVENTS / 2 - PAGE_SIZE ? null : page(token, direction);
+        }, this::seek, 2);
+        assertThrows(IllegalStateException.class, () -> pageFails.crawl(ts(0), ts(EVENTS - 1), null));
+
+        BackfillCrawler seekFails = new BackfillCrawler(this::page, ts -> {
+            throw new IOException("timestamp_to_event unsupported");
+        }, 2);
+        assertThrows(IOException.class, () -> seekFails.crawl(ts(0), ts(EVENTS - 1), null));
+    }
+
+    private static long ts(int index) {
+        return START + index * MINUTE;
+    }
+
+    private static String id(int index) {
+        return "$" + index;
+    }
+
+    /**
+     * Token of the newest event at or before ts; tokens name the index of the next event to return
+     */
+    private String seek(long ts) {
+        long index = Math.min(EVENTS - 1, Math.floorDiv(ts - START, MINUTE));
+        return index < 0 ? null : "t" + index;
+    }
+
+    /**
+     * A backwards page of up to PAGE_SIZE events, newest first
+     */
+    private JsonNode page(String token, HistoryStream.Direction direction) {
+        int index = Integer.parseInt(token.substring(1));
+        ObjectNode root = mapper.createObjectNode();
+        ArrayNode chunk = root.putArray("chunk");
+        int last = Math.max(0, index - PAGE_SIZE + 1);
+        for (int i = index; i >= last; i--) {
+            ObjectNode event = chunk.addObject();
+            event.put("type", "m.room.message");
+            event.put("event_id", id(i));
+            event.put("sender", "@bob:example.org");
+            event.put("origin_server_ts", ts(i));
+            event.putObject("content").put("body", "message " + i);
+        }
+        if (last > 0) {
+            root.put("end", "t" + (last - 1));
+        }
+        return root;
+    }
+}
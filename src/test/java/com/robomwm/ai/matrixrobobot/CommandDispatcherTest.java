@@ -0,0 +1,23 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandDispatcherTest {
+
+    @Test
+    void backtrackingRegexGivesUpWithinTheBudget() {
+        assertTrue(CommandDispatcher.grepFind(Pattern.compile("deploy.*prod", Pattern.CASE_INSENSITIVE), "Deploy to PROD now"));
+
+        // Exponential on a run of a's that ends in a mismatch
+        Pattern evil = Pattern.compile("(a+)+$");
+        long start = System.nanoTime();
+        assertFalse(CommandDispatcher.grepFind(evil, "a".repeat(40) + "!"));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2), "match wasn't cut off");
+    }
+}
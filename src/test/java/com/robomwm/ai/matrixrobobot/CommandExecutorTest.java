@@ -0,0 +1,61 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandExecutorTest {
+
+    @Test
+    void floodingUserCannotFillTheSharedQueue() throws InterruptedException {
+        // Two running and two waiting per user, eight waiting overall
+        CommandExecutor executor = new CommandExecutor(null, 4, 2, 8, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        Runnable blocked = () -> {
+            try {
+                release.await();
+                ran.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (executor.submit("!grep", "@flood:example.org", null, blocked)) {
+                accepted++;
+            }
+        }
+        assertEquals(4, accepted);
+        assertTrue(executor.submit("!grep", "@other:example.org", null, blocked), "another user is still admitted");
+
+        release.countDown();
+        executor.shutdown(10, TimeUnit.SECONDS);
+        assertEquals(5, ran.get());
+        assertFalse(executor.submit("!grep", "@other:example.org", null, blocked));
+    }
+
+    @Test
+    void forgetsUsersWithNothingQueued() throws InterruptedException {
+        CommandExecutor executor = new CommandExecutor(null, 4, 2, 64, 2);
+        CountDownLatch done = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(executor.submit("!ping", "@user" + i + ":example.org", null, done::countDown));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // Users are dropped after the task returns, just after the latch opens
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!executor.formatStats().contains("users: 0") && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(executor.formatStats().contains("users: 0"), executor.formatStats());
+        executor.shutdown(10, TimeUnit.SECONDS);
+    }
+}
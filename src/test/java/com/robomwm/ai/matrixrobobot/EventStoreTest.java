@@ -0,0 +1,81 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventStoreTest {
+    private static final String ROOM = "!export:example.org";
+
+    @TempDir
+    Path dir;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void mergesSmallSegmentsInTheBackground() throws Exception {
+        EventStore store = new EventStore(mapper, dir, Set.of(ROOM));
+        // Each backfill is older than the one before, so each starts a new segment
+        for (int i = 40; i > 0; i--) {
+            List<EventStore.StoredEvent> events = new ArrayList<>();
+            for (int j = 0; j < 10; j++) {
+                long ts = i * 1000L + j;
+                events.add(new EventStore.StoredEvent(ts, "$" + ts, "@bob:example.org", "message " + ts));
+            }
+            store.addBackfill(ROOM, events, i * 1000L, i * 1000L + 999, "t" + i);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (store.segmentCount(ROOM) > 32 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(store.segmentCount(ROOM) <= 32, "segments: " + store.segmentCount(ROOM));
+
+        List<EventStore.StoredEvent> read = store.read(ROOM, 0, Long.MAX_VALUE);
+        assertEquals(400, read.size());
+        for (int i = 1; i < read.size(); i++) {
+            assertTrue(read.get(i - 1).ts < read.get(i).ts);
+        }
+        // The manifest on disk matches what was swapped in
+        assertEquals(400, new EventStore(mapper, dir, Set.of(ROOM)).read(ROOM, 0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    void failedAppendLeavesAGap() throws Exception {
+        EventStore store = new EventStore(mapper, dir, Set.of(ROOM));
+        long start = System.currentTimeMillis();
+        store.apply(batch(new SyncBatch.TimelineEvent("$1", "@bob:example.org", "first", start)));
+
+        // An older event needs a new segment, whose file can't be created
+        Path roomDir = dir.resolve(URLEncoder.encode(ROOM, StandardCharsets.UTF_8));
+        Files.createDirectories(roomDir.resolve("1.seg").resolve("blocker"));
+        store.apply(batch(new SyncBatch.TimelineEvent("$0", "@bob:example.org", "lost", start - 1)));
+
+        Thread.sleep(20);
+        long later = System.currentTimeMillis();
+        store.apply(batch(new SyncBatch.TimelineEvent("$2", "@bob:example.org", "second", later)));
+
+        List<long[]> gaps = store.gaps(ROOM, start, later);
+        assertEquals(1, gaps.size());
+        assertTrue(gaps.get(0)[0] > start && gaps.get(0)[1] < later, gaps.get(0)[0] + ".." + gaps.get(0)[1]);
+        assertEquals(later, store.liveFrom(ROOM));
+    }
+
+    private static SyncBatch batch(SyncBatch.TimelineEvent event) {
+        SyncBatch batch = new SyncBatch();
+        SyncBatch.JoinedRoom room = new SyncBatch.JoinedRoom(ROOM);
+        room.timeline.add(event);
+        batch.joinedRooms.add(room);
+        return batch;
+    }
+}
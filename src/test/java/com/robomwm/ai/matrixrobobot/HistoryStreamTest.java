@@ -0,0 +1,92 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryStreamTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void failedPageMarksTheHistoryTruncated() throws IOException {
+        JsonNode first = mapper.readTree("{\"end\":\"t2\",\"chunk\":["
+                + "{\"type\":\"m.room.message\",\"event_id\":\"$b\",\"sender\":\"@bob:example.org\",\"origin_server_ts\":2000,\"content\":{\"body\":\"two\"}},"
+                + "{\"type\":\"m.room.message\",\"event_id\":\"$a\",\"sender\":\"@bob:example.org\",\"origin_server_ts\":1000,\"content\":{\"body\":\"one\"}}]}");
+        HistoryStream.Cursor cursor = HistoryStream.pages((token, direction) -> {
+            if (token.equals("t1")) {
+                return first;
+            }
+            throw new IOException("connection reset");
+        }, "t1", HistoryStream.Direction.BACKWARD, 0, Long.MAX_VALUE);
+        List<String> ids = new ArrayList<>();
+        cursor.forEachRemaining(event -> ids.add(event.eventId));
+        assertEquals(List.of("$b", "$a"), ids);
+        assertTrue(cursor.isTruncated());
+
+        HistoryStream.Cursor refused = HistoryStream.pages((token, direction) -> null, "t1", HistoryStream.Direction.BACKWARD, 0, Long.MAX_VALUE);
+        assertFalse(refused.hasNext());
+        assertTrue(refused.isTruncated());
+    }
+
+    @Test
+    void endOfHistoryIsNotTruncation() throws IOException {
+        JsonNode empty = mapper.readTree("{\"chunk\":[]}");
+        HistoryStream.Cursor cursor = HistoryStream.pages((token, direction) -> empty, "t1", HistoryStream.Direction.BACKWARD, 0, Long.MAX_VALUE);
+        assertFalse(cursor.hasNext());
+        assertFalse(cursor.isTruncated());
+    }
+
+    @Test
+    void readsSlicesNewestFirst() {
+        // One message a minute over three days
+        List<EventStore.StoredEvent> stored = new ArrayList<>();
+        for (long ts = 0; ts < 3 * 24 * 3_600_000L; ts += 60_000) {
+            stored.add(new EventStore.StoredEvent(ts, "$" + ts, "@bob:example.org", "m"));
+        }
+        List<long[]> reads = new ArrayList<>();
+        HistoryStream.Cursor cursor = HistoryStream.newestFirst((from, to) -> {
+            reads.add(new long[]{from, to});
+            return stored.stream().filter(e -> e.ts >= from && e.ts <= to).toList();
+        }, 0, stored.get(stored.size() - 1).ts);
+
+        long previous = Long.MAX_VALUE;
+        int count = 0;
+        while (cursor.hasNext()) {
+            EventStore.StoredEvent event = cursor.next();
+            assertTrue(event.ts < previous);
+            previous = event.ts;
+            count++;
+            if (count == 10) {
+                // Stopping early only read the newest slice
+                assertEquals(1, reads.size());
+            }
+        }
+        assertEquals(stored.size(), count);
+        assertFalse(cursor.isTruncated());
+    }
+
+    @Test
+    void failedSliceMarksTheHistoryTruncated() {
+        HistoryStream.Cursor cursor = HistoryStream.newestFirst((from, to) -> {
+            if (to < 10 * 3_600_000L) {
+                throw new IOException("backfill failed");
+            }
+            return List.of(new EventStore.StoredEvent(to, "$" + to, "@bob:example.org", "m"));
+        }, 0, 20 * 3_600_000L);
+        int count = 0;
+        while (cursor.hasNext()) {
+            cursor.next();
+            count++;
+        }
+        assertTrue(count > 0);
+        assertTrue(cursor.isTruncated());
+    }
+}
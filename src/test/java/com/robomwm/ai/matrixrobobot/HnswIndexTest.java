@@ -0,0 +1,126 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HnswIndexTest {
+    private static final String ROOM = "!export:example.org";
+    private static final String[] WORDS = {"deploy", "failed", "database", "migration", "lunch", "coffee", "release",
+            "rollback", "kubernetes", "pager", "weekend", "invoice", "printer", "network", "latency", "cache"};
+
+    @TempDir
+    Path dir;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void findsTheMessageItWasAskedFor() {
+        HnswIndex index = new HnswIndex(HashedEmbedder.DIMENSIONS, 16, 100, 128, 0);
+        for (int i = 0; i < 2000; i++) {
+            index.add("$" + i, i, HashedEmbedder.embed(text(i)));
+        }
+        int found = 0;
+        for (int i = 0; i < 2000; i += 50) {
+            String eventId = "$" + i;
+            if (index.search(HashedEmbedder.embed(text(i)), 5).stream().anyMatch(hit -> hit.eventId.equals(eventId))) {
+                found++;
+            }
+        }
+        // Recall stays high with int8 vectors
+        assertTrue(found >= 38, "found " + found + " of 40");
+
+        List<HnswIndex.Hit> recent = index.search(HashedEmbedder.embed(text(10)), 10, ts -> ts >= 1500);
+        assertFalse(recent.isEmpty());
+        assertTrue(recent.stream().allMatch(hit -> hit.ts >= 1500));
+    }
+
+    @Test
+    void dropsTheOldestPastTheCapInTheBackground() throws InterruptedException {
+        HnswIndex index = new HnswIndex(HashedEmbedder.DIMENSIONS, 16, 100, 128, 400);
+        for (int i = 0; i < 1000; i++) {
+            index.add("$" + i, i, HashedEmbedder.embed(text(i)));
+            // Searchable right away, even while a trim rebuilds the graph
+            String eventId = "$" + i;
+            if (i % 100 == 99) {
+                assertTrue(index.search(HashedEmbedder.embed(text(i)), 3).stream().anyMatch(hit -> hit.eventId.equals(eventId)), eventId);
+            }
+        }
+        index.awaitTrim();
+        assertTrue(index.size() <= 400, "size " + index.size());
+        assertTrue(index.search(HashedEmbedder.embed(text(999)), 3).stream().anyMatch(hit -> hit.eventId.equals("$999")));
+        // Older than what the cap kept, so not indexed again
+        assertFalse(index.add("$old", 0, HashedEmbedder.embed(text(0))));
+    }
+
+    @Test
+    void seedsOnlyWhatFitsUnderTheCap() throws Exception {
+        EventStore store = new EventStore(mapper, dir.resolve("store"), Set.of(ROOM));
+        long start = System.currentTimeMillis() - 100_000;
+        SyncBatch batch = new SyncBatch();
+        SyncBatch.JoinedRoom room = new SyncBatch.JoinedRoom(ROOM);
+        for (int i = 0; i < 100; i++) {
+            room.timeline.add(new SyncBatch.TimelineEvent("$" + i, "@bob:example.org", text(i), start + i * 1000L));
+        }
+        batch.joinedRooms.add(room);
+        store.apply(batch);
+
+        HnswIndex index = new HnswIndex(HashedEmbedder.DIMENSIONS, 16, 100, 128, 40);
+        index.seed(store, ROOM);
+        index.awaitTrim();
+        // The newest 40 are embedded, and coverage starts at the oldest of them
+        assertEquals(40, index.size());
+        assertTrue(index.covers(start + 60_000));
+        assertFalse(index.covers(start + 59_000));
+        assertFalse(index.add("$old", start, HashedEmbedder.embed(text(0))));
+    }
+
+    @Test
+    void coverageFollowsTheStoreAndSurvivesARestart() throws Exception {
+        EventStore store = new EventStore(mapper, dir.resolve("store"), Set.of(ROOM));
+        long start = System.currentTimeMillis() - 100_000;
+        SyncBatch batch = new SyncBatch();
+        SyncBatch.JoinedRoom room = new SyncBatch.JoinedRoom(ROOM);
+        for (int i = 0; i < 100; i++) {
+            room.timeline.add(new SyncBatch.TimelineEvent("$" + i, "@bob:example.org", text(i), start + i * 1000L));
+        }
+        batch.joinedRooms.add(room);
+        store.apply(batch);
+
+        HnswIndex index = new HnswIndex(HashedEmbedder.DIMENSIONS, 16, 100, 128, 0);
+        assertFalse(index.covers(start));
+        index.seed(store, ROOM);
+        assertEquals(100, index.size());
+        assertTrue(index.covers(start));
+
+        Path file = dir.resolve("semantic_index.hnsw");
+        index.save(file);
+        HnswIndex loaded = HnswIndex.load(file, 128, 0);
+        assertEquals(100, loaded.size());
+        // Nothing is claimed until the store confirms the range is still complete
+        assertFalse(loaded.covers(start));
+        loaded.seed(store, ROOM);
+        assertEquals(100, loaded.size());
+        assertTrue(loaded.covers(start));
+
+        HnswIndex.Hit hit = loaded.search(HashedEmbedder.embed(text(42)), 1).get(0);
+        assertEquals("$42", hit.eventId);
+        assertEquals(text(42), store.find(ROOM, hit.ts, hit.eventId).body);
+
+        loaded.gap(start + 50_000);
+        assertFalse(loaded.covers(start));
+        assertTrue(loaded.covers(start + 50_000));
+    }
+
+    private static String text(int i) {
+        return WORDS[i % WORDS.length] + " " + WORDS[(i / WORDS.length) % WORDS.length] + " "
+                + WORDS[(i / (WORDS.length * WORDS.length)) % WORDS.length] + " ticket" + i;
+    }
+}
@@ -0,0 +1,117 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InvertedIndexTest {
+    private static final String[] WORDS = {"deploy", "failed", "database", "migration", "lunch", "coffee", "release",
+            "rollback", "kubernetes", "pager", "weekend", "invoice", "printer", "network", "latency", "cache"};
+
+    @Test
+    void deletedAndReplacedMessagesLeaveTheResults() {
+        InvertedIndex index = new InvertedIndex();
+        index.add(message("$1", "the deploy failed again"));
+        index.add(message("$2", "lunch at the usual place"));
+        index.add(message("$3", "deploy rollback done"));
+        assertEquals(3, index.size());
+        assertEquals(List.of("$1", "$3"), ids(SemanticSearchEngine.search("deploy failed", index, 10)));
+
+        assertTrue(index.delete("$1"));
+        assertFalse(index.delete("$1"));
+        assertEquals(2, index.size());
+        assertEquals(List.of("$3"), ids(SemanticSearchEngine.search("deploy failed", index, 10)));
+
+        // Same event ID again, e.g. an edit: the old text no longer matches
+        index.add(message("$3", "lunch moved to noon"));
+        assertEquals(2, index.size());
+        assertTrue(SemanticSearchEngine.search("deploy failed", index, 10).isEmpty());
+        assertEquals(List.of("$3", "$2"), ids(SemanticSearchEngine.searchRanked("lunch noon", index, 10)));
+
+        // Deleting most of a posting list compacts it without losing the live entries
+        for (int i = 0; i < 20; i++) {
+            index.add(message("$lunch" + i, "lunch order " + i));
+        }
+        for (int i = 0; i < 18; i++) {
+            index.delete("$lunch" + i);
+        }
+        List<String> lunch = ids(SemanticSearchEngine.searchRanked("lunch", index, 10));
+        assertEquals(4, lunch.size());
+        assertTrue(lunch.containsAll(List.of("$2", "$3", "$lunch18", "$lunch19")));
+    }
+
+    @Test
+    void bm25FavoursRareWordsAndShortMessages() {
+        List<SemanticSearchEngine.MessageEmbedding> messages = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            messages.add(message("$common" + i, "coffee break number " + i));
+        }
+        messages.add(message("$rare", "kubernetes pager alert"));
+        messages.add(message("$common", "coffee pager alert"));
+        messages.add(message("$short", "kubernetes upgrade"));
+        messages.add(message("$long", "kubernetes upgrade notes for the platform team covering every node pool and region"));
+        InvertedIndex index = InvertedIndex.of(messages);
+
+        // Same length and one shared word each, but the rare word counts for more
+        List<SemanticSearchEngine.MessageEmbedding> ranked = SemanticSearchEngine.searchRanked("kubernetes coffee alert", index, 60);
+        List<String> order = ids(ranked);
+        assertTrue(order.indexOf("$rare") < order.indexOf("$common"), order.toString());
+        assertTrue(ranked.get(order.indexOf("$rare")).embedding[0] > ranked.get(order.indexOf("$common")).embedding[0]);
+
+        // Same words, but the longer message spreads them thinner
+        List<String> upgrade = ids(SemanticSearchEngine.searchRanked("kubernetes upgrade", index, 10));
+        assertEquals("$short", upgrade.get(0));
+        assertTrue(upgrade.indexOf("$long") > 0, upgrade.toString());
+    }
+
+    @Test
+    void jaccardMatchesTheLinearScan() {
+        Random random = new Random(7);
+        List<SemanticSearchEngine.MessageEmbedding> messages = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 1 + random.nextInt(6); w > 0; w--) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            messages.add(message("$" + i, text.toString()));
+        }
+        for (String query : List.of("deploy failed", "coffee lunch weekend", "network latency cache printer", "unrelated words")) {
+            List<SemanticSearchEngine.MessageEmbedding> expected = linearScan(query, messages, 25);
+            List<SemanticSearchEngine.MessageEmbedding> actual = SemanticSearchEngine.search(query, messages, 25);
+            assertEquals(ids(expected), ids(actual), query);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).embedding[0], actual.get(i).embedding[0], 1e-12);
+            }
+        }
+    }
+
+    /**
+     * Every message scored with calculateTextSimilarity, stable-sorted by descending score
+     */
+    static List<SemanticSearchEngine.MessageEmbedding> linearScan(String query, List<SemanticSearchEngine.MessageEmbedding> messages, int topK) {
+        List<SemanticSearchEngine.MessageEmbedding> scored = new ArrayList<>();
+        for (SemanticSearchEngine.MessageEmbedding message : messages) {
+            double similarity = SemanticSearchEngine.calculateTextSimilarity(query, message.message);
+            if (similarity > SemanticSearchEngine.JACCARD_THRESHOLD) {
+                scored.add(new SemanticSearchEngine.MessageEmbedding(message.eventId, message.message, null, null, new double[]{similarity}));
+            }
+        }
+        scored.sort(Comparator.comparingDouble((SemanticSearchEngine.MessageEmbedding m) -> m.embedding[0]).reversed());
+        return scored.subList(0, Math.min(topK, scored.size()));
+    }
+
+    static SemanticSearchEngine.MessageEmbedding message(String eventId, String text) {
+        return new SemanticSearchEngine.MessageEmbedding(eventId, text, null, "@bob:example.org", null);
+    }
+
+    static List<String> ids(List<SemanticSearchEngine.MessageEmbedding> results) {
+        return results.stream().map(result -> result.eventId).toList();
+    }
+}
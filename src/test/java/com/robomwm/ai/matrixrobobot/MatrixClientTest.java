@@ -0,0 +1,99 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MatrixClientTest {
+    private static final String BOT = "@bot:example.org";
+    private static final String BOB = "@bob:example.org";
+    private static final int ROOMS = 40;
+    private static final String DM = "!room30:example.org";
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger memberLookups = new AtomicInteger();
+    private HttpServer server;
+    private RoomStateCache cache;
+    private MatrixClient client;
+
+    @BeforeEach
+    void startHomeserver() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/_matrix/client/v3/joined_rooms", exchange -> {
+            StringBuilder rooms = new StringBuilder();
+            for (int i = 0; i < ROOMS; i++) {
+                rooms.append(i == 0 ? "" : ",").append("\"!room").append(i).append(":example.org\"");
+            }
+            respond(exchange, "{\"joined_rooms\":[" + rooms + "]}");
+        });
+        server.createContext("/_matrix/client/v3/rooms/", exchange -> {
+            memberLookups.incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), StandardCharsets.UTF_8);
+            String others = path.contains(DM + "/") ? "" : ",\"@carol:example.org\":{}";
+            respond(exchange, "{\"joined\":{\"" + BOT + "\":{},\"" + BOB + "\":{}" + others + "}}");
+        });
+        server.start();
+        cache = new RoomStateCache();
+        client = new MatrixClient(HttpClient.newHttpClient(), new ObjectMapper(), "http://127.0.0.1:" + server.getAddress().getPort(),
+                "token", cache, null, null);
+    }
+
+    @AfterEach
+    void stopHomeserver() {
+        server.stop(0);
+    }
+
+    @Test
+    void looksUpMembersAFewRoomsAtATime() {
+        assertEquals(DM, client.findDirectMessageRoom(BOB));
+        assertTrue(maxInFlight.get() <= 8, "max concurrent lookups " + maxInFlight.get());
+        // Stops at the batch holding the DM instead of asking about all 40 rooms
+        assertEquals(32, memberLookups.get());
+        assertEquals(DM, client.findDirectMessageRoom(BOB));
+        assertEquals(32, memberLookups.get());
+    }
+
+    @Test
+    void checksDirectRoomsFirst() {
+        SyncBatch batch = new SyncBatch();
+        batch.directRooms = Map.of(BOB, List.of(DM, "!gone:example.org"));
+        cache.apply(batch);
+        assertEquals(DM, client.findDirectMessageRoom(BOB));
+        assertEquals(8, memberLookups.get());
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageEncoderTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final MessageEncoder encoder = new MessageEncoder(mapper.getFactory());
+
+    @Test
+    void payloadsAreCompleteJson() throws IOException {
+        JsonNode text = mapper.readTree(encoder.textPayload("hi \"there\""));
+        assertEquals("m.text", text.path("msgtype").asText());
+        assertEquals("hi \"there\"", text.path("body").asText());
+        assertTrue(text.path("m.mentions").isObject());
+
+        JsonNode markdown = mapper.readTree(encoder.markdownPayload("**bold**"));
+        assertEquals("org.matrix.custom.html", markdown.path("format").asText());
+        assertEquals("<p><strong>bold</strong></p>\n", markdown.path("formatted_body").asText());
+
+        JsonNode edit = mapper.readTree(encoder.editPayload("$orig", "fixed"));
+        assertEquals("* fixed", edit.path("body").asText());
+        assertEquals("fixed", edit.path("m.new_content").path("body").asText());
+        assertEquals("$orig", edit.path("m.relates_to").path("event_id").asText());
+        assertEquals("m.replace", edit.path("m.relates_to").path("rel_type").asText());
+    }
+
+    @Test
+    void sanitizeWrapsUserIdsOnce() {
+        assertEquals("ask `@bob:example.org` or `@carol:example.org`", encoder.sanitize("ask @bob:example.org or `@carol:example.org`"));
+        assertEquals("no mentions", encoder.sanitize("no mentions"));
+    }
+}
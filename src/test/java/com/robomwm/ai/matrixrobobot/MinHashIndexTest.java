@@ -0,0 +1,75 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MinHashIndexTest {
+    private static final String[] WORDS = {"deploy", "failed", "database", "migration", "lunch", "coffee", "release",
+            "rollback", "kubernetes", "pager", "weekend", "invoice", "printer", "network", "latency", "cache",
+            "backup", "restore", "ticket", "meeting", "budget", "laptop", "badge", "parking"};
+
+    @Test
+    void bandShapeMeetsTheRecallTarget() {
+        for (double target : new double[]{0.8, 0.95, 0.99}) {
+            MinHashIndex index = SemanticSearchEngine.minHashIndex(List.of(), target);
+            assertTrue(index.bands() * index.rows() <= 128);
+            assertTrue(index.recallAt(SemanticSearchEngine.JACCARD_THRESHOLD) >= target, "recall " + index.recallAt(0.1) + " for " + target);
+            // More similar messages are found more often
+            assertTrue(index.recallAt(0.5) > index.recallAt(SemanticSearchEngine.JACCARD_THRESHOLD));
+        }
+    }
+
+    @Test
+    void resultsMatchTheLinearScanAtTheRecallTarget() {
+        Random random = new Random(11);
+        List<SemanticSearchEngine.MessageEmbedding> messages = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            messages.add(InvertedIndexTest.message("$" + i, words(random, 1 + random.nextInt(8))));
+        }
+        MinHashIndex index = SemanticSearchEngine.minHashIndex(messages, SemanticSearchEngine.DEFAULT_RECALL_TARGET);
+        assertEquals(messages.size(), index.size());
+
+        int expectedTotal = 0;
+        int foundTotal = 0;
+        for (int q = 0; q < 50; q++) {
+            String query = words(random, 2 + random.nextInt(3));
+            List<SemanticSearchEngine.MessageEmbedding> expected = InvertedIndexTest.linearScan(query, messages, messages.size());
+            List<SemanticSearchEngine.MessageEmbedding> found = SemanticSearchEngine.search(query, index, messages.size());
+
+            // Candidates are scored exactly, so whatever is found has the linear scan's score and order
+            Map<String, Integer> rank = new HashMap<>();
+            for (int i = 0; i < expected.size(); i++) {
+                rank.put(expected.get(i).eventId, i);
+            }
+            int previous = -1;
+            for (SemanticSearchEngine.MessageEmbedding result : found) {
+                Integer position = rank.get(result.eventId);
+                assertTrue(position != null, query + ": " + result.eventId + " isn't a linear scan result");
+                assertEquals(expected.get(position).embedding[0], result.embedding[0], 1e-12);
+                assertTrue(position > previous, query + ": out of order");
+                previous = position;
+            }
+            expectedTotal += expected.size();
+            foundTotal += found.size();
+        }
+        // Every result scores at least the threshold, where the target applies, so overall recall is at least the target
+        assertTrue(expectedTotal > 1000);
+        assertTrue(foundTotal >= expectedTotal * SemanticSearchEngine.DEFAULT_RECALL_TARGET, foundTotal + " of " + expectedTotal);
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+    private static final long WINDOW_MS = 1000;
+
+    @TempDir
+    Path dir;
+    private final List<String> puts = new CopyOnWriteArrayList<>();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private HttpServer server;
+    private OutboundQueue queue;
+    private MessageEncoder encoder;
+
+    @BeforeEach
+    void startHomeserver() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/_matrix/client/v3/rooms/", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (failuresLeft.getAndDecrement() > 0) {
+                respond(exchange, 502, "{}");
+                return;
+            }
+            puts.add(exchange.getRequestURI().getRawPath() + " " + body);
+            respond(exchange, 200, "{\"event_id\":\"$e" + puts.size() + "\"}");
+        });
+        server.start();
+        ObjectMapper mapper = new ObjectMapper();
+        encoder = new MessageEncoder(mapper.getFactory());
+        queue = new OutboundQueue(HttpClient.newHttpClient(), mapper, "http://127.0.0.1:" + server.getAddress().getPort(), "token",
+                new TxnIdAllocator(mapper, dir.resolve("txn_ids.json")), encoder, WINDOW_MS);
+    }
+
+    @AfterEach
+    void stopHomeserver() {
+        queue.shutdown(5, TimeUnit.SECONDS);
+        server.stop(0);
+    }
+
+    @Test
+    void repliesSkipTheCoalescingWindow() {
+        long start = System.nanoTime();
+        assertEquals(200, queue.send("!room:example.org", encoder.textPayload("pong")).join().statusCode());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(WINDOW_MS / 2), "plain send waited for the coalescing window");
+    }
+
+    @Test
+    void coalescesOnlyBulkSends() {
+        CompletableFuture<HttpResponse<String>> first = queue.sendCoalescible("!room:example.org", "busy 1");
+        CompletableFuture<HttpResponse<String>> second = queue.sendCoalescible("!room:example.org", "busy 2");
+        first.join();
+        second.join();
+        assertEquals(1, puts.size());
+        assertTrue(puts.get(0).contains("busy 1\\nbusy 2"), puts.get(0));
+    }
+
+    @Test
+    void retriesServerErrorsWithTheSameTransaction() {
+        failuresLeft.set(2);
+        assertEquals(200, queue.send("!room:example.org", encoder.textPayload("hello")).join().statusCode());
+        assertEquals(1, puts.size());
+        assertTrue(queue.formatStats().contains("server_errors=2"), queue.formatStats());
+    }
+
+    @Test
+    void dropsDrainedRoomQueues() throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            queue.send("!room" + i + ":example.org", encoder.textPayload("hi")).join();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!queue.formatStats().contains("rooms: 0") && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(queue.formatStats().contains("rooms: 0"), queue.formatStats());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
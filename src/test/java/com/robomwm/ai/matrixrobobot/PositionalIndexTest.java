@@ -0,0 +1,149 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PositionalIndexTest {
+    private static final String ROOM = "!export:example.org";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void advanceUsesSkipsAndLandsOnTheNextPosting() {
+        // Every third ordinal, so plenty of skip pointers and targets between postings
+        PositionalIndex.Postings postings = new PositionalIndex.Postings();
+        for (int doc = 0; doc < 3000; doc += 3) {
+            postings.add(doc, new long[]{doc % 5, doc % 5 + 2}, 0, 2);
+        }
+        int[][] positions = new int[1][0];
+        for (int target : new int[]{0, 1, 64, 190, 191, 192, 193, 700, 2000, 2997}) {
+            PositionalIndex.Cursor cursor = new PositionalIndex.Cursor(postings);
+            int expected = (target + 2) / 3 * 3;
+            assertEquals(expected, cursor.advance(target), "target " + target);
+            assertEquals(2, cursor.positions(positions, 0));
+            assertEquals(expected % 5, positions[0][0]);
+            assertEquals(expected % 5 + 2, positions[0][1]);
+            // Walking on from a skipped-to posting still decodes in step
+            if (expected + 3 < 3000) {
+                assertEquals(expected + 3, cursor.next());
+            }
+        }
+
+        // Several advances on one cursor, then past the end
+        PositionalIndex.Cursor cursor = new PositionalIndex.Cursor(postings);
+        assertEquals(300, cursor.advance(299));
+        assertEquals(300, cursor.advance(250));
+        assertEquals(1500, cursor.advance(1499));
+        assertEquals(Integer.MAX_VALUE, cursor.advance(3000));
+    }
+
+    @Test
+    void phraseNeedsTheWordsInOrder() {
+        PositionalIndex index = new PositionalIndex(0);
+        index.add("$1", 1, "we deploy to prod today");
+        index.add("$2", 2, "deploy on prod");
+        index.add("$3", 3, "deploy prod");
+        index.add("$4", 4, "prod to deploy");
+        index.add("$5", 5, "deploy to staging, then prod");
+        // The short word isn't indexed, so it stands for any one word
+        assertEquals(List.of("$2", "$1"), ids(index, "\"deploy to prod\""));
+        // Unquoted, the words may be anywhere
+        assertEquals(List.of("$5", "$4", "$3", "$2", "$1"), ids(index, "deploy prod"));
+        assertTrue(PositionalIndex.Query.parse("\"deploy to prod\"").matches("Deploy to PROD!"));
+        assertFalse(PositionalIndex.Query.parse("\"deploy to prod\"").matches("deploy prod"));
+    }
+
+    @Test
+    void nearMatchesEitherOrderWithinTheDistance() {
+        PositionalIndex index = new PositionalIndex(0);
+        index.add("$after", 1, "deploy really badly failed");
+        index.add("$before", 2, "failed the deploy");
+        index.add("$far", 3, "deploy one two three four failed");
+        index.add("$phrase", 4, "the database migration was rolled back after it failed");
+        assertEquals(List.of("$before", "$after"), ids(index, "deploy NEAR/3 failed"));
+        assertEquals(List.of("$before", "$after"), ids(index, "failed NEAR/3 deploy"));
+        assertEquals(List.of("$far", "$before", "$after"), ids(index, "deploy NEAR/5 failed"));
+        // Distance counts from the end of a phrase
+        assertEquals(List.of("$phrase"), ids(index, "\"database migration\" NEAR/6 failed"));
+        assertEquals(List.of(), ids(index, "\"database migration\" NEAR/5 failed"));
+    }
+
+    @Test
+    void absentTermsMatchNothing() {
+        PositionalIndex index = new PositionalIndex(4);
+        index.add("$1", 1, "deploy failed");
+        index.add("$2", 2, "lunch order");
+        // Only in a later segment than "deploy"
+        index.add("$3", 3, "coffee order");
+        index.add("$4", 4, "deploy coffee");
+        assertEquals(List.of(), ids(index, "deploy qwxzptlkv"));
+        assertEquals(List.of(), ids(index, "\"deploy lunch\""));
+        assertEquals(List.of("$4"), ids(index, "deploy coffee"));
+        assertEquals(List.of("$3", "$2"), ids(index, "order"));
+    }
+
+    @Test
+    void windowFiltersByTimestamp() {
+        PositionalIndex index = new PositionalIndex(0);
+        for (int i = 0; i < 200; i++) {
+            index.add("$" + i, i * 1000L, "deploy number " + i);
+        }
+        PositionalIndex.Matches matches = index.search(PositionalIndex.Query.parseKnown("deploy"), 50_000, 59_000, 3);
+        assertEquals(10, matches.total);
+        assertEquals(List.of("$59", "$58", "$57"), matches.newest.stream().map(hit -> hit.eventId).toList());
+        assertEquals(59_000, matches.newest.get(0).ts);
+        assertEquals(0, index.search(PositionalIndex.Query.parseKnown("deploy"), 300_000, 400_000, 3).total);
+    }
+
+    @Test
+    void capDropsTheOldestSegmentAndSeedsOnlyWhatFits() throws Exception {
+        EventStore store = new EventStore(new ObjectMapper(), dir.resolve("store"), Set.of(ROOM));
+        long start = System.currentTimeMillis() - 100_000;
+        SyncBatch batch = new SyncBatch();
+        SyncBatch.JoinedRoom room = new SyncBatch.JoinedRoom(ROOM);
+        for (int i = 0; i < 100; i++) {
+            room.timeline.add(new SyncBatch.TimelineEvent("$" + i, "@bob:example.org", "deploy ticket" + i, start + i * 1000L));
+        }
+        batch.joinedRooms.add(room);
+        store.apply(batch);
+
+        PositionalIndex index = new PositionalIndex(40);
+        // Arrived from sync before seeding finished
+        index.add("$99", start + 99_000, "deploy ticket99");
+        assertFalse(index.covers(start));
+        index.seed(store, ROOM);
+        assertEquals(40, index.size());
+        assertTrue(index.covers(start + 60_000));
+        assertFalse(index.covers(start + 59_000));
+        PositionalIndex.Matches all = index.search(PositionalIndex.Query.parseKnown("deploy"), 0, Long.MAX_VALUE, 100);
+        assertEquals(40, all.total);
+        assertEquals("$99", all.newest.get(0).eventId);
+        // Only IDs are kept; the body comes from the store
+        PositionalIndex.Hit hit = index.search(PositionalIndex.Query.parseKnown("ticket72"), 0, Long.MAX_VALUE, 1).newest.get(0);
+        assertEquals("deploy ticket72", store.find(ROOM, hit.ts, hit.eventId).body);
+
+        // Past the cap, the oldest segments go and coverage moves up past them
+        for (int i = 100; i < 111; i++) {
+            assertTrue(index.add("$" + i, start + i * 1000L, "deploy ticket" + i));
+        }
+        assertTrue(index.size() <= 40, "size " + index.size());
+        assertFalse(index.covers(start + 79_000));
+        assertTrue(index.covers(start + 80_000));
+        assertEquals(0, index.search(PositionalIndex.Query.parseKnown("ticket75"), 0, Long.MAX_VALUE, 1).total);
+        assertEquals(1, index.search(PositionalIndex.Query.parseKnown("ticket110"), 0, Long.MAX_VALUE, 1).total);
+    }
+
+    private static List<String> ids(PositionalIndex index, String query) {
+        return index.search(PositionalIndex.Query.parseKnown(query), 0, Long.MAX_VALUE, 50).newest.stream().map(hit -> hit.eventId).toList();
+    }
+}
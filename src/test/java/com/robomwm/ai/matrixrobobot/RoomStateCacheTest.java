@@ -0,0 +1,81 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RoomStateCacheTest {
+    private static final String BOT = "@bot:example.org";
+    private static final String BOB = "@bob:example.org";
+
+    @Test
+    void lazyLoadedMembersAreNotADmAnswer() {
+        RoomStateCache cache = new RoomStateCache();
+        // Sync only mentions Bob and the bot; a third member who never spoke is not sent
+        SyncBatch batch = new SyncBatch();
+        batch.directRooms = Map.of(BOB, List.of("!group:example.org"));
+        SyncBatch.JoinedRoom room = new SyncBatch.JoinedRoom("!group:example.org");
+        room.stateEvents.add(new SyncBatch.StateEvent("m.room.member", BOT, "join", null));
+        room.stateEvents.add(new SyncBatch.StateEvent("m.room.member", BOB, "join", null));
+        batch.joinedRooms.add(room);
+        cache.apply(batch);
+        assertNull(cache.findDirectRoom(BOB));
+
+        cache.putMembers("!group:example.org", Set.of(BOT, BOB, "@carol:example.org"));
+        assertNull(cache.findDirectRoom(BOB));
+        cache.putMembers("!dm:example.org", Set.of(BOT, BOB));
+        assertEquals("!dm:example.org", cache.findDirectRoom(BOB));
+    }
+
+    @Test
+    void limitedTimelineDropsTheFullMemberList() {
+        RoomStateCache cache = new RoomStateCache();
+        cache.putMembers("!dm:example.org", Set.of(BOT, BOB));
+
+        // Carol's join in the timeline keeps the list exact
+        SyncBatch join = new SyncBatch();
+        SyncBatch.JoinedRoom joined = new SyncBatch.JoinedRoom("!dm:example.org");
+        joined.stateEvents.add(new SyncBatch.StateEvent("m.room.member", "@carol:example.org", "join", null));
+        join.joinedRooms.add(joined);
+        cache.apply(join);
+        assertNull(cache.findDirectRoom(BOB));
+
+        SyncBatch leave = new SyncBatch();
+        SyncBatch.JoinedRoom left = new SyncBatch.JoinedRoom("!dm:example.org");
+        left.stateEvents.add(new SyncBatch.StateEvent("m.room.member", "@carol:example.org", "leave", null));
+        leave.joinedRooms.add(left);
+        cache.apply(leave);
+        assertEquals("!dm:example.org", cache.findDirectRoom(BOB));
+
+        // After a gap someone may have joined without being mentioned
+        SyncBatch gap = new SyncBatch();
+        SyncBatch.JoinedRoom limited = new SyncBatch.JoinedRoom("!dm:example.org");
+        limited.limited = true;
+        gap.joinedRooms.add(limited);
+        cache.apply(gap);
+        assertNull(cache.findDirectRoom(BOB));
+    }
+
+    @Test
+    void heroesAreOnlyAHint() {
+        RoomStateCache cache = new RoomStateCache();
+        cache.putMemberCount("!old:example.org", 2, 1);
+        cache.putMembers("!old:example.org", Set.of(BOT));
+        // The invite count from before the fresh member list is dropped with it
+        assertEquals(1, cache.getMemberCount("!old:example.org"));
+
+        // Bob left; with nobody else joined the summary still names him as a hero
+        SyncBatch batch = new SyncBatch();
+        SyncBatch.JoinedRoom room = new SyncBatch.JoinedRoom("!old:example.org");
+        room.heroes = List.of(BOB);
+        batch.joinedRooms.add(room);
+        cache.apply(batch);
+        assertNull(cache.findDirectRoom(BOB));
+        assertEquals(List.of("!old:example.org"), cache.getHeroRooms(BOB));
+    }
+}
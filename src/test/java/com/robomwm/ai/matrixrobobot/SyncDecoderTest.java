@@ -0,0 +1,214 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the streaming decoder against a JsonNode tree walk of the same /sync body, the way the
+ * sync loop read responses before {@link SyncDecoder}.
+ */
+class SyncDecoderTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final SyncDecoder decoder = new SyncDecoder(mapper.getFactory());
+
+    @Test
+    void matchesTreeDecodingOfFixture() throws IOException {
+        byte[] body = fixture();
+        String streamed = describe(decoder.decode(new ByteArrayInputStream(body)));
+        String tree = describe(decodeTree(mapper.readTree(body)));
+        assertEquals(tree, streamed);
+    }
+
+    @Test
+    void keepsWhatTheBotUses() throws IOException {
+        SyncBatch batch = decoder.decode(new ByteArrayInputStream(fixture()));
+        assertEquals("s72595_4483_1934", batch.nextBatch);
+        assertEquals(List.of("!invited:example.org"), batch.invitedRoomIds);
+        assertEquals(List.of("!left:example.org"), batch.leftRoomIds);
+        assertEquals(List.of("!dm2:example.org", "!dm3:example.org"), batch.directRooms.get("@carol:example.org"));
+
+        SyncBatch.JoinedRoom export = batch.joinedRooms.get(0);
+        assertEquals("!export:example.org", export.roomId);
+        assertTrue(export.limited);
+        assertEquals("t34-23535_0_0", export.prevBatch);
+        // The image has no body, the reaction and redactions are not messages
+        assertEquals(List.of("$m1", "$m2", "$m3", "$m5"), export.timeline.stream().map(ev -> ev.eventId).toList());
+        assertEquals("unicode éè 😀 and \"quotes\"", export.timeline.get(3).body);
+        // Edit target first, then both redaction targets; the reply is not an edit
+        assertEquals(List.of("$m1", "$m3", "$m2"), export.modifiedEventIds);
+        assertEquals(2, export.receipts.size());
+        assertEquals(3, export.stateEvents.size());
+        assertEquals(3, export.joinedMemberCount);
+        assertEquals(3, batch.joinedRooms.size());
+    }
+
+    @Test
+    void allocatesLessThanTreeDecoding() throws IOException {
+        byte[] body = largeBody(500);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < 20; i++) {
+            decoder.decode(new ByteArrayInputStream(body));
+            decodeTree(mapper.readTree(body));
+        }
+        int rounds = 20;
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < rounds; i++) {
+            decoder.decode(new ByteArrayInputStream(body));
+        }
+        long streamedBytes = threads.getCurrentThreadAllocatedBytes() - before;
+        before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < rounds; i++) {
+            decodeTree(mapper.readTree(body));
+        }
+        long treeBytes = threads.getCurrentThreadAllocatedBytes() - before;
+        assertTrue(streamedBytes < treeBytes, "streaming allocated " + streamedBytes + " bytes, tree " + treeBytes);
+    }
+
+    private byte[] fixture() throws IOException {
+        try (InputStream in = getClass().getResourceAsStream("/sync_fixture.json")) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * The fixture with its export room copied under many room IDs
+     */
+    private byte[] largeBody(int rooms) throws IOException {
+        ObjectNode root = (ObjectNode) mapper.readTree(fixture());
+        ObjectNode join = (ObjectNode) root.path("rooms").path("join");
+        JsonNode export = join.path("!export:example.org");
+        for (int i = 0; i < rooms; i++) {
+            join.set("!copy" + i + ":example.org", export.deepCopy());
+        }
+        return mapper.writeValueAsBytes(root);
+    }
+
+    /**
+     * Reference decoding through a JsonNode tree
+     */
+    private static SyncBatch decodeTree(JsonNode root) {
+        SyncBatch batch = new SyncBatch();
+        batch.nextBatch = root.path("next_batch").asText(null);
+        root.path("rooms").path("invite").fieldNames().forEachRemaining(batch.invitedRoomIds::add);
+        root.path("rooms").path("leave").fieldNames().forEachRemaining(batch.leftRoomIds::add);
+        for (JsonNode event : root.path("account_data").path("events")) {
+            if ("m.direct".equals(event.path("type").asText(null))) {
+                Map<String, List<String>> direct = new HashMap<>();
+                event.path("content").fields().forEachRemaining(entry -> direct.put(entry.getKey(), strings(entry.getValue())));
+                batch.directRooms = direct;
+            }
+        }
+        Iterator<Map.Entry<String, JsonNode>> joined = root.path("rooms").path("join").fields();
+        while (joined.hasNext()) {
+            Map.Entry<String, JsonNode> entry = joined.next();
+            SyncBatch.JoinedRoom room = new SyncBatch.JoinedRoom(entry.getKey());
+            // Sections in document order, as the streaming decoder sees them
+            Iterator<Map.Entry<String, JsonNode>> sections = entry.getValue().fields();
+            while (sections.hasNext()) {
+                Map.Entry<String, JsonNode> section = sections.next();
+                JsonNode node = section.getValue();
+                switch (section.getKey()) {
+                    case "timeline":
+                        room.prevBatch = node.path("prev_batch").asText(null);
+                        room.limited = node.path("limited").asBoolean(false);
+                        for (JsonNode event : node.path("events")) {
+                            roomEvent(event, room, true);
+                        }
+                        break;
+                    case "state":
+                        for (JsonNode event : node.path("events")) {
+                            roomEvent(event, room, false);
+                        }
+                        break;
+                    case "ephemeral":
+                        for (JsonNode event : node.path("events")) {
+                            if ("m.receipt".equals(event.path("type").asText(null))) {
+                                event.path("content").fields().forEachRemaining(receipt -> receipt.getValue().path("m.read").fields().forEachRemaining(read ->
+                                        room.receipts.add(new SyncBatch.Receipt(receipt.getKey(), read.getKey(), read.getValue().path("ts").asLong(0)))));
+                            }
+                        }
+                        break;
+                    case "summary":
+                        room.joinedMemberCount = node.path("m.joined_member_count").asInt(-1);
+                        room.invitedMemberCount = node.path("m.invited_member_count").asInt(-1);
+                        room.heroes = node.has("m.heroes") ? strings(node.path("m.heroes")) : null;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            batch.joinedRooms.add(room);
+        }
+        return batch;
+    }
+
+    private static void roomEvent(JsonNode event, SyncBatch.JoinedRoom room, boolean timeline) {
+        String type = event.path("type").asText(null);
+        JsonNode content = event.path("content");
+        String redacts = content.path("redacts").isTextual() ? content.path("redacts").asText() : event.path("redacts").asText(null);
+        String body = content.path("body").isTextual() ? content.path("body").asText() : null;
+        String stateKey = event.path("state_key").asText(null);
+        if (timeline && "m.room.redaction".equals(type) && redacts != null) {
+            room.modifiedEventIds.add(redacts);
+        } else if (timeline && "m.room.message".equals(type) && body != null) {
+            JsonNode relation = content.path("m.relates_to");
+            if ("m.replace".equals(relation.path("rel_type").asText(null)) && relation.path("event_id").isTextual()) {
+                room.modifiedEventIds.add(relation.path("event_id").asText());
+            }
+            room.timeline.add(new SyncBatch.TimelineEvent(event.path("event_id").asText(null), event.path("sender").asText(null), body,
+                    event.path("origin_server_ts").asLong(0)));
+        } else if (stateKey != null && ("m.room.member".equals(type) || "m.room.encryption".equals(type))) {
+            room.stateEvents.add(new SyncBatch.StateEvent(type, stateKey, content.path("membership").asText(null), content.path("algorithm").asText(null)));
+        }
+    }
+
+    private static List<String> strings(JsonNode array) {
+        List<String> values = new ArrayList<>();
+        for (JsonNode value : array) {
+            values.add(value.asText());
+        }
+        return values;
+    }
+
+    /**
+     * Everything in a batch as text, so a mismatch shows where the two decodings differ
+     */
+    private static String describe(SyncBatch batch) {
+        StringBuilder out = new StringBuilder();
+        out.append("next_batch=").append(batch.nextBatch).append('\n')
+                .append("invited=").append(batch.invitedRoomIds).append('\n')
+                .append("left=").append(batch.leftRoomIds).append('\n')
+                .append("direct=").append(batch.directRooms == null ? null : new java.util.TreeMap<>(batch.directRooms)).append('\n');
+        for (SyncBatch.JoinedRoom room : batch.joinedRooms) {
+            out.append("room ").append(room.roomId).append(" prev=").append(room.prevBatch).append(" limited=").append(room.limited)
+                    .append(" joined=").append(room.joinedMemberCount).append(" invited=").append(room.invitedMemberCount)
+                    .append(" heroes=").append(room.heroes).append('\n');
+            for (SyncBatch.TimelineEvent ev : room.timeline) {
+                out.append("  message ").append(ev.eventId).append(' ').append(ev.sender).append(' ').append(ev.originServerTs).append(' ').append(ev.body).append('\n');
+            }
+            out.append("  modified ").append(room.modifiedEventIds).append('\n');
+            for (SyncBatch.Receipt receipt : room.receipts) {
+                out.append("  receipt ").append(receipt.eventId).append(' ').append(receipt.userId).append(' ').append(receipt.ts).append('\n');
+            }
+            for (SyncBatch.StateEvent state : room.stateEvents) {
+                out.append("  state ").append(state.type).append(' ').append(state.stateKey).append(' ').append(state.membership).append(' ').append(state.algorithm).append('\n');
+            }
+        }
+        return out.toString();
+    }
+}
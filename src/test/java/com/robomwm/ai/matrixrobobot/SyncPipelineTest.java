@@ -0,0 +1,92 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SyncPipelineTest {
+
+    @Test
+    void slowHandlerOnlyDelaysLaterStages() throws InterruptedException {
+        SyncPipeline pipeline = new SyncPipeline(null, null, null, null, null, null, 8);
+        CountDownLatch dispatched = new CountDownLatch(5);
+        List<String> checkpointed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(5);
+        pipeline.addStage("dispatch", batch -> dispatched.countDown());
+        pipeline.addStage("slow", batch -> Thread.sleep(200));
+        pipeline.addStage("checkpoint", batch -> {
+            checkpointed.add(batch.nextBatch);
+            done.countDown();
+        });
+        List<Thread> threads = pipeline.startStages();
+        try {
+            long start = System.nanoTime();
+            for (int i = 1; i <= 5; i++) {
+                pipeline.submit(batch("s" + i));
+            }
+            // Handing batches over never waits for the slow stage, so the fetch loop can go straight back to /sync
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200), "submit blocked on the slow stage");
+            assertTrue(dispatched.await(150, TimeUnit.MILLISECONDS), "earlier stage waited for the slow one");
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(List.of("s1", "s2", "s3", "s4", "s5"), checkpointed);
+        } finally {
+            threads.forEach(Thread::interrupt);
+        }
+    }
+
+    @Test
+    void failedStageIsRetriedThenSkipped() throws InterruptedException {
+        SyncPipeline pipeline = new SyncPipeline(null, null, null, null, null, null, 8);
+        AtomicInteger flakyCalls = new AtomicInteger();
+        List<String> stored = new CopyOnWriteArrayList<>();
+        List<String> lost = new CopyOnWriteArrayList<>();
+        List<String> checkpointed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+        pipeline.addStage("flaky", batch -> {
+            // Fails once on s1, then succeeds
+            if (batch.nextBatch.equals("s1") && flakyCalls.getAndIncrement() == 0) {
+                throw new IllegalStateException("timeout");
+            }
+        });
+        pipeline.addStage("store", batch -> {
+            if (batch.nextBatch.equals("s2")) {
+                throw new IllegalStateException("disk full");
+            }
+            stored.add(batch.nextBatch);
+        }, 2, batch -> lost.add(batch.nextBatch));
+        pipeline.addStage("checkpoint", batch -> {
+            checkpointed.add(batch.nextBatch);
+            done.countDown();
+        });
+        List<Thread> threads = pipeline.startStages();
+        try {
+            for (int i = 1; i <= 4; i++) {
+                pipeline.submit(batch("s" + i));
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(List.of("s1", "s3", "s4"), stored);
+            assertEquals(List.of("s2"), lost);
+            // The loss is recorded, so the checkpoint moves on instead of replaying s3 and s4 on restart
+            assertEquals(List.of("s1", "s2", "s3", "s4"), checkpointed);
+            String stats = pipeline.formatStats();
+            assertTrue(stats.contains("Last lost batch: stage store skipped batch s2"), stats);
+            assertTrue(stats.contains("retried=1 lost=0"), stats);
+            assertTrue(stats.contains("retried=1 lost=1"), stats);
+        } finally {
+            threads.forEach(Thread::interrupt);
+        }
+    }
+
+    private static SyncBatch batch(String nextBatch) {
+        SyncBatch batch = new SyncBatch();
+        batch.nextBatch = nextBatch;
+        return batch;
+    }
+}
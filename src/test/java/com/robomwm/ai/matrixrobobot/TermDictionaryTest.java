@@ -0,0 +1,76 @@
+package com.robomwm.ai.matrixrobobot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TermDictionaryTest {
+    private static final int THREADS = 8;
+    private static final int TERMS = 20_000;
+
+    @Test
+    void concurrentInternsGiveEachTermOneDenseId() throws Exception {
+        TermDictionary dictionary = new TermDictionary();
+        int[][] seen = new int[THREADS][TERMS];
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                workers.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < TERMS; i++) {
+                        char[] word = ("term" + i).toCharArray();
+                        seen[thread][i] = dictionary.intern(word, word.length);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(TERMS, dictionary.size());
+        for (int t = 1; t < THREADS; t++) {
+            assertArrayEquals(seen[0], seen[t]);
+        }
+        BitSet ids = new BitSet();
+        for (int id : seen[0]) {
+            ids.set(id);
+        }
+        assertEquals(TERMS, ids.cardinality());
+        assertEquals(TERMS, ids.nextClearBit(0));
+    }
+
+    @Test
+    void lookupsLeaveTheDictionaryAlone() {
+        Tokenizer tokenizer = new Tokenizer(new TermDictionary());
+        int[] known = tokenizer.terms("deploy failed");
+        int[] pairs = tokenizer.knownTermPositions("deploy zyzzyva failed");
+        assertArrayEquals(new int[]{known[0], 0, TermDictionary.ABSENT, 1, known[1], 2}, pairs);
+
+        int before = SemanticSearchEngine.TERMS.size();
+        PositionalIndex index = new PositionalIndex(0);
+        index.add("$1", 1, "the deploy failed again");
+        int indexed = SemanticSearchEngine.TERMS.size();
+        assertTrue(indexed > before);
+        PositionalIndex.Query query = PositionalIndex.Query.parseKnown("deploy qwxzptlk");
+        assertEquals(indexed, SemanticSearchEngine.TERMS.size());
+        assertEquals(0, index.search(query, 0, Long.MAX_VALUE, 10).total);
+        assertEquals(1, index.search(PositionalIndex.Query.parseKnown("\"deploy failed\""), 0, Long.MAX_VALUE, 10).total);
+    }
+}
@@ -0,0 +1,184 @@
+package com.robomwm.ai.matrixrobobot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TxnIdAllocatorTest {
+    private static final int THREADS = 16;
+    private static final int PER_THREAD = 20_000;
+
+    @TempDir
+    Path dir;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void concurrentSendersNeverShareAnId() throws Exception {
+        TxnIdAllocator allocator = new TxnIdAllocator(mapper, dir.resolve("txn_ids.json"));
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                workers.add(pool.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < PER_THREAD; i++) {
+                        ids.add(allocator.next());
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(THREADS * PER_THREAD, ids.size());
+    }
+
+    @Test
+    void restartContinuesAboveEveryIssuedSequence() throws Exception {
+        Path file = dir.resolve("txn_ids.json");
+        TxnIdAllocator first = new TxnIdAllocator(mapper, file);
+        AtomicLong highest = new AtomicLong(-1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                workers.add(pool.submit(() -> {
+                    for (int i = 0; i < 3_000; i++) {
+                        highest.accumulateAndGet(sequence(first.next()), Math::max);
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // Simulates a crash: nothing is flushed beyond what next() already persisted
+        TxnIdAllocator second = new TxnIdAllocator(mapper, file);
+        String next = second.next();
+        assertTrue(sequence(next) > highest.get(), next + " after " + highest.get());
+    }
+
+    @Test
+    void concurrentSendsArriveExactlyOnce() throws Exception {
+        Map<String, String> eventIds = new ConcurrentHashMap<>();
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/_matrix/client/v3/rooms/", exchange -> {
+            String path = exchange.getRequestURI().getRawPath();
+            String txnId = URLDecoder.decode(path.substring(path.lastIndexOf('/') + 1), StandardCharsets.UTF_8);
+            String body = mapper.readTree(exchange.getRequestBody().readAllBytes()).path("body").asText();
+            int attempt = attempts.computeIfAbsent(txnId, k -> new AtomicInteger()).incrementAndGet();
+            int fault = Math.floorMod(txnId.hashCode(), 40);
+            if (attempt == 1 && fault == 0) {
+                respond(exchange, 500, "{}");
+                return;
+            }
+            if (attempt == 1 && fault == 1) {
+                respond(exchange, 429, "{\"errcode\":\"M_LIMIT_EXCEEDED\",\"retry_after_ms\":5}");
+                return;
+            }
+            // Like a homeserver, a transaction ID it has seen gets the same event back instead of a second post
+            String eventId = eventIds.computeIfAbsent(txnId, k -> {
+                delivered.add(body);
+                return "$" + txnId;
+            });
+            if (attempt == 1 && fault == 2) {
+                // Stored, but the response is lost on the way back
+                respond(exchange, 502, "{}");
+                return;
+            }
+            respond(exchange, 200, "{\"event_id\":\"" + eventId + "\"}");
+        });
+        server.start();
+        MessageEncoder encoder = new MessageEncoder(mapper.getFactory());
+        String url = "http://127.0.0.1:" + server.getAddress().getPort();
+        OutboundQueue queue = new OutboundQueue(HttpClient.newHttpClient(), mapper, url, "token",
+                new TxnIdAllocator(mapper, dir.resolve("txn_ids.json")), encoder, 150);
+        MatrixClient client = new MatrixClient(HttpClient.newHttpClient(), mapper, url, "token", new RoomStateCache(), queue, encoder);
+        int senders = 16;
+        int perSender = 25;
+        Set<String> expected = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(senders);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < senders; t++) {
+                int sender = t;
+                workers.add(pool.submit(() -> {
+                    for (int i = 0; i < perSender; i++) {
+                        String roomId = "!room" + (sender * perSender + i) % 32 + ":example.org";
+                        String message = "sender " + sender + " message " + i;
+                        expected.add(message);
+                        if (i % 2 == 0) {
+                            client.sendText(roomId, message);
+                        } else {
+                            client.sendMarkdown(roomId, message);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            pool.shutdown();
+            queue.shutdown(5, TimeUnit.SECONDS);
+            server.stop(0);
+        }
+        assertEquals(senders * perSender, delivered.size(), "messages posted more than once or lost");
+        assertEquals(expected, new HashSet<>(delivered));
+        // Faults were injected and retried, not skipped
+        assertTrue(attempts.values().stream().mapToInt(AtomicInteger::get).sum() > delivered.size());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static long sequence(String txnId) {
+        return Long.parseLong(txnId.substring(txnId.indexOf('.') + 1), 36);
+    }
+}